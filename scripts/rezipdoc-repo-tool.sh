@@ -48,6 +48,7 @@ enable_renormalize="false"
 enable_commit="false"
 enable_checkout="false"
 enable_diff="false"
+enable_process="false"
 java_pkg="io.github.hoijui.rezipdoc"
 maven_group="$java_pkg"
 maven_artifact="rezipdoc"
@@ -92,6 +93,8 @@ printUsage() {
 	echo "    --checkout     (filter part) re-archives ZIP files with compression on checkout"
 	echo "    --diff         (filter part) represents ZIP based files uncompressed in diff views"
 	echo "    --renormalize  (filter part) check-out and -in files on merge conflicts"
+	echo "    --process      (filter option) use a single, long-running filter process per git command"
+	echo "                   for --commit and --checkout, instead of one per file (requires git 2.11+)"
 }
 
 set_action() {
@@ -138,6 +141,9 @@ do
 		--diff)
 			enable_diff="true"
 			;;
+		--process)
+			enable_process="true"
+			;;
 		*)
 			# unknown option / not an option
 			>&2 echo "Unknown option '${option}'!"
@@ -158,7 +164,7 @@ fi
 if [ "$action" = "update" ]
 then
 	parts=""
-	for chk_part in --commit --checkout --diff --renormalize
+	for chk_part in --commit --checkout --diff --renormalize --process
 	do
 		if $0 check ${chk_part} > /dev/null 2>&1
 		then
@@ -180,9 +186,9 @@ fi
 
 if [ "$action" = "check" ]
 then
-	if [ "$enable_renormalize" != "true" ] && [ "$enable_commit" != "true" ] && [ "$enable_checkout" != "true" ] && [ "$enable_diff" != "true" ]
+	if [ "$enable_renormalize" != "true" ] && [ "$enable_commit" != "true" ] && [ "$enable_checkout" != "true" ] && [ "$enable_diff" != "true" ] && [ "$enable_process" != "true" ]
 	then
-		>&2 echo "Please check for at least one of --commit, --checkout, --diff, --renormalize"
+		>&2 echo "Please check for at least one of --commit, --checkout, --diff, --renormalize, --process"
 		exit 2
 	fi
 elif [ "$action" = "install" ]
@@ -192,11 +198,16 @@ then
 		>&2 echo "Please install at least one of --commit, --checkout, --diff"
 		exit 2
 	fi
+	if [ "$enable_process" = "true" ] && [ "$enable_commit" != "true" ] && [ "$enable_checkout" != "true" ]
+	then
+		>&2 echo "--process requires at least one of --commit, --checkout"
+		exit 2
+	fi
 else
-	if [ "$enable_renormalize" = "true" ] || [ "$enable_commit" = "true" ] || [ "$enable_checkout" = "true" ] || [ "$enable_diff" = "true" ]
+	if [ "$enable_renormalize" = "true" ] || [ "$enable_commit" = "true" ] || [ "$enable_checkout" = "true" ] || [ "$enable_diff" = "true" ] || [ "$enable_process" = "true" ]
 	then
 		>&2 echo "Remove always removes the whole filter installation;"
-		>&2 echo "no need to specify parts with any of --commit, --checkout, --diff, --renormalize"
+		>&2 echo "no need to specify parts with any of --commit, --checkout, --diff, --renormalize, --process"
 		exit 2
 	fi
 fi
@@ -288,6 +299,11 @@ then
 		is_config_present diff.zipDoc.textconv
 	fi
 
+	if [ "$enable_process" = "true" ]
+	then
+		is_config_present filter.reZip.process
+	fi
+
 	echo "$pre_text present!"
 elif [ "$action" = "install" ]
 then
@@ -309,6 +325,17 @@ then
 		git config ${extra_args} filter.reZip.smudge "java -cp '$binary_file' ${java_pkg}.ReZip --compressed"
 	fi
 
+	# Install the long-running filter process, handling both of the above.
+	# git versions that know about it use it instead of clean and smudge,
+	# older ones still use those.
+	if [ "$enable_process" = "true" ]
+	then
+		process_args=""
+		[ "$enable_commit" != "true" ] && process_args="$process_args --no-clean"
+		[ "$enable_checkout" != "true" ] && process_args="$process_args --no-smudge"
+		git config ${extra_args} filter.reZip.process "java -cp '$binary_file' ${java_pkg}.ReZip --process${process_args}"
+	fi
+
 	# Install the diff filter
 	if [ "$enable_diff" = "true" ]
 	then
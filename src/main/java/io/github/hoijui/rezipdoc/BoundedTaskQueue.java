@@ -0,0 +1,193 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Hands tasks over from a single producer thread to a single consumer thread,
+ * in the order they were added.
+ * The producer is held back while too many tasks are pending,
+ * or while the tasks pending hold too many bytes in total.
+ * The task the consumer took last still counts towards the bytes,
+ * as it is still being worked on, until the next one gets taken.
+ * There is always room for one task if none is queued,
+ * so single tasks larger than the limit do not stop the pipeline.
+ *
+ * @param <T> the type of the results of the tasks
+ */
+final class BoundedTaskQueue<T> {
+
+	private final int maxTasks;
+	private final long maxBytes;
+	private final Deque<ForkJoinTask<T>> tasks;
+	private final Deque<Long> taskBytes;
+	private long bytes;
+	private long takenBytes;
+	private boolean finished;
+	private boolean aborted;
+	private Throwable failure;
+
+	/**
+	 * Creates an empty queue.
+	 *
+	 * @param maxTasks how many tasks may be queued at most
+	 * @param maxBytes how many bytes the queued tasks,
+	 *   and the one taken last, may hold in total
+	 */
+	BoundedTaskQueue(final int maxTasks, final long maxBytes) {
+
+		this.maxTasks = maxTasks;
+		this.maxBytes = maxBytes;
+		this.tasks = new ArrayDeque<>(maxTasks);
+		this.taskBytes = new ArrayDeque<>(maxTasks);
+		this.bytes = 0;
+		this.takenBytes = 0;
+		this.finished = false;
+		this.aborted = false;
+		this.failure = null;
+	}
+
+	/**
+	 * How many bytes the queued tasks, and the one taken last, hold.
+	 * @return the bytes in flight
+	 */
+	synchronized long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Waits until there is room for an other task.
+	 * To be called by the producer.
+	 *
+	 * @return whether to go on, {@code false} if the consumer aborted
+	 * @throws InterruptedException if interrupted while waiting
+	 */
+	synchronized boolean awaitRoom() throws InterruptedException {
+
+		while (!aborted && !tasks.isEmpty() && (tasks.size() >= maxTasks || bytes >= maxBytes)) {
+			wait();
+		}
+		return !aborted;
+	}
+
+	/**
+	 * Adds a task, without waiting.
+	 * To be called by the producer, after {@link #awaitRoom()}.
+	 *
+	 * @param task the task to hand over
+	 * @param size how many bytes the task holds
+	 * @return whether the task was added;
+	 *   if {@code false}, the consumer aborted,
+	 *   and the task stays with the caller
+	 */
+	synchronized boolean add(final ForkJoinTask<T> task, final long size) {
+
+		if (aborted) {
+			return false;
+		}
+		tasks.add(task);
+		taskBytes.add(size);
+		bytes += size;
+		notifyAll();
+		return true;
+	}
+
+	/**
+	 * Tells the consumer that no more tasks are coming.
+	 * To be called by the producer.
+	 */
+	synchronized void finish() {
+
+		finished = true;
+		notifyAll();
+	}
+
+	/**
+	 * Tells the consumer that no more tasks are coming, because of a failure.
+	 * To be called by the producer.
+	 *
+	 * @param cause why the producer failed
+	 */
+	synchronized void fail(final Throwable cause) {
+
+		failure = cause;
+		notifyAll();
+	}
+
+	/**
+	 * Removes the next task, waiting for it if required.
+	 * To be called by the consumer.
+	 *
+	 * @return the next task, or {@code null} if the producer finished
+	 * @throws IOException if the producer failed, or if interrupted while waiting
+	 */
+	synchronized ForkJoinTask<T> take() throws IOException {
+
+		bytes -= takenBytes;
+		takenBytes = 0;
+		notifyAll();
+		while (failure == null && tasks.isEmpty() && !finished) {
+			try {
+				wait();
+			} catch (final InterruptedException exc) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the next entry");
+			}
+		}
+		if (failure != null) {
+			if (failure instanceof IOException) {
+				throw (IOException) failure;
+			} else if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			} else if (failure instanceof Error) {
+				throw (Error) failure;
+			}
+			throw new IOException(failure);
+		}
+		if (tasks.isEmpty()) {
+			return null;
+		}
+		takenBytes = taskBytes.remove();
+		return tasks.remove();
+	}
+
+	/**
+	 * Stops the producer, and removes all tasks still queued.
+	 * To be called by the consumer, also after the producer finished.
+	 *
+	 * @return the tasks that were not taken, for the caller to clean up
+	 */
+	synchronized List<ForkJoinTask<T>> abort() {
+
+		aborted = true;
+		final List<ForkJoinTask<T>> remaining = new ArrayList<>(tasks);
+		tasks.clear();
+		taskBytes.clear();
+		bytes = 0;
+		takenBytes = 0;
+		notifyAll();
+		return remaining;
+	}
+}
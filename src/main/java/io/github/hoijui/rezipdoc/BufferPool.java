@@ -0,0 +1,143 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps byte arrays that are no longer in use, for re-use,
+ * so buffers of entries, recursion levels and archives
+ * do not all have to be allocated (and garbage collected) anew.
+ * Only arrays with a length of a power of two between
+ * {@link #MIN_POOLED_SIZE} and {@link #MAX_POOLED_SIZE} are pooled;
+ * each such size has its own pool.
+ * It may be used by multiple threads concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public class BufferPool {
+
+	/** Smallest pooled array size: 256 bytes. */
+	public static final int MIN_POOLED_SIZE = 256;
+	/** Largest pooled array size: 1 MiB. */
+	public static final int MAX_POOLED_SIZE = 1024 * 1024;
+	/** Default for how much memory idle arrays may use in total: 16 MiB. */
+	public static final long DEFAULT_MAX_IDLE_BYTES = 16L * 1024 * 1024;
+	/** Size of the buffers used for copying streams: 8 KiB. */
+	public static final int TRANSFER_BUFFER_SIZE = 8192;
+
+	private static final BufferPool DEFAULT = new BufferPool(DEFAULT_MAX_IDLE_BYTES);
+
+	private final long maxIdleBytes;
+	/**
+	 * Idle arrays by size class,
+	 * which is the binary logarithm of their size.
+	 */
+	private final Queue<byte[]>[] idle;
+	private final AtomicLong idleBytes;
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param maxIdleBytes how much memory idle arrays may use in total
+	 */
+	@SuppressWarnings("unchecked")
+	public BufferPool(final long maxIdleBytes) {
+
+		this.maxIdleBytes = maxIdleBytes;
+		this.idle = new Queue[Integer.numberOfTrailingZeros(MAX_POOLED_SIZE) + 1];
+		for (int sizeClass = 0; sizeClass < idle.length; sizeClass++) {
+			idle[sizeClass] = new ConcurrentLinkedQueue<>();
+		}
+		this.idleBytes = new AtomicLong(0);
+	}
+
+	/**
+	 * The pool used when none is specified explicitly.
+	 * @return a pool keeping up to {@link #DEFAULT_MAX_IDLE_BYTES} of idle arrays
+	 */
+	public static BufferPool getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * How much memory the idle arrays use currently.
+	 * @return the total size of all idle arrays in bytes
+	 */
+	public long getIdleBytes() {
+		return idleBytes.get();
+	}
+
+	private static boolean isPooledSize(final int size) {
+		return size >= MIN_POOLED_SIZE && size <= MAX_POOLED_SIZE && Integer.bitCount(size) == 1;
+	}
+
+	/**
+	 * Returns an array of exactly the specified size,
+	 * either from the pool, or newly allocated.
+	 * The content of the array is undefined.
+	 *
+	 * @param size the length of the array
+	 * @return an array that is exclusively owned by the caller,
+	 *   until it is given back with {@link #release(byte[])}
+	 */
+	public byte[] acquire(final int size) {
+
+		if (isPooledSize(size)) {
+			final byte[] pooled = idle[Integer.numberOfTrailingZeros(size)].poll();
+			if (pooled != null) {
+				idleBytes.addAndGet(-pooled.length);
+				return pooled;
+			}
+		}
+		return new byte[size];
+	}
+
+	/**
+	 * Gives back an array, for re-use.
+	 * The caller must not use it anymore afterwards.
+	 * Arrays of sizes that are not pooled, or that exceed the pools capacity,
+	 * are left to the garbage collector.
+	 *
+	 * @param buffer the array to give back
+	 */
+	public void release(final byte[] buffer) {
+
+		if (!isPooledSize(buffer.length)) {
+			return;
+		}
+		if (idleBytes.addAndGet(buffer.length) > maxIdleBytes) {
+			idleBytes.addAndGet(-buffer.length);
+			return;
+		}
+		idle[Integer.numberOfTrailingZeros(buffer.length)].offer(buffer);
+	}
+
+	/**
+	 * Drops all idle arrays.
+	 */
+	public void clear() {
+
+		for (final Queue<byte[]> sizeClass : idle) {
+			for (byte[] buffer = sizeClass.poll(); buffer != null; buffer = sizeClass.poll()) {
+				idleBytes.addAndGet(-buffer.length);
+			}
+		}
+	}
+}
@@ -19,6 +19,7 @@ package io.github.hoijui.rezipdoc;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * A simple wrapper around {@link ByteArrayOutputStream}
@@ -98,4 +99,15 @@ public class BufferedOutputStream extends ByteArrayOutputStream {
 
 		return inStream;
 	}
+
+	/**
+	 * Creates a read-only {@code ByteBuffer} view of the data of this buffer,
+	 * without copying it.
+	 * CAUTION Do not add data to this buffer while the view is still in use!
+	 *
+	 * @return a read-only view of the current content of this buffer
+	 */
+	public ByteBuffer toByteBuffer() {
+		return ByteBuffer.wrap(buf, 0, count).slice().asReadOnlyBuffer();
+	}
 }
@@ -0,0 +1,117 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.FileDescriptor;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * A buffered input stream from a channel, using a large direct buffer,
+ * so reading a pipe takes as few system calls as possible,
+ * even if the content is consumed in small pieces,
+ * like {@link java.util.zip.ZipInputStream} does.
+ */
+final class ChannelInputStream extends InputStream {
+
+	/** Size of the buffer: 256 KiB. */
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	private final ReadableByteChannel channel;
+	private final ByteBuffer buffer;
+	private boolean eof;
+
+	/**
+	 * Creates a stream reading from a channel.
+	 *
+	 * @param channel where to read from; it gets closed with this stream
+	 */
+	ChannelInputStream(final ReadableByteChannel channel) {
+
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.buffer.flip();
+		this.eof = false;
+	}
+
+	/**
+	 * Creates a stream reading from the standard input of the process
+	 * through its file descriptor, bypassing {@link System#in}.
+	 * Nothing may have been read from {@link System#in} before.
+	 *
+	 * @return a new stream, closing the standard input when closed
+	 */
+	static ChannelInputStream openStandardInput() {
+		return new ChannelInputStream(new FileInputStream(FileDescriptor.in).getChannel());
+	}
+
+	/**
+	 * Makes sure there is something in the buffer, unless the end was reached.
+	 *
+	 * @return whether there is something to read
+	 */
+	private boolean fill() throws IOException {
+
+		if (buffer.hasRemaining()) {
+			return true;
+		}
+		if (eof) {
+			return false;
+		}
+		buffer.clear();
+		int read = 0;
+		while (read == 0) {
+			read = channel.read(buffer);
+		}
+		buffer.flip();
+		eof = read < 0;
+		return !eof;
+	}
+
+	@Override
+	public int read() throws IOException {
+		return fill() ? buffer.get() & 0xFF : -1;
+	}
+
+	@Override
+	public int read(final byte[] b, final int off, final int len) throws IOException {
+
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		final int n = Math.min(len, buffer.remaining());
+		buffer.get(b, off, n);
+		return n;
+	}
+
+	@Override
+	public int available() {
+		return buffer.remaining();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.GatheringByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A buffered output stream to a channel, using a large direct buffer.
+ * Small writes, like the headers {@link java.util.zip.ZipOutputStream}
+ * writes byte by byte, only end up in the buffer.
+ * When a write does not fit into the buffer anymore,
+ * the buffered bytes and the new ones are written together,
+ * with a single gathering write, if the channel supports it.
+ */
+final class ChannelOutputStream extends OutputStream {
+
+	/** Size of the buffer: 256 KiB. */
+	static final int BUFFER_SIZE = 256 * 1024;
+
+	private final WritableByteChannel channel;
+	private final ByteBuffer buffer;
+	/** Used for gathering writes, to not allocate it for each of them. */
+	private final ByteBuffer[] gather;
+
+	/**
+	 * Creates a stream writing to a channel.
+	 *
+	 * @param channel where to write to; it gets closed with this stream
+	 */
+	ChannelOutputStream(final WritableByteChannel channel) {
+
+		this.channel = channel;
+		this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+		this.gather = new ByteBuffer[2];
+	}
+
+	/**
+	 * Creates a stream writing to the standard output of the process
+	 * through its file descriptor, bypassing {@link System#out}.
+	 * Anything still buffered in {@link System#out} is flushed first.
+	 *
+	 * @return a new stream, closing the standard output when closed
+	 */
+	static ChannelOutputStream openStandardOutput() {
+
+		System.out.flush();
+		return new ChannelOutputStream(new FileOutputStream(FileDescriptor.out).getChannel());
+	}
+
+	private void writeFully(final ByteBuffer source) throws IOException {
+
+		while (source.hasRemaining()) {
+			channel.write(source);
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+
+		buffer.flip();
+		writeFully(buffer);
+		buffer.clear();
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+
+		if (!buffer.hasRemaining()) {
+			flushBuffer();
+		}
+		buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+
+		if (len <= buffer.remaining()) {
+			buffer.put(b, off, len);
+		} else if (channel instanceof GatheringByteChannel) {
+			buffer.flip();
+			gather[0] = buffer;
+			gather[1] = ByteBuffer.wrap(b, off, len);
+			try {
+				while (gather[1].hasRemaining()) {
+					((GatheringByteChannel) channel).write(gather);
+				}
+			} finally {
+				gather[1] = null;
+				buffer.clear();
+			}
+		} else {
+			flushBuffer();
+			if (len < buffer.capacity()) {
+				buffer.put(b, off, len);
+			} else {
+				writeFully(ByteBuffer.wrap(b, off, len));
+			}
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (!channel.isOpen()) {
+			return;
+		}
+		try (WritableByteChannel toClose = channel) {
+			flushBuffer();
+		}
+	}
+}
@@ -0,0 +1,426 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An in-memory buffer made up of a list of chunks,
+ * so it may hold more then 2 GB,
+ * and never has to copy its content when growing.
+ * Chunks start small, and double in size up to a maximum,
+ * so small content does not waste memory.
+ * Chunks are taken from a {@link BufferPool},
+ * and may be given back to it with {@link #release()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ChunkedOutputStream extends OutputStream {
+
+	/** Size of the first chunk: 256 bytes. */
+	public static final int DEFAULT_FIRST_CHUNK_SIZE = 256;
+	/** Size of the largest chunks: 1 MiB. */
+	public static final int DEFAULT_MAX_CHUNK_SIZE = 1024 * 1024;
+	/**
+	 * The largest content {@link #toByteBuffer()} supports,
+	 * as some JVMs reserve a few header words in arrays.
+	 */
+	public static final int MAX_ARRAY_SIZE = Integer.MAX_VALUE - 8;
+
+	private final BufferPool pool;
+	private final int firstChunkSize;
+	private final int maxChunkSize;
+	private final List<byte[]> chunks;
+	private long capacity;
+	private long size;
+	/**
+	 * The chunk the next byte gets written to.
+	 */
+	private int writeChunk;
+	/**
+	 * Where in the {@link #writeChunk} the next byte gets written to.
+	 */
+	private int writeOffset;
+
+	/**
+	 * Creates an empty buffer, with specific chunk sizes.
+	 *
+	 * @param pool where to take chunks from, and give them back to
+	 * @param firstChunkSize size of the first chunk
+	 * @param maxChunkSize size of the largest chunks
+	 */
+	public ChunkedOutputStream(final BufferPool pool, final int firstChunkSize, final int maxChunkSize) {
+
+		if (firstChunkSize < 1 || maxChunkSize < firstChunkSize) {
+			throw new IllegalArgumentException(String.format("Invalid chunk sizes: %d, %d",
+					firstChunkSize, maxChunkSize));
+		}
+		this.pool = pool;
+		this.firstChunkSize = firstChunkSize;
+		this.maxChunkSize = maxChunkSize;
+		this.chunks = new ArrayList<>();
+		this.capacity = 0;
+		this.size = 0;
+		this.writeChunk = 0;
+		this.writeOffset = 0;
+	}
+
+	/**
+	 * Creates an empty buffer, with specific chunk sizes,
+	 * using the default pool.
+	 *
+	 * @param firstChunkSize size of the first chunk
+	 * @param maxChunkSize size of the largest chunks
+	 */
+	public ChunkedOutputStream(final int firstChunkSize, final int maxChunkSize) {
+		this(BufferPool.getDefault(), firstChunkSize, maxChunkSize);
+	}
+
+	/**
+	 * Creates an empty buffer, with default chunk sizes,
+	 * using the default pool.
+	 */
+	public ChunkedOutputStream() {
+		this(DEFAULT_FIRST_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE);
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return the size of the content
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Returns how many bytes this buffer can hold without growing.
+	 *
+	 * @return the total size of all chunks
+	 */
+	public long capacity() {
+		return capacity;
+	}
+
+	private int nextChunkSize(final int previousChunkSize) {
+		return previousChunkSize == 0 ? firstChunkSize : Math.min(maxChunkSize, 2 * previousChunkSize);
+	}
+
+	private int lastChunkSize() {
+		return chunks.isEmpty() ? 0 : chunks.get(chunks.size() - 1).length;
+	}
+
+	/**
+	 * Calculates how big {@link #ensureCapacity(long)} would make this buffer.
+	 *
+	 * @param minCapacity the desired minimum capacity
+	 * @return the capacity after growing
+	 */
+	public long capacityFor(final long minCapacity) {
+
+		long newCapacity = capacity;
+		int chunkSize = lastChunkSize();
+		while (newCapacity < minCapacity) {
+			chunkSize = nextChunkSize(chunkSize);
+			newCapacity += chunkSize;
+		}
+		return newCapacity;
+	}
+
+	/**
+	 * Adds chunks, if necessary,
+	 * so this buffer can hold at least the specified number of bytes.
+	 *
+	 * @param minCapacity the desired minimum capacity
+	 */
+	public void ensureCapacity(final long minCapacity) {
+
+		while (capacity < minCapacity) {
+			final byte[] chunk = pool.acquire(nextChunkSize(lastChunkSize()));
+			chunks.add(chunk);
+			capacity += chunk.length;
+		}
+	}
+
+	@Override
+	public void write(final int b) {
+
+		ensureCapacity(size + 1);
+		if (writeOffset == chunks.get(writeChunk).length) {
+			writeChunk++;
+			writeOffset = 0;
+		}
+		chunks.get(writeChunk)[writeOffset++] = (byte) b;
+		size++;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) {
+
+		if (off < 0 || len < 0 || len > b.length - off) {
+			throw new IndexOutOfBoundsException();
+		}
+		ensureCapacity(size + len);
+		int copied = 0;
+		while (copied < len) {
+			byte[] chunk = chunks.get(writeChunk);
+			if (writeOffset == chunk.length) {
+				writeChunk++;
+				writeOffset = 0;
+				chunk = chunks.get(writeChunk);
+			}
+			final int n = Math.min(len - copied, chunk.length - writeOffset);
+			System.arraycopy(b, off + copied, chunk, writeOffset, n);
+			writeOffset += n;
+			copied += n;
+		}
+		size += len;
+	}
+
+	/**
+	 * Tests if this buffer starts with the specified prefix.
+	 *
+	 * @param prefix the prefix
+	 * @return whether the content starts with the prefix;
+	 *   {@code true} for an empty prefix
+	 */
+	public boolean startsWith(final byte[] prefix) {
+
+		if (prefix.length > size) {
+			return false;
+		}
+		int chunkIndex = 0;
+		int offset = 0;
+		for (final byte expected : prefix) {
+			byte[] chunk = chunks.get(chunkIndex);
+			if (offset == chunk.length) {
+				chunkIndex++;
+				offset = 0;
+				chunk = chunks.get(chunkIndex);
+			}
+			if (chunk[offset++] != expected) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Creates read-only views of the used parts of all chunks,
+	 * without copying them.
+	 * CAUTION Do not add data to this buffer while the views are still in use!
+	 *
+	 * @return the content, split into chunks
+	 */
+	public List<ByteBuffer> toByteBuffers() {
+
+		final List<ByteBuffer> buffers = new ArrayList<>(writeChunk + 1);
+		long remaining = size;
+		for (int ci = 0; remaining > 0; ci++) {
+			final byte[] chunk = chunks.get(ci);
+			final int length = (int) Math.min(remaining, chunk.length);
+			buffers.add(ByteBuffer.wrap(chunk, 0, length).slice().asReadOnlyBuffer());
+			remaining -= length;
+		}
+		return buffers;
+	}
+
+	/**
+	 * Creates a read-only {@code ByteBuffer} view of the content.
+	 * If it spans multiple chunks, they get merged into a single one first,
+	 * which is the only case in which this buffer ever copies its content.
+	 * CAUTION Do not add data to this buffer while the view is still in use!
+	 *
+	 * @return a read-only view of the current content
+	 * @throws IllegalStateException if the content is too large for a single array
+	 */
+	public ByteBuffer toByteBuffer() {
+
+		if (size > MAX_ARRAY_SIZE) {
+			throw new IllegalStateException(String.format("Content too large for a single buffer: %d bytes", size));
+		}
+		if (size > (chunks.isEmpty() ? 0 : chunks.get(0).length)) {
+			final byte[] merged = new byte[(int) size];
+			int position = 0;
+			for (final ByteBuffer part : toByteBuffers()) {
+				final int length = part.remaining();
+				part.get(merged, position, length);
+				position += length;
+			}
+			releaseChunks();
+			chunks.add(merged);
+			capacity = merged.length;
+			writeChunk = 0;
+			writeOffset = merged.length;
+		}
+		return chunks.isEmpty() ? ByteBuffer.allocate(0)
+				: ByteBuffer.wrap(chunks.get(0), 0, (int) size).slice().asReadOnlyBuffer();
+	}
+
+	/**
+	 * Copies the content into a new array.
+	 *
+	 * @return a copy of the content
+	 * @throws IllegalStateException if the content is too large for a single array
+	 */
+	public byte[] toByteArray() {
+
+		final ByteBuffer content = toByteBuffer();
+		final byte[] copy = new byte[content.remaining()];
+		content.get(copy);
+		return copy;
+	}
+
+	/**
+	 * Writes the complete content to the specified output stream.
+	 *
+	 * @param out the output stream to which to write the content
+	 * @throws IOException if writing fails
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+
+		long remaining = size;
+		for (int ci = 0; remaining > 0; ci++) {
+			final byte[] chunk = chunks.get(ci);
+			final int length = (int) Math.min(remaining, chunk.length);
+			out.write(chunk, 0, length);
+			remaining -= length;
+		}
+	}
+
+	/**
+	 * Creates an {@code InputStream} streaming the current content,
+	 * without copying it.
+	 * CAUTION Do not add data to this buffer while the stream is still in use!
+	 *
+	 * @return a stream over the current content
+	 */
+	public InputStream createInputStream() {
+		return new ChunksInputStream(chunks, size);
+	}
+
+	/**
+	 * Discards the content, but keeps the chunks for re-use.
+	 */
+	public void reset() {
+
+		size = 0;
+		writeChunk = 0;
+		writeOffset = 0;
+	}
+
+	private void releaseChunks() {
+
+		for (final byte[] chunk : chunks) {
+			pool.release(chunk);
+		}
+		chunks.clear();
+	}
+
+	/**
+	 * Discards the content, and gives all chunks back to the pool.
+	 * This buffer may still be used afterwards.
+	 * CAUTION Views and streams created earlier must not be used anymore!
+	 */
+	public void release() {
+
+		reset();
+		releaseChunks();
+		capacity = 0;
+	}
+
+	/**
+	 * Reads a fixed amount of bytes from a list of chunks.
+	 */
+	private static class ChunksInputStream extends InputStream {
+
+		private final List<byte[]> chunks;
+		private int chunkIndex;
+		private int offset;
+		private long remaining;
+
+		ChunksInputStream(final List<byte[]> chunks, final long size) {
+
+			this.chunks = chunks;
+			this.chunkIndex = 0;
+			this.offset = 0;
+			this.remaining = size;
+		}
+
+		private byte[] currentChunk() {
+
+			byte[] chunk = chunks.get(chunkIndex);
+			if (offset == chunk.length) {
+				chunkIndex++;
+				offset = 0;
+				chunk = chunks.get(chunkIndex);
+			}
+			return chunk;
+		}
+
+		@Override
+		public int read() {
+
+			if (remaining <= 0) {
+				return -1;
+			}
+			remaining--;
+			return currentChunk()[offset++] & 0xFF;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+
+			if (len == 0) {
+				return 0;
+			}
+			if (remaining <= 0) {
+				return -1;
+			}
+			final byte[] chunk = currentChunk();
+			final int n = (int) Math.min(Math.min(len, remaining), chunk.length - offset);
+			System.arraycopy(chunk, offset, b, off, n);
+			offset += n;
+			remaining -= n;
+			return n;
+		}
+
+		@Override
+		public long skip(final long n) {
+
+			long skipped = 0;
+			while (skipped < n && remaining > 0) {
+				final byte[] chunk = currentChunk();
+				final int step = (int) Math.min(Math.min(n - skipped, remaining), chunk.length - offset);
+				offset += step;
+				remaining -= step;
+				skipped += step;
+			}
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return (int) Math.min(remaining, Integer.MAX_VALUE);
+		}
+	}
+}
@@ -0,0 +1,138 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.Deflater;
+
+/**
+ * How to trade compression speed against size,
+ * when re-zipping compressed with adaptive compression.
+ * Each entry gets deflated with the level of the preset,
+ * unless a sample of its content looks incompressible,
+ * in which case it gets stored, as deflating it would only cost time.
+ * This is typically the case for compressed images, audio and video,
+ * and for archives nested within.
+ * <p>
+ * The entropy of the content is estimated by how well
+ * the sample deflates with the fastest level.
+ * This also catches repetitions, which a byte histogram alone does not,
+ * and costs little compared to deflating the whole content.
+ */
+@SuppressWarnings("WeakerAccess")
+public enum CompressionPreset {
+
+	/** Deflates fast, and stores everything that does not shrink by at least 10%. */
+	SPEED(Deflater.BEST_SPEED, 0.90),
+	/** Deflates with the default level, and stores what does not shrink by at least 5%. */
+	BALANCED(Deflater.DEFAULT_COMPRESSION, 0.95),
+	/** Deflates as small as possible, and stores what does not shrink by at least 2%. */
+	SIZE(Deflater.BEST_COMPRESSION, 0.98);
+
+	/**
+	 * Below this many bytes, a sample says too little about the content,
+	 * and it is always deflated: 256 bytes.
+	 */
+	public static final int MIN_SAMPLE_BYTES = 256;
+	/**
+	 * At most this many bytes of a sample are looked at.
+	 */
+	public static final int MAX_SAMPLE_BYTES = EntryClassifier.PREFIX_BYTES;
+
+	private final int level;
+	private final double maxRatio;
+
+	CompressionPreset(final int level, final double maxRatio) {
+
+		this.level = level;
+		this.maxRatio = maxRatio;
+	}
+
+	/**
+	 * Finds a preset by its name, regardless of case.
+	 *
+	 * @param name for example "speed"
+	 * @return the preset of that name
+	 * @throws IllegalArgumentException if there is no such preset
+	 */
+	public static CompressionPreset parse(final String name) {
+		return valueOf(name.toUpperCase(Locale.ROOT));
+	}
+
+	/**
+	 * The level to deflate compressible content with.
+	 * @return from 1 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+	 */
+	public int getLevel() {
+		return level;
+	}
+
+	/**
+	 * Up to which ratio of deflated to original size of a sample
+	 * the content is still considered worth deflating.
+	 * @return between 0 and 1
+	 */
+	public double getMaxRatio() {
+		return maxRatio;
+	}
+
+	/**
+	 * Checks whether content is worth deflating, judging by a sample of it.
+	 *
+	 * @param sample the beginning of the content, from its position to its limit;
+	 *   neither gets changed
+	 * @return {@code false} if the sample is large enough,
+	 *   and does not deflate below {@link #getMaxRatio()}
+	 */
+	public boolean isCompressible(final ByteBuffer sample) {
+
+		final int sampleBytes = Math.min(sample.remaining(), MAX_SAMPLE_BYTES);
+		if (sampleBytes < MIN_SAMPLE_BYTES) {
+			return true;
+		}
+		return deflatedSize(sample, sampleBytes) <= sampleBytes * maxRatio;
+	}
+
+	/**
+	 * Deflates the beginning of some content with the fastest level,
+	 * only to see how small it gets.
+	 */
+	private static long deflatedSize(final ByteBuffer content, final int length) {
+
+		final BufferPool bufferPool = BufferPool.getDefault();
+		final byte[] input = bufferPool.acquire(MAX_SAMPLE_BYTES);
+		final byte[] output = bufferPool.acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		final Deflater deflater = ZlibPool.getDefault().acquireDeflater(Deflater.BEST_SPEED);
+		try {
+			// Java 8 can not deflate from a ByteBuffer directly
+			content.duplicate().get(input, 0, length);
+			deflater.setInput(input, 0, length);
+			deflater.finish();
+			long deflated = 0;
+			while (!deflater.finished()) {
+				deflated += deflater.deflate(output);
+			}
+			return deflated;
+		} finally {
+			ZlibPool.getDefault().release(deflater, Deflater.BEST_SPEED);
+			bufferPool.release(output);
+			bufferPool.release(input);
+		}
+	}
+}
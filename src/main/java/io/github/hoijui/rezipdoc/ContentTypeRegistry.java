@@ -0,0 +1,265 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Knows which file suffixes and magic headers denote which kind of content.
+ * Both are compiled into lookup tables once,
+ * so classifying an entry takes a single suffix extraction and hash lookup,
+ * plus a single pass over the magic headers starting with its first byte.
+ * The suffixes are those of the {@code reZipDoc-suffixes-*.csv} files
+ * next to our binary, if present, or our defaults otherwise
+ * (see {@link Utils#writeSuffixesFiles()}).
+ * It may be used by multiple threads concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ContentTypeRegistry {
+
+	/**
+	 * How many distinct, not yet lower-case suffixes
+	 * the decisions are cached for at most.
+	 */
+	public static final int MAX_CACHED_SUFFIXES = 1024;
+
+	/**
+	 * Magic headers by their first byte,
+	 * each group sorted from the longest to the shortest,
+	 * so the most specific match is found first.
+	 * The XML ones are the same as those recognized by
+	 * {@link java.net.URLConnection#guessContentTypeFromStream(java.io.InputStream)}.
+	 */
+	private static final Signature[][] SIGNATURES = compileSignatures(
+			new Signature(EntryClassifier.Type.XML, "<?xml "),
+			new Signature(EntryClassifier.Type.XML, 0xEF, 0xBB, 0xBF, '<', '?', 'x'),
+			new Signature(EntryClassifier.Type.XML, 0xFE, 0xFF, 0, '<', 0, '?', 0, 'x'),
+			new Signature(EntryClassifier.Type.XML, 0xFF, 0xFE, '<', 0, '?', 0, 'x', 0),
+			new Signature(EntryClassifier.Type.XML,
+					0, 0, 0xFE, 0xFF, 0, 0, 0, '<', 0, 0, 0, '?', 0, 0, 0, 'x'),
+			new Signature(EntryClassifier.Type.XML,
+					0xFF, 0xFE, 0, 0, '<', 0, 0, 0, '?', 0, 0, 0, 'x', 0, 0, 0),
+			// UTF-8 byte order mark
+			new Signature(EntryClassifier.Type.TEXT, 0xEF, 0xBB, 0xBF),
+			new Signature(EntryClassifier.Type.ARCHIVE, 'P', 'K', 3, 4),
+			new Signature(EntryClassifier.Type.ARCHIVE, 'P', 'K', 5, 6),
+			new Signature(EntryClassifier.Type.ARCHIVE, 'P', 'K', 7, 8),
+			// gzip
+			new Signature(EntryClassifier.Type.BINARY, 0x1F, 0x8B),
+			// bzip2
+			new Signature(EntryClassifier.Type.BINARY, 'B', 'Z', 'h'),
+			// xz
+			new Signature(EntryClassifier.Type.BINARY, 0xFD, '7', 'z', 'X', 'Z', 0),
+			// 7-Zip
+			new Signature(EntryClassifier.Type.BINARY, '7', 'z', 0xBC, 0xAF, 0x27, 0x1C),
+			// Zstandard
+			new Signature(EntryClassifier.Type.BINARY, 0x28, 0xB5, 0x2F, 0xFD),
+			// Java class file
+			new Signature(EntryClassifier.Type.BINARY, 0xCA, 0xFE, 0xBA, 0xBE),
+			// ELF executable
+			new Signature(EntryClassifier.Type.BINARY, 0x7F, 'E', 'L', 'F'),
+			// WebAssembly
+			new Signature(EntryClassifier.Type.BINARY, 0, 'a', 's', 'm'),
+			new Signature(EntryClassifier.Type.BINARY, "%PDF-"),
+			new Signature(EntryClassifier.Type.BINARY, 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n'),
+			new Signature(EntryClassifier.Type.BINARY, 0xFF, 0xD8, 0xFF),
+			new Signature(EntryClassifier.Type.BINARY, "GIF8"),
+			new Signature(EntryClassifier.Type.BINARY, 'I', 'I', '*', 0),
+			new Signature(EntryClassifier.Type.BINARY, 'M', 'M', 0, '*'),
+			// WebP, WAV, AVI, ...
+			new Signature(EntryClassifier.Type.BINARY, "RIFF"),
+			new Signature(EntryClassifier.Type.BINARY, "OggS"),
+			new Signature(EntryClassifier.Type.BINARY, "fLaC"),
+			new Signature(EntryClassifier.Type.BINARY, "wOFF"),
+			new Signature(EntryClassifier.Type.BINARY, "wOF2"),
+			// TrueType font
+			new Signature(EntryClassifier.Type.BINARY, 0, 1, 0, 0, 0));
+
+	private static final ContentTypeRegistry DEFAULT = new ContentTypeRegistry(
+			Utils.SUFFIXES_XML, Utils.SUFFIXES_TEXT, Utils.SUFFIXES_ARCHIVE, Utils.SUFFIXES_BINARY);
+
+	/**
+	 * The type of each known suffix, in lower-case.
+	 */
+	private final Map<String, EntryClassifier.Type> suffixTypes;
+	/**
+	 * The decisions taken for suffixes as they appeared in entry names,
+	 * including the unknown ones,
+	 * which saves converting them to lower-case again.
+	 */
+	private final Map<String, Optional<EntryClassifier.Type>> suffixDecisions;
+
+	/**
+	 * Creates a registry knowing specific suffixes.
+	 * A suffix that appears in more then one set denotes
+	 * the first one of XML, text, archive and binary it appears in.
+	 *
+	 * @param xmlSuffixes suffixes of XML based files, for example "svg"
+	 * @param textSuffixes suffixes of plain-text files, for example "txt"
+	 * @param archiveSuffixes suffixes of ZIP based archives, for example "jar"
+	 * @param binarySuffixes suffixes of files not to be treated as text,
+	 *   even if they happen to look like it, for example "png"
+	 */
+	public ContentTypeRegistry(
+			final Set<String> xmlSuffixes,
+			final Set<String> textSuffixes,
+			final Set<String> archiveSuffixes,
+			final Set<String> binarySuffixes)
+	{
+		final Map<String, EntryClassifier.Type> types = new HashMap<>();
+		// the ones registered later do not replace the earlier ones
+		register(types, xmlSuffixes, EntryClassifier.Type.XML);
+		register(types, textSuffixes, EntryClassifier.Type.TEXT);
+		register(types, archiveSuffixes, EntryClassifier.Type.ARCHIVE);
+		register(types, binarySuffixes, EntryClassifier.Type.BINARY);
+		this.suffixTypes = Collections.unmodifiableMap(types);
+		this.suffixDecisions = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * The registry used when none is specified explicitly.
+	 * @return a registry using the suffixes known to {@link Utils}
+	 */
+	public static ContentTypeRegistry getDefault() {
+		return DEFAULT;
+	}
+
+	private static void register(
+			final Map<String, EntryClassifier.Type> types,
+			final Set<String> suffixes,
+			final EntryClassifier.Type type)
+	{
+		for (final String suffix : suffixes) {
+			types.putIfAbsent(suffix.toLowerCase(Locale.ROOT), type);
+		}
+	}
+
+	private static Signature[][] compileSignatures(final Signature... signatures) {
+
+		final List<List<Signature>> byFirstByte = new ArrayList<>(256);
+		for (int firstByte = 0; firstByte < 256; firstByte++) {
+			byFirstByte.add(new ArrayList<>());
+		}
+		for (final Signature signature : signatures) {
+			byFirstByte.get(signature.magic[0] & 0xFF).add(signature);
+		}
+		final Signature[][] compiled = new Signature[256][];
+		for (int firstByte = 0; firstByte < 256; firstByte++) {
+			final List<Signature> group = byFirstByte.get(firstByte);
+			// stable, so the order of equally long ones is kept
+			group.sort(Comparator.comparingInt((Signature signature) -> signature.magic.length).reversed());
+			compiled[firstByte] = group.toArray(new Signature[0]);
+		}
+		return compiled;
+	}
+
+	/**
+	 * Looks up the type denoted by the suffix of a file name,
+	 * which is the part after the last '.', regardless of case.
+	 *
+	 * @param fileName the name of the file, which may be a path
+	 * @return the type registered for the suffix,
+	 *   or {@code null} if there is no suffix or it is unknown
+	 */
+	public EntryClassifier.Type getTypeBySuffix(final String fileName) {
+
+		final int dotPos = fileName.lastIndexOf('.');
+		if (dotPos < 0) {
+			return null;
+		}
+		final String suffix = fileName.substring(dotPos + 1);
+		Optional<EntryClassifier.Type> decision = suffixDecisions.get(suffix);
+		if (decision == null) {
+			decision = Optional.ofNullable(suffixTypes.get(suffix.toLowerCase(Locale.ROOT)));
+			if (suffixDecisions.size() < MAX_CACHED_SUFFIXES) {
+				suffixDecisions.put(suffix, decision);
+			}
+		}
+		return decision.orElse(null);
+	}
+
+	/**
+	 * Looks up the type denoted by the magic header of some content.
+	 *
+	 * @param content the beginning of the content, from its position to its limit;
+	 *   neither gets changed
+	 * @return the type of the longest matching magic header,
+	 *   or {@code null} if none matches
+	 */
+	public EntryClassifier.Type getTypeBySignature(final ByteBuffer content) {
+
+		if (!content.hasRemaining()) {
+			return null;
+		}
+		final int start = content.position();
+		for (final Signature signature : SIGNATURES[content.get(start) & 0xFF]) {
+			if (signature.matches(content, start)) {
+				return signature.type;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * A magic header, denoting a specific type of content.
+	 */
+	private static final class Signature {
+
+		private final EntryClassifier.Type type;
+		private final byte[] magic;
+
+		Signature(final EntryClassifier.Type type, final String magic) {
+
+			this.type = type;
+			this.magic = magic.getBytes(StandardCharsets.US_ASCII);
+		}
+
+		Signature(final EntryClassifier.Type type, final int... magic) {
+
+			this.type = type;
+			this.magic = new byte[magic.length];
+			for (int bi = 0; bi < magic.length; bi++) {
+				this.magic[bi] = (byte) magic[bi];
+			}
+		}
+
+		boolean matches(final ByteBuffer content, final int start) {
+
+			if (content.limit() - start < magic.length) {
+				return false;
+			}
+			for (int bi = 1; bi < magic.length; bi++) {
+				if (content.get(start + bi) != magic[bi]) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Holds the content of one ZIP entry at a time,
+ * computing its CRC while it gets written.
+ * Each level of nested archives gets its own buffer,
+ * which is created on first use, and re-used for all the entries
+ * of all the archives at that level.
+ * A nested archive is read from the detached content of its parents buffer,
+ * and re-packed right back into it, so it is never copied as a whole.
+ */
+final class EntryBuffer {
+
+	private final SpillingOutputStream raw;
+	private final CRC32 checksum;
+	private final CheckedOutputStream checked;
+	private EntryBuffer nested;
+
+	EntryBuffer() {
+
+		this.raw = new SpillingOutputStream();
+		this.checksum = new CRC32();
+		this.checked = new CheckedOutputStream(raw, checksum);
+		this.nested = null;
+	}
+
+	/**
+	 * The content written so far.
+	 * @return the (possibly spilled) content, without any check-summing
+	 */
+	SpillingOutputStream getRaw() {
+		return raw;
+	}
+
+	/**
+	 * Where to write content to, so it gets check-summed.
+	 * @return a stream writing to {@link #getRaw()}
+	 */
+	OutputStream getChecked() {
+		return checked;
+	}
+
+	/**
+	 * The CRC of all the content written through {@link #getChecked()}
+	 * since the last reset.
+	 * @return the CRC-32 of the content
+	 */
+	long getCrc() {
+		return checksum.getValue();
+	}
+
+	/**
+	 * Check-sums content as if it was written through {@link #getChecked()},
+	 * but without keeping it.
+	 *
+	 * @param in the content to check-sum, read until its end
+	 * @param buffer used for reading
+	 * @return the number of bytes read
+	 * @throws IOException if reading fails
+	 */
+	long checksumOnly(final InputStream in, final byte[] buffer) throws IOException {
+
+		long size = 0;
+		for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+			checksum.update(buffer, 0, n);
+			size += n;
+		}
+		return size;
+	}
+
+	/**
+	 * Starts over, keeping the memory for the next entry.
+	 *
+	 * @throws IOException if deleting a spill file fails
+	 */
+	void reset() throws IOException {
+
+		raw.reset();
+		checksum.reset();
+	}
+
+	/**
+	 * Moves the content into an {@code InputStream},
+	 * leaving this buffer empty, ready to take a transformed version of it.
+	 *
+	 * @return a stream over the current content, taking ownership of it
+	 * @throws IOException if flushing to the spill file fails
+	 * @see SpillingOutputStream#detachInputStream()
+	 */
+	InputStream detach() throws IOException {
+
+		final InputStream detached = raw.detachInputStream();
+		checksum.reset();
+		return detached;
+	}
+
+	/**
+	 * Returns the buffer for the entries of an archive nested in the current entry.
+	 * @return the buffer of the next deeper level
+	 */
+	EntryBuffer getNested() {
+
+		if (nested == null) {
+			nested = new EntryBuffer();
+		}
+		return nested;
+	}
+
+	/**
+	 * Releases all memory and files of this and all nested buffers.
+	 * They may still be used afterwards.
+	 *
+	 * @throws IOException if deleting a spill file fails
+	 */
+	void discard() throws IOException {
+
+		checksum.reset();
+		try {
+			raw.discard();
+		} finally {
+			if (nested != null) {
+				nested.discard();
+			}
+		}
+	}
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decides what kind of content a ZIP entry holds,
+ * from its name and the first {@link #PREFIX_BYTES} bytes of its content only.
+ * This allows to stream content that is merely copied or check-summed,
+ * instead of buffering it as a whole first.
+ * It may be used by multiple threads concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EntryClassifier {
+
+	/**
+	 * How many leading bytes of the content are looked at: 4 KiB.
+	 * This is more then the magic headers need,
+	 * to give the text heuristic a meaningful sample.
+	 */
+	public static final int PREFIX_BYTES = 4096;
+
+	private static final EntryClassifier DEFAULT = new EntryClassifier(ContentTypeRegistry.getDefault());
+
+	/**
+	 * The kinds of content we treat differently.
+	 */
+	public enum Type {
+		/** XML based content, which may be pretty-printed. */
+		XML,
+		/** Plain text, which may be shown as it is. */
+		TEXT,
+		/** A ZIP based archive, which may be recursed into. */
+		ARCHIVE,
+		/** Anything else. */
+		BINARY
+	}
+
+	private final ContentTypeRegistry registry;
+
+	/**
+	 * Creates a classifier using specific suffixes and magic headers.
+	 *
+	 * @param registry knows which suffixes and magic headers denote which type
+	 */
+	public EntryClassifier(final ContentTypeRegistry registry) {
+		this.registry = registry;
+	}
+
+	/**
+	 * Creates a classifier using the default suffixes and magic headers.
+	 */
+	public EntryClassifier() {
+		this(ContentTypeRegistry.getDefault());
+	}
+
+	/**
+	 * The classifier used when none is specified explicitly.
+	 * @return a classifier using the default {@link ContentTypeRegistry}
+	 */
+	public static EntryClassifier getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Reads the first {@link #PREFIX_BYTES} bytes of an entries content,
+	 * or all of it, if it is shorter.
+	 *
+	 * @param entryIn the content of the entry
+	 * @param target where to write the prefix to
+	 * @param buffer used for the transfer
+	 * @throws IOException if any input or output fails
+	 */
+	public static void readPrefix(final InputStream entryIn, final OutputStream target, final byte[] buffer)
+			throws IOException
+	{
+		int remaining = PREFIX_BYTES;
+		while (remaining > 0) {
+			final int n = entryIn.read(buffer, 0, Math.min(remaining, buffer.length));
+			if (n < 0) {
+				break;
+			}
+			target.write(buffer, 0, n);
+			remaining -= n;
+		}
+	}
+
+	/**
+	 * Creates a stream over the whole content of an entry,
+	 * made of the prefix read with {@link #readPrefix(InputStream, OutputStream, byte[])},
+	 * and the rest still to be read.
+	 * Closing it closes neither.
+	 *
+	 * @param prefix the already buffered beginning of the content
+	 * @param entryIn the rest of the content,
+	 *   for example a {@link java.util.zip.ZipInputStream} positioned within an entry
+	 * @return a stream over the whole content
+	 * @throws IOException if the prefix can not be read
+	 */
+	public static InputStream continueAfterPrefix(final SpillingOutputStream prefix, final InputStream entryIn)
+			throws IOException
+	{
+		final InputStream rest = new FilterInputStream(entryIn) {
+			@Override
+			public void close() {
+				// NOTE We do explicitly NOT close the underlying stream,
+				//      as it continues with the next entry
+			}
+		};
+		return new SequenceInputStream(prefix.createInputStream(), rest);
+	}
+
+	/**
+	 * Classifies the content of an entry.
+	 * Suffixes and magic headers denoting XML take precedence over
+	 * those denoting text, then archives, then binary content.
+	 * If neither is known, the text heuristic decides.
+	 *
+	 * @param name the name of the entry, which may be a path
+	 * @param size the size of the whole content, or {@code -1} if unknown
+	 * @param prefix the first {@link #PREFIX_BYTES} bytes of the content,
+	 *   or all of it, if it is shorter
+	 * @return the kind of the content
+	 */
+	public Type classify(final String name, final long size, final BufferedOutputStream prefix) {
+
+		final ByteBuffer content = prefix.toByteBuffer();
+		final Type bySuffix = registry.getTypeBySuffix(name);
+		final Type bySignature = registry.getTypeBySignature(content);
+		final Type type;
+		if (bySuffix == Type.XML || bySignature == Type.XML) {
+			type = Type.XML;
+		} else if (bySuffix == Type.TEXT || bySignature == Type.TEXT) {
+			type = Type.TEXT;
+		} else if (bySuffix == Type.ARCHIVE || bySignature == Type.ARCHIVE) {
+			type = Type.ARCHIVE;
+		} else if (bySuffix == Type.BINARY || bySignature == Type.BINARY) {
+			type = Type.BINARY;
+		} else if (looksLikeText(content)) {
+			type = Type.TEXT;
+		} else {
+			type = Type.BINARY;
+		}
+		return type;
+	}
+
+	/**
+	 * Checks whether content looks like UTF-8 (or ASCII) text.
+	 * It must not be empty, must not contain control characters
+	 * other then the usual whitespace, and must be valid UTF-8,
+	 * except for a multi-byte sequence cut off at the end.
+	 *
+	 * @param content the content to check, from its position to its limit;
+	 *   neither gets changed
+	 * @return whether this is probably text
+	 */
+	public static boolean looksLikeText(final ByteBuffer content) {
+
+		if (!content.hasRemaining()) {
+			return false;
+		}
+		int continuationBytes = 0;
+		for (int bi = content.position(); bi < content.limit(); bi++) {
+			final int cur = content.get(bi) & 0xFF;
+			if (continuationBytes > 0) {
+				if ((cur & 0xC0) != 0x80) {
+					return false;
+				}
+				continuationBytes--;
+			} else if (cur < 0x80) {
+				if (cur < ' ' && cur != '\t' && cur != '\n' && cur != '\r' && cur != '\f' && cur != 0x1B) {
+					return false;
+				}
+			} else if ((cur & 0xE0) == 0xC0 && cur >= 0xC2) {
+				continuationBytes = 1;
+			} else if ((cur & 0xF0) == 0xE0) {
+				continuationBytes = 2;
+			} else if ((cur & 0xF8) == 0xF0 && cur <= 0xF4) {
+				continuationBytes = 3;
+			} else {
+				return false;
+			}
+		}
+		return true;
+	}
+}
@@ -0,0 +1,457 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.regex.PatternSyntaxException;
+import java.util.stream.Collectors;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * Per-entry rules, overriding the global settings of {@link ReZip}
+ * for the entries whose paths match a pattern.
+ * They are read from a text file with one rule per line,
+ * each consisting of a pattern and one or more actions,
+ * separated by white-space, for example:
+ * <pre>
+ * # skip the formatting of huge, generated parts
+ * content.xml        format-xml=rough
+ * Thumbnails/        raw store
+ * regex:.*\.bin      deflate=1
+ * </pre>
+ * Empty lines and lines starting with '#' are ignored.
+ * <p>
+ * Patterns are globs by default, or regular expressions if prefixed with {@code regex:}.
+ * In globs, {@code *} and {@code ?} do not match '/', while {@code **} does;
+ * {@code [...]} and {@code {a,b}} work as usual.
+ * A glob without a '/' matches file names in any directory,
+ * and one ending with '/' matches everything below that directory.
+ * Regular expressions have to match the whole path,
+ * and must not use numbered back-references.
+ * Paths are those of the entries within their (possibly nested) archive.
+ * <p>
+ * Supported actions:
+ * <ul>
+ * <li>{@code raw}: pass the content through as it is,
+ *   without looking at it, formatting it or recursing into it;
+ *   STORED content is copied without being inflated, where possible</li>
+ * <li>{@code store}: write the entry uncompressed</li>
+ * <li>{@code deflate}, {@code deflate=<0-9>}: write the entry compressed,
+ *   with the given level</li>
+ * <li>{@code format-xml}, {@code format-xml=rough}, {@code format-xml=correct}:
+ *   pretty-print XML content, with <em>rough and fast</em>
+ *   or <em>correct</em> pretty'fication, if specified</li>
+ * <li>{@code no-format-xml}: do not pretty-print XML content</li>
+ * <li>{@code recurse}, {@code no-recurse}: do or do not re-zip nested archives</li>
+ * </ul>
+ * The compression actions are only in effect when re-zipping compressed,
+ * because uncompressed output is what makes the archives diff- and delta-friendly.
+ * For each entry, only the first matching rule applies.
+ * All patterns are compiled into a single regular expression,
+ * so each entry is matched only once.
+ * It may be used by multiple threads concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public class EntryRules {
+
+	private static final String REGEX_PREFIX = "regex:";
+	private static final String GLOB_PREFIX = "glob:";
+	private static final EntryRules NONE = new EntryRules(Collections.emptyList());
+
+	private final List<Rule> rules;
+	/**
+	 * All patterns, each in a capturing group of its own, as alternatives.
+	 */
+	private final Pattern combined;
+	/**
+	 * The index of the capturing group of each rules pattern within {@link #combined}.
+	 */
+	private final int[] ruleGroups;
+
+	/**
+	 * Creates an instance with specific rules.
+	 *
+	 * @param rules the rules, in order of precedence
+	 */
+	public EntryRules(final List<Rule> rules) {
+
+		this.rules = Collections.unmodifiableList(new ArrayList<>(rules));
+		this.ruleGroups = new int[rules.size()];
+		final StringBuilder alternatives = new StringBuilder();
+		int group = 1;
+		for (int ri = 0; ri < rules.size(); ri++) {
+			final Pattern pattern = rules.get(ri).pattern;
+			if (ri > 0) {
+				alternatives.append('|');
+			}
+			alternatives.append('(').append(pattern.pattern()).append(')');
+			ruleGroups[ri] = group;
+			group += 1 + pattern.matcher("").groupCount();
+		}
+		this.combined = rules.isEmpty() ? null : Pattern.compile(alternatives.toString(), Pattern.DOTALL);
+	}
+
+	/**
+	 * The rules used when none are specified explicitly.
+	 * @return an instance without any rules
+	 */
+	public static EntryRules getNone() {
+		return NONE;
+	}
+
+	/**
+	 * Reads rules from a file.
+	 *
+	 * @param rulesFile the text file to read from; see the class documentation
+	 * @return the rules read from the file
+	 * @throws IOException if reading the file fails
+	 * @throws IllegalArgumentException if any of the rules is invalid
+	 */
+	public static EntryRules read(final Path rulesFile) throws IOException {
+
+		final List<String> lines = Utils.readLines(rulesFile, false);
+		final List<Rule> rules = new ArrayList<>();
+		for (int li = 0; li < lines.size(); li++) {
+			final String line = lines.get(li);
+			if (line.isEmpty() || line.charAt(0) == '#') {
+				continue;
+			}
+			try {
+				rules.add(Rule.parse(line));
+			} catch (final IllegalArgumentException exc) {
+				throw new IllegalArgumentException(String.format("Invalid rule in line %d of \"%s\": %s",
+						li + 1, rulesFile, exc.getMessage()), exc);
+			}
+		}
+		return new EntryRules(rules);
+	}
+
+	/**
+	 * The rules, in order of precedence.
+	 * @return an unmodifiable list
+	 */
+	public List<Rule> getRules() {
+		return rules;
+	}
+
+	/**
+	 * Finds the rule applying to an entry.
+	 *
+	 * @param entryName the path of the entry within its archive
+	 * @return the first matching rule, or {@link Rule#NONE} if none matches
+	 */
+	public Rule getRule(final String entryName) {
+
+		if (combined == null) {
+			return Rule.NONE;
+		}
+		final Matcher matcher = combined.matcher(entryName);
+		if (matcher.matches()) {
+			for (int ri = 0; ri < ruleGroups.length; ri++) {
+				if (matcher.start(ruleGroups[ri]) >= 0) {
+					return rules.get(ri);
+				}
+			}
+		}
+		return Rule.NONE;
+	}
+
+	/**
+	 * Describes all the rules, one per line, in a normalized form.
+	 * @return the same for equal rules
+	 */
+	@Override
+	public String toString() {
+		return rules.stream().map(Rule::toString).collect(Collectors.joining(System.lineSeparator()));
+	}
+
+	/**
+	 * Converts a glob into an equivalent regular expression.
+	 *
+	 * @param glob see the class documentation for the supported syntax
+	 * @return a regular expression for the whole path
+	 */
+	static String globToRegex(final String glob) {
+
+		final StringBuilder regex = new StringBuilder();
+		String rest = glob;
+		if (rest.startsWith("/")) {
+			// anchored at the root
+			rest = rest.substring(1);
+		} else if (rest.indexOf('/') < 0) {
+			regex.append("(?:.*/)?");
+		}
+		int braces = 0;
+		for (int ci = 0; ci < rest.length(); ci++) {
+			final char cur = rest.charAt(ci);
+			switch (cur) {
+				case '*':
+					if (ci + 1 < rest.length() && rest.charAt(ci + 1) == '*') {
+						ci++;
+						if (ci + 1 < rest.length() && rest.charAt(ci + 1) == '/') {
+							ci++;
+							regex.append("(?:.*/)?");
+						} else {
+							regex.append(".*");
+						}
+					} else {
+						regex.append("[^/]*");
+					}
+					break;
+				case '?':
+					regex.append("[^/]");
+					break;
+				case '[':
+					final int end = rest.indexOf(']', ci + 2);
+					if (end < 0) {
+						throw new IllegalArgumentException("Unclosed character class in glob: " + glob);
+					}
+					regex.append('[');
+					int classStart = ci + 1;
+					if (rest.charAt(classStart) == '!') {
+						regex.append('^');
+						classStart++;
+					}
+					for (final char classChar : rest.substring(classStart, end).toCharArray()) {
+						if (classChar == '\\' || classChar == '[' || classChar == '&') {
+							regex.append('\\');
+						}
+						regex.append(classChar);
+					}
+					regex.append(']');
+					ci = end;
+					break;
+				case '{':
+					braces++;
+					regex.append("(?:");
+					break;
+				case '}':
+					if (braces == 0) {
+						throw new IllegalArgumentException("Unopened group in glob: " + glob);
+					}
+					braces--;
+					regex.append(')');
+					break;
+				case ',':
+					regex.append(braces > 0 ? "|" : ",");
+					break;
+				case '\\':
+					if (ci + 1 < rest.length()) {
+						ci++;
+						regex.append(Pattern.quote(String.valueOf(rest.charAt(ci))));
+					}
+					break;
+				default:
+					if ("().+|^$".indexOf(cur) >= 0) {
+						regex.append('\\');
+					}
+					regex.append(cur);
+			}
+		}
+		if (braces > 0) {
+			throw new IllegalArgumentException("Unclosed group in glob: " + glob);
+		}
+		if (rest.endsWith("/")) {
+			regex.append(".*");
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * A pattern and the actions for the entries matching it.
+	 * Each setting is {@code null} if the rule does not override it.
+	 */
+	public static final class Rule {
+
+		/** Overrides nothing. */
+		public static final Rule NONE = new Rule("", Pattern.compile(""), false, null, null, null, null, null);
+
+		private final String source;
+		private final Pattern pattern;
+		private final boolean raw;
+		private final Integer compressionLevel;
+		private final Boolean compression;
+		private final Boolean formatXml;
+		private final Boolean correctXml;
+		private final Boolean recursive;
+
+		private Rule(final String source, final Pattern pattern, final boolean raw,
+				final Boolean compression, final Integer compressionLevel,
+				final Boolean formatXml, final Boolean correctXml, final Boolean recursive)
+		{
+			this.source = source;
+			this.pattern = pattern;
+			this.raw = raw;
+			this.compression = compression;
+			this.compressionLevel = compressionLevel;
+			this.formatXml = formatXml;
+			this.correctXml = correctXml;
+			this.recursive = recursive;
+		}
+
+		/**
+		 * Parses a single rule.
+		 *
+		 * @param line the pattern, followed by the actions,
+		 *   all separated by white-space
+		 * @return the parsed rule
+		 * @throws IllegalArgumentException if the rule is invalid
+		 */
+		public static Rule parse(final String line) {
+
+			final String[] tokens = line.trim().split("\\s+");
+			if (tokens.length < 2) {
+				throw new IllegalArgumentException("A rule needs a pattern and at least one action: " + line);
+			}
+			final Pattern pattern;
+			try {
+				if (tokens[0].startsWith(REGEX_PREFIX)) {
+					pattern = Pattern.compile(tokens[0].substring(REGEX_PREFIX.length()), Pattern.DOTALL);
+				} else if (tokens[0].startsWith(GLOB_PREFIX)) {
+					pattern = Pattern.compile(globToRegex(tokens[0].substring(GLOB_PREFIX.length())), Pattern.DOTALL);
+				} else {
+					pattern = Pattern.compile(globToRegex(tokens[0]), Pattern.DOTALL);
+				}
+			} catch (final PatternSyntaxException exc) {
+				throw new IllegalArgumentException("Invalid pattern: " + exc.getMessage(), exc);
+			}
+			boolean raw = false;
+			Boolean compression = null;
+			Integer compressionLevel = null;
+			Boolean formatXml = null;
+			Boolean correctXml = null;
+			Boolean recursive = null;
+			for (int ti = 1; ti < tokens.length; ti++) {
+				final String action = tokens[ti];
+				if ("raw".equals(action)) {
+					raw = true;
+				} else if ("store".equals(action)) {
+					compression = false;
+				} else if ("deflate".equals(action)) {
+					compression = true;
+				} else if (action.startsWith("deflate=")) {
+					compression = true;
+					compressionLevel = parseLevel(action.substring("deflate=".length()));
+				} else if ("format-xml".equals(action)) {
+					formatXml = true;
+				} else if ("format-xml=rough".equals(action)) {
+					formatXml = true;
+					correctXml = false;
+				} else if ("format-xml=correct".equals(action)) {
+					formatXml = true;
+					correctXml = true;
+				} else if ("no-format-xml".equals(action)) {
+					formatXml = false;
+				} else if ("recurse".equals(action)) {
+					recursive = true;
+				} else if ("no-recurse".equals(action)) {
+					recursive = false;
+				} else {
+					throw new IllegalArgumentException("Unknown action: " + action);
+				}
+			}
+			return new Rule(String.join(" ", tokens), pattern, raw, compression, compressionLevel, formatXml, correctXml, recursive);
+		}
+
+		private static int parseLevel(final String level) {
+
+			try {
+				final int parsed = Integer.parseInt(level);
+				if (parsed >= Deflater.NO_COMPRESSION && parsed <= Deflater.BEST_COMPRESSION) {
+					return parsed;
+				}
+			} catch (final NumberFormatException exc) {
+				// reported below
+			}
+			throw new IllegalArgumentException("Compression level has to be from 0 to 9, but is " + level);
+		}
+
+		/**
+		 * Whether the content is passed through as it is,
+		 * without looking at it, formatting it or recursing into it.
+		 * @return default: {@code false}
+		 */
+		public boolean isRaw() {
+			return raw;
+		}
+
+		/**
+		 * Which compression method to use for the entry,
+		 * when re-zipping compressed.
+		 *
+		 * @param defaultMethod what to use if the rule does not specify it
+		 * @return {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+		 */
+		public int getCompressionMethod(final int defaultMethod) {
+			return compression == null ? defaultMethod : (compression ? ZipEntry.DEFLATED : ZipEntry.STORED);
+		}
+
+		/**
+		 * Which compression level to use for the entry,
+		 * when re-zipping compressed.
+		 *
+		 * @param defaultLevel what to use if the rule does not specify it
+		 * @return from 0 to 9, or {@link Deflater#DEFAULT_COMPRESSION}
+		 */
+		public int getCompressionLevel(final int defaultLevel) {
+			return compressionLevel == null ? defaultLevel : compressionLevel;
+		}
+
+		/**
+		 * Whether to pretty-print XML content.
+		 *
+		 * @param defaultValue what to use if the rule does not specify it
+		 * @return whether to format the entry, if it is XML
+		 */
+		public boolean isFormatXml(final boolean defaultValue) {
+			return formatXml == null ? defaultValue : formatXml;
+		}
+
+		/**
+		 * Whether to use <em>correct</em> or <em>rough and fast</em> pretty'fication.
+		 *
+		 * @param defaultValue what to use if the rule does not specify it
+		 * @return whether to use <em>correct</em> pretty'fication
+		 */
+		public boolean isCorrectXml(final boolean defaultValue) {
+			return correctXml == null ? defaultValue : correctXml;
+		}
+
+		/**
+		 * Whether to re-zip nested archives.
+		 *
+		 * @param defaultValue what to use if the rule does not specify it
+		 * @return whether to recurse into the entry, if it is an archive
+		 */
+		public boolean isRecursive(final boolean defaultValue) {
+			return recursive == null ? defaultValue : recursive;
+		}
+
+		@Override
+		public String toString() {
+			return source;
+		}
+	}
+}
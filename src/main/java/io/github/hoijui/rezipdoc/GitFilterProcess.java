@@ -0,0 +1,411 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Implements git's long-running filter process protocol (version 2),
+ * as configured through {@code filter.<driver>.process}.
+ * This allows git to re-zip all the files of a single git command
+ * with a single, warm JVM,
+ * instead of starting a new one for each file.
+ * If git supports it, smudging may be delayed,
+ * which allows us to re-zip multiple files in parallel.
+ *
+ * @see "https://git-scm.com/docs/gitattributes#_long_running_filter_process"
+ */
+@SuppressWarnings("WeakerAccess")
+public class GitFilterProcess {
+
+	private static final Logger LOGGER = Utils.getLogger(GitFilterProcess.class.getName());
+
+	private static final String CLIENT_WELCOME = "git-filter-client";
+	private static final String SERVER_WELCOME = "git-filter-server";
+	private static final String VERSION = "version=2";
+	private static final String CAPABILITY_PREFIX = "capability=";
+	private static final String COMMAND_CLEAN = "clean";
+	private static final String COMMAND_SMUDGE = "smudge";
+	private static final String COMMAND_LIST_AVAILABLE_BLOBS = "list_available_blobs";
+	private static final String CAPABILITY_DELAY = "delay";
+	private static final String KEY_CAN_DELAY = "can-delay";
+	private static final String KEY_COMMAND = "command";
+	private static final String KEY_PATHNAME = "pathname";
+	private static final String STATUS_SUCCESS = "status=success";
+	private static final String STATUS_ERROR = "status=error";
+	private static final String STATUS_DELAYED = "status=delayed";
+	/**
+	 * How many delayed files may wait for a free worker,
+	 * per worker thread.
+	 */
+	private static final int QUEUED_PER_THREAD = 2;
+
+	/**
+	 * Used for the clean command, or {@code null} if we do not clean.
+	 */
+	private final ReZip cleaner;
+	/**
+	 * Used for the smudge command, or {@code null} if we do not smudge.
+	 */
+	private final ReZip smudger;
+	/**
+	 * How many files may be smudged in parallel.
+	 */
+	private final int smudgeThreads;
+	private final byte[] packetBuffer;
+	/**
+	 * Holds the content of the file currently being filtered.
+	 * It is reused for all the files, except for the delayed ones.
+	 */
+	private SpillingOutputStream content;
+	/**
+	 * Whether git and we agreed on the delay capability.
+	 */
+	private boolean delay;
+	private ThreadPoolExecutor smudgeExecutor;
+	private CompletionService<DelayedBlob> smudgeCompletion;
+	/**
+	 * Number of delayed files whose processing is not finished yet.
+	 */
+	private int pendingBlobs;
+	/**
+	 * Finished delayed files, which were already announced to git as available,
+	 * by path.
+	 */
+	private final Map<String, DelayedBlob> availableBlobs;
+
+	/**
+	 * The result of smudging a file in the background.
+	 */
+	private static final class DelayedBlob {
+
+		private final String pathname;
+		private final SpillingOutputStream output;
+		private Exception failure;
+
+		DelayedBlob(final String pathname) {
+
+			this.pathname = pathname;
+			this.output = new SpillingOutputStream();
+			this.failure = null;
+		}
+	}
+
+	/**
+	 * Creates a filter process that uses the given re-zippers.
+	 *
+	 * @param cleaner used for the clean command (on add/commit),
+	 *   or {@code null} if we should not advertise this capability
+	 * @param smudger used for the smudge command (on checkout),
+	 *   or {@code null} if we should not advertise this capability
+	 * @param smudgeThreads how many files may be smudged in parallel;
+	 *   if this is greater then 1, we advertise the delay capability
+	 */
+	public GitFilterProcess(final ReZip cleaner, final ReZip smudger, final int smudgeThreads) {
+
+		this.cleaner = cleaner;
+		this.smudger = smudger;
+		this.smudgeThreads = smudgeThreads;
+		this.packetBuffer = new byte[PktLine.MAX_DATA_LENGTH];
+		this.content = new SpillingOutputStream();
+		this.delay = false;
+		this.pendingBlobs = 0;
+		this.availableBlobs = new HashMap<>();
+	}
+
+	/**
+	 * Creates a filter process that uses the given re-zippers,
+	 * and processes one file after the other.
+	 *
+	 * @param cleaner used for the clean command (on add/commit),
+	 *   or {@code null} if we should not advertise this capability
+	 * @param smudger used for the smudge command (on checkout),
+	 *   or {@code null} if we should not advertise this capability
+	 */
+	public GitFilterProcess(final ReZip cleaner, final ReZip smudger) {
+		this(cleaner, smudger, 1);
+	}
+
+	/**
+	 * Serves filter requests from git, until git closes our input.
+	 *
+	 * @param gitIn where git sends its requests to us (our stdin)
+	 * @param gitOut where we send our responses to git (our stdout)
+	 * @throws IOException if communication with git fails
+	 */
+	public void run(final InputStream gitIn, final OutputStream gitOut) throws IOException {
+
+		handshake(gitIn, gitOut);
+		if (delay) {
+			final int queueSize = smudgeThreads * QUEUED_PER_THREAD;
+			// If all workers are busy and the queue is full,
+			// we smudge the file ourselves, which limits the memory
+			// used for files that are waiting to be processed.
+			smudgeExecutor = new ThreadPoolExecutor(smudgeThreads, smudgeThreads,
+					0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(queueSize),
+					new ThreadPoolExecutor.CallerRunsPolicy());
+			smudgeCompletion = new ExecutorCompletionService<>(smudgeExecutor);
+		}
+		try {
+			for (Map<String, String> request = readRequest(gitIn); request != null; request = readRequest(gitIn)) {
+				handleRequest(request, gitIn, gitOut);
+				gitOut.flush();
+			}
+		} finally {
+			if (smudgeExecutor != null) {
+				smudgeExecutor.shutdownNow();
+			}
+			content.discard();
+			for (final DelayedBlob blob : availableBlobs.values()) {
+				blob.output.discard();
+			}
+		}
+	}
+
+	private void handshake(final InputStream gitIn, final OutputStream gitOut) throws IOException {
+
+		expectText(gitIn, CLIENT_WELCOME);
+		boolean versionSupported = false;
+		for (String line = PktLine.readText(gitIn, packetBuffer); line != null; line = PktLine.readText(gitIn, packetBuffer)) {
+			versionSupported |= VERSION.equals(line);
+		}
+		if (!versionSupported) {
+			throw new IOException("git does not support filter protocol " + VERSION);
+		}
+		PktLine.writeText(gitOut, SERVER_WELCOME);
+		PktLine.writeText(gitOut, VERSION);
+		PktLine.writeFlush(gitOut);
+		gitOut.flush();
+
+		boolean cleanSupported = false;
+		boolean smudgeSupported = false;
+		boolean delaySupported = false;
+		for (String line = PktLine.readText(gitIn, packetBuffer); line != null; line = PktLine.readText(gitIn, packetBuffer)) {
+			cleanSupported |= (CAPABILITY_PREFIX + COMMAND_CLEAN).equals(line);
+			smudgeSupported |= (CAPABILITY_PREFIX + COMMAND_SMUDGE).equals(line);
+			delaySupported |= (CAPABILITY_PREFIX + CAPABILITY_DELAY).equals(line);
+		}
+		if (cleanSupported && cleaner != null) {
+			PktLine.writeText(gitOut, CAPABILITY_PREFIX + COMMAND_CLEAN);
+		}
+		if (smudgeSupported && smudger != null) {
+			PktLine.writeText(gitOut, CAPABILITY_PREFIX + COMMAND_SMUDGE);
+			if (delaySupported && smudgeThreads > 1) {
+				PktLine.writeText(gitOut, CAPABILITY_PREFIX + CAPABILITY_DELAY);
+				delay = true;
+			}
+		}
+		PktLine.writeFlush(gitOut);
+		gitOut.flush();
+	}
+
+	private void expectText(final InputStream gitIn, final String expected) throws IOException {
+
+		final String actual = PktLine.readText(gitIn, packetBuffer);
+		if (!expected.equals(actual)) {
+			throw new IOException(String.format("Expected \"%s\" from git, but got \"%s\"", expected, actual));
+		}
+	}
+
+	/**
+	 * Reads the key-value pairs describing the next request.
+	 *
+	 * @return the request, or {@code null} if git closed the stream
+	 */
+	private Map<String, String> readRequest(final InputStream gitIn) throws IOException {
+
+		final int firstLength = PktLine.readPacket(gitIn, packetBuffer);
+		if (firstLength == PktLine.END_OF_STREAM) {
+			return null;
+		}
+		final Map<String, String> request = new LinkedHashMap<>();
+		int length = firstLength;
+		while (length != PktLine.FLUSH) {
+			if (length == PktLine.END_OF_STREAM) {
+				throw new IOException("Unexpected end of filter request");
+			}
+			final String line = PktLine.toText(packetBuffer, length);
+			final int separatorIdx = line.indexOf('=');
+			if (separatorIdx > 0) {
+				request.put(line.substring(0, separatorIdx), line.substring(separatorIdx + 1));
+			}
+			length = PktLine.readPacket(gitIn, packetBuffer);
+		}
+		return request;
+	}
+
+	private void handleRequest(final Map<String, String> request, final InputStream gitIn, final OutputStream gitOut)
+			throws IOException
+	{
+		final String command = request.get(KEY_COMMAND);
+		final String pathname = request.get(KEY_PATHNAME);
+		if (COMMAND_LIST_AVAILABLE_BLOBS.equals(command)) {
+			listAvailableBlobs(gitOut);
+			return;
+		}
+
+		final ReZip reZip;
+		if (COMMAND_CLEAN.equals(command)) {
+			reZip = cleaner;
+		} else if (COMMAND_SMUDGE.equals(command)) {
+			reZip = smudger;
+		} else {
+			reZip = null;
+		}
+		if (reZip == null) {
+			if (LOGGER.isLoggable(Level.WARNING)) {
+				LOGGER.warning(String.format("Unsupported filter command \"%s\"", command));
+			}
+			// NOTE We assume that unknown commands do not come with content
+			PktLine.writeText(gitOut, STATUS_ERROR);
+			PktLine.writeFlush(gitOut);
+			return;
+		}
+
+		content.reset();
+		PktLine.readContent(gitIn, content, packetBuffer);
+
+		final DelayedBlob availableBlob = availableBlobs.remove(pathname);
+		if (availableBlob != null) {
+			// git fetches a file we smudged in the background
+			writeDelayed(availableBlob, gitOut);
+		} else if (delay && reZip == smudger && "1".equals(request.get(KEY_CAN_DELAY))) {
+			delaySmudge(pathname);
+			PktLine.writeText(gitOut, STATUS_DELAYED);
+			PktLine.writeFlush(gitOut);
+		} else {
+			PktLine.writeText(gitOut, STATUS_SUCCESS);
+			PktLine.writeFlush(gitOut);
+			boolean success = true;
+			try (PktLine.ContentOutputStream contentOut = new PktLine.ContentOutputStream(gitOut)) {
+				reZip.reZip(content, contentOut);
+			} catch (final IOException | RuntimeException exc) {
+				// only this file fails, git goes on with the others
+				success = false;
+				if (LOGGER.isLoggable(Level.WARNING)) {
+					LOGGER.log(Level.WARNING, String.format("Failed to %s \"%s\"", command, pathname), exc);
+				}
+			}
+			writeContentEnd(success, gitOut);
+		}
+	}
+
+	private static void writeContentEnd(final boolean success, final OutputStream gitOut) throws IOException {
+
+		PktLine.writeFlush(gitOut);
+		if (success) {
+			// an empty list keeps the status as it was
+			PktLine.writeFlush(gitOut);
+		} else {
+			PktLine.writeText(gitOut, STATUS_ERROR);
+			PktLine.writeFlush(gitOut);
+		}
+	}
+
+	/**
+	 * Hands the current content over to a worker thread for smudging.
+	 */
+	private void delaySmudge(final String pathname) {
+
+		final SpillingOutputStream source = content;
+		// the worker owns the content buffer now
+		content = new SpillingOutputStream();
+		pendingBlobs++;
+		smudgeCompletion.submit(() -> {
+			final DelayedBlob blob = new DelayedBlob(pathname);
+			try {
+				smudger.reZip(source, blob.output);
+			} catch (final IOException | RuntimeException exc) {
+				blob.failure = exc;
+			} finally {
+				source.discard();
+			}
+			return blob;
+		});
+	}
+
+	/**
+	 * Tells git which delayed files are ready.
+	 * This blocks until at least one is,
+	 * unless there are no more pending ones.
+	 */
+	private void listAvailableBlobs(final OutputStream gitOut) throws IOException {
+
+		final List<DelayedBlob> finished = new ArrayList<>();
+		try {
+			if (pendingBlobs > 0) {
+				finished.add(smudgeCompletion.take().get());
+				for (Future<DelayedBlob> done = smudgeCompletion.poll(); done != null; done = smudgeCompletion.poll()) {
+					finished.add(done.get());
+				}
+			}
+		} catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for delayed files", exc);
+		} catch (final ExecutionException exc) {
+			throw new IOException("Failed to smudge a delayed file", exc.getCause());
+		}
+		pendingBlobs -= finished.size();
+
+		for (final DelayedBlob blob : finished) {
+			availableBlobs.put(blob.pathname, blob);
+			PktLine.writeText(gitOut, KEY_PATHNAME + '=' + blob.pathname);
+		}
+		PktLine.writeFlush(gitOut);
+		PktLine.writeText(gitOut, STATUS_SUCCESS);
+		PktLine.writeFlush(gitOut);
+	}
+
+	private static void writeDelayed(final DelayedBlob blob, final OutputStream gitOut) throws IOException {
+
+		if (blob.failure == null) {
+			PktLine.writeText(gitOut, STATUS_SUCCESS);
+			PktLine.writeFlush(gitOut);
+			try (PktLine.ContentOutputStream contentOut = new PktLine.ContentOutputStream(gitOut)) {
+				blob.output.writeTo(contentOut);
+			} finally {
+				blob.output.discard();
+			}
+			writeContentEnd(true, gitOut);
+		} else {
+			if (LOGGER.isLoggable(Level.WARNING)) {
+				LOGGER.log(Level.WARNING, String.format("Failed to smudge \"%s\"", blob.pathname), blob.failure);
+			}
+			blob.output.discard();
+			PktLine.writeText(gitOut, STATUS_ERROR);
+			PktLine.writeFlush(gitOut);
+		}
+	}
+}
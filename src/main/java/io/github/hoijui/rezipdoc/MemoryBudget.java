@@ -0,0 +1,105 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Limits how much heap memory all the {@link SpillingOutputStream}s
+ * sharing it may use in total.
+ * Once it is used up, further content gets spilled to disk.
+ */
+@SuppressWarnings("WeakerAccess")
+public class MemoryBudget {
+
+	private static final MemoryBudget DEFAULT = new MemoryBudget(Runtime.getRuntime().maxMemory() / 4);
+
+	private volatile long limit;
+	private final AtomicLong used;
+
+	/**
+	 * Creates a budget.
+	 *
+	 * @param limit how many bytes may be reserved in total
+	 */
+	public MemoryBudget(final long limit) {
+
+		this.limit = limit;
+		this.used = new AtomicLong(0);
+	}
+
+	/**
+	 * The budget used when none is specified explicitly.
+	 * @return a budget of a quarter of the maximum heap size, by default
+	 */
+	public static MemoryBudget getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * How many bytes may be reserved in total.
+	 * @return the limit of this budget
+	 */
+	public long getLimit() {
+		return limit;
+	}
+
+	/**
+	 * Sets how many bytes may be reserved in total.
+	 * Lowering it does not affect existing reservations.
+	 * @param limit see {@link #getLimit()}
+	 */
+	public void setLimit(final long limit) {
+		this.limit = limit;
+	}
+
+	/**
+	 * How many bytes are reserved currently.
+	 * @return the reserved part of this budget
+	 */
+	public long getUsed() {
+		return used.get();
+	}
+
+	/**
+	 * Reserves memory, if enough of it is left.
+	 *
+	 * @param bytes how much memory to reserve
+	 * @return whether the memory was reserved
+	 */
+	public boolean tryReserve(final long bytes) {
+
+		long current;
+		do {
+			current = used.get();
+			if (current + bytes > limit) {
+				return false;
+			}
+		} while (!used.compareAndSet(current, current + bytes));
+		return true;
+	}
+
+	/**
+	 * Gives back previously reserved memory.
+	 *
+	 * @param bytes how much memory to give back
+	 */
+	public void release(final long bytes) {
+		used.addAndGet(-bytes);
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Resolves external entities and DTDs of XML documents
+ * without ever touching the network.
+ * Public and system identifiers are looked up in a local
+ * <a href="https://www.oasis-open.org/committees/entity/spec.html">OASIS XML catalog</a>,
+ * of which only the {@code public}, {@code system} and {@code uri} entries are supported,
+ * each mapping to a local file.
+ * Local files within the directory of the catalog may also be referenced directly.
+ * Everything else resolves to empty content,
+ * which is enough for most documents that merely declare a DTD.
+ * The content of resolved files is cached, so each is read only once.
+ * It may be used by multiple threads concurrently,
+ * both with DOM/SAX and with StAX parsers.
+ */
+@SuppressWarnings("WeakerAccess")
+public class OfflineEntityResolver implements EntityResolver, XMLResolver {
+
+	private static final Logger LOGGER = Utils.getLogger(OfflineEntityResolver.class.getName());
+
+	private static final OfflineEntityResolver DEFAULT = new OfflineEntityResolver();
+	private static final byte[] EMPTY = new byte[0];
+
+	private final Path baseDir;
+	private final Map<String, Path> publicIds;
+	private final Map<String, Path> systemIds;
+	private final boolean ignoreExternal;
+	private final Map<Path, byte[]> cache;
+
+	/**
+	 * Creates an instance resolving entities listed in a catalog file.
+	 *
+	 * @param catalog the OASIS XML catalog file to read the entries from
+	 * @param ignoreExternal whether to not even resolve the entities listed in the catalog,
+	 *   but ignore external DTDs and entities altogether
+	 * @throws IOException if reading or parsing the catalog fails,
+	 *   or it refers to anything but local files
+	 */
+	public OfflineEntityResolver(final Path catalog, final boolean ignoreExternal) throws IOException {
+
+		this.baseDir = catalog.toAbsolutePath().getParent();
+		this.publicIds = new HashMap<>();
+		this.systemIds = new HashMap<>();
+		this.ignoreExternal = ignoreExternal;
+		this.cache = new ConcurrentHashMap<>();
+		readCatalog(catalog.toAbsolutePath());
+	}
+
+	/**
+	 * Creates an instance without catalog.
+	 *
+	 * @param ignoreExternal whether to also tell parsers not to load external DTDs at all,
+	 *   instead of having them resolved to empty content
+	 */
+	public OfflineEntityResolver(final boolean ignoreExternal) {
+
+		this.baseDir = null;
+		this.publicIds = Collections.emptyMap();
+		this.systemIds = Collections.emptyMap();
+		this.ignoreExternal = ignoreExternal;
+		this.cache = Collections.emptyMap();
+	}
+
+	/**
+	 * Creates an instance without catalog,
+	 * which resolves everything to empty content.
+	 */
+	public OfflineEntityResolver() {
+		this(false);
+	}
+
+	/**
+	 * The resolver used when none is specified explicitly.
+	 * @return a resolver without catalog
+	 */
+	public static OfflineEntityResolver getDefault() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Whether external DTDs and entities are ignored altogether.
+	 * Parsers should then be configured to not even load external DTDs.
+	 * @return whether everything resolves to empty content, even if listed in the catalog
+	 */
+	public boolean isIgnoreExternal() {
+		return ignoreExternal;
+	}
+
+	/**
+	 * Describes how entities get resolved, including all catalog entries.
+	 * @return the same for resolvers that resolve the same
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s ignoreExternal=%b publicIds=%s systemIds=%s",
+				OfflineEntityResolver.class.getSimpleName(), ignoreExternal,
+				new TreeMap<>(publicIds), new TreeMap<>(systemIds));
+	}
+
+	private void readCatalog(final Path catalog) throws IOException {
+
+		final NodeList entries;
+		try {
+			final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+			documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+			documentBuilderFactory.setNamespaceAware(true);
+			final DocumentBuilder documentBuilder = documentBuilderFactory.newDocumentBuilder();
+			// catalogs usually declare a DTD themselves
+			documentBuilder.setEntityResolver(new OfflineEntityResolver());
+			entries = documentBuilder.parse(catalog.toFile()).getDocumentElement().getChildNodes();
+		} catch (final ParserConfigurationException | SAXException exc) {
+			throw new IOException("Failed to parse XML catalog " + catalog, exc);
+		}
+		for (int ei = 0; ei < entries.getLength(); ei++) {
+			if (!(entries.item(ei) instanceof Element)) {
+				continue;
+			}
+			final Element entry = (Element) entries.item(ei);
+			final String kind = entry.getLocalName() == null ? entry.getTagName() : entry.getLocalName();
+			if ("public".equals(kind)) {
+				publicIds.put(entry.getAttribute("publicId"), toLocalFile(entry.getAttribute("uri")));
+			} else if ("system".equals(kind)) {
+				systemIds.put(entry.getAttribute("systemId"), toLocalFile(entry.getAttribute("uri")));
+			} else if ("uri".equals(kind)) {
+				systemIds.put(entry.getAttribute("name"), toLocalFile(entry.getAttribute("uri")));
+			} else if (LOGGER.isLoggable(Level.WARNING)) {
+				LOGGER.log(Level.WARNING, "Ignoring unsupported XML catalog entry: {0}", kind);
+			}
+		}
+	}
+
+	private Path toLocalFile(final String uri) throws IOException {
+
+		final URI resolved;
+		try {
+			resolved = baseDir.toUri().resolve(new URI(uri));
+		} catch (final URISyntaxException exc) {
+			throw new IOException("Invalid URI in XML catalog: " + uri, exc);
+		}
+		if (!"file".equals(resolved.getScheme())) {
+			throw new IOException("Only local files are supported in the XML catalog, but got: " + uri);
+		}
+		return Paths.get(resolved).normalize();
+	}
+
+	/**
+	 * Finds the local file of an entity,
+	 * either through the catalog, or because it is referenced directly,
+	 * and lies within the directory of the catalog.
+	 */
+	private Path findLocalFile(final String publicId, final String systemId) {
+
+		Path localFile = systemId == null ? null : systemIds.get(systemId);
+		if (localFile == null && publicId != null) {
+			localFile = publicIds.get(publicId);
+		}
+		if (localFile == null && baseDir != null && systemId != null && systemId.startsWith("file:")) {
+			try {
+				final Path referenced = Paths.get(new URI(systemId)).normalize();
+				if (referenced.startsWith(baseDir)) {
+					localFile = referenced;
+				}
+			} catch (final URISyntaxException | IllegalArgumentException exc) {
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Invalid system ID: " + systemId, exc);
+				}
+			}
+		}
+		return localFile;
+	}
+
+	/**
+	 * Returns the content of an external entity.
+	 *
+	 * @param publicId the public identifier of the entity, or {@code null}
+	 * @param systemId the (absolute) system identifier of the entity, or {@code null}
+	 * @return the content of the local file the entity resolves to,
+	 *   or empty content, if it does not resolve to any
+	 * @throws IOException if reading the local file fails
+	 */
+	public byte[] resolve(final String publicId, final String systemId) throws IOException {
+
+		if (ignoreExternal) {
+			return EMPTY;
+		}
+		final Path localFile = findLocalFile(publicId, systemId);
+		if (localFile == null) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, String.format("Not fetching external entity '%s' (%s)", systemId, publicId));
+			}
+			return EMPTY;
+		}
+		byte[] content = cache.get(localFile);
+		if (content == null) {
+			content = Files.readAllBytes(localFile);
+			cache.put(localFile, content);
+		}
+		return content;
+	}
+
+	@Override
+	public InputSource resolveEntity(final String publicId, final String systemId) throws IOException {
+
+		final InputSource source = new InputSource(new ByteArrayInputStream(resolve(publicId, systemId)));
+		source.setPublicId(publicId);
+		source.setSystemId(systemId);
+		return source;
+	}
+
+	@Override
+	public Object resolveEntity(final String publicID, final String systemID, final String baseURI,
+			final String namespace)
+			throws XMLStreamException
+	{
+		String systemId = systemID;
+		if (systemId != null && baseURI != null) {
+			try {
+				systemId = new URI(baseURI).resolve(new URI(systemId)).toString();
+			} catch (final URISyntaxException | IllegalArgumentException exc) {
+				// look it up as it is
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to resolve system ID " + systemID, exc);
+				}
+			}
+		}
+		try {
+			return new ByteArrayInputStream(resolve(publicID, systemId));
+		} catch (final IOException exc) {
+			throw new XMLStreamException("Failed to read external entity " + systemId, exc);
+		}
+	}
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Reads and writes git's <i>pkt-line</i> format,
+ * as used by the long-running filter process protocol.
+ * Each packet consists of a four digit hex length
+ * (including the four length bytes themselves) and the payload;
+ * the special length {@code 0000} denotes a <i>flush</i> packet.
+ *
+ * @see "https://git-scm.com/docs/protocol-common#_pkt_line_format"
+ */
+@SuppressWarnings("WeakerAccess")
+public final class PktLine {
+
+	/** Maximum number of payload bytes in a single packet. */
+	public static final int MAX_DATA_LENGTH = 65516;
+	/** Returned by {@link #readPacket(InputStream, byte[])} for a flush packet. */
+	public static final int FLUSH = -1;
+	/** Returned by {@link #readPacket(InputStream, byte[])} if the stream ended cleanly. */
+	public static final int END_OF_STREAM = -2;
+
+	private static final int HEADER_LENGTH = 4;
+	private static final byte[] FLUSH_PACKET = "0000".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	private PktLine() {
+	}
+
+	private static void readFully(final InputStream in, final byte[] buffer, final int off, final int length)
+			throws IOException
+	{
+		int read = 0;
+		while (read < length) {
+			final int n = in.read(buffer, off + read, length - read);
+			if (n < 0) {
+				throw new EOFException("Unexpected end of pkt-line stream");
+			}
+			read += n;
+		}
+	}
+
+	/**
+	 * Reads a single packet.
+	 *
+	 * @param in the source of the packet
+	 * @param buffer where the packets payload gets stored;
+	 *   has to be at least {@link #MAX_DATA_LENGTH} bytes long
+	 * @return the number of payload bytes read,
+	 *   {@link #FLUSH} in case of a flush packet, or
+	 *   {@link #END_OF_STREAM} if the stream ended before the packet started
+	 * @throws IOException if reading fails, or the packet is malformed
+	 */
+	public static int readPacket(final InputStream in, final byte[] buffer) throws IOException {
+
+		final int first = in.read();
+		if (first < 0) {
+			return END_OF_STREAM;
+		}
+		buffer[0] = (byte) first;
+		readFully(in, buffer, 1, HEADER_LENGTH - 1);
+		final int length;
+		try {
+			length = Integer.parseInt(new String(buffer, 0, HEADER_LENGTH, StandardCharsets.US_ASCII), 16);
+		} catch (final NumberFormatException exc) {
+			throw new IOException("Invalid pkt-line length header", exc);
+		}
+		if (length == 0) {
+			return FLUSH;
+		}
+		final int dataLength = length - HEADER_LENGTH;
+		if (dataLength < 0 || dataLength > MAX_DATA_LENGTH) {
+			throw new IOException("Invalid pkt-line length: " + length);
+		}
+		readFully(in, buffer, 0, dataLength);
+		return dataLength;
+	}
+
+	/**
+	 * Reads a single text packet, stripping the trailing line-feed.
+	 *
+	 * @param in the source of the packet
+	 * @param buffer used for reading; see {@link #readPacket(InputStream, byte[])}
+	 * @return the text content, or {@code null} in case of a flush packet
+	 * @throws IOException if reading fails, or the stream ended
+	 */
+	public static String readText(final InputStream in, final byte[] buffer) throws IOException {
+
+		final int length = readPacket(in, buffer);
+		if (length == END_OF_STREAM) {
+			throw new EOFException("Unexpected end of pkt-line stream");
+		} else if (length == FLUSH) {
+			return null;
+		}
+		return toText(buffer, length);
+	}
+
+	/**
+	 * Decodes the payload of a text packet, stripping the trailing line-feed.
+	 *
+	 * @param buffer contains the payload
+	 * @param length number of payload bytes
+	 * @return the text content
+	 */
+	public static String toText(final byte[] buffer, final int length) {
+
+		int textLength = length;
+		if (textLength > 0 && buffer[textLength - 1] == '\n') {
+			textLength--;
+		}
+		return new String(buffer, 0, textLength, StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * Reads data packets up to (and including) the next flush packet.
+	 *
+	 * @param in the source of the packets
+	 * @param content where the payload of all the packets gets written to
+	 * @param buffer used for reading; see {@link #readPacket(InputStream, byte[])}
+	 * @throws IOException if reading or writing fails, or the stream ended
+	 */
+	public static void readContent(final InputStream in, final OutputStream content, final byte[] buffer)
+			throws IOException
+	{
+		for (int length = readPacket(in, buffer); length != FLUSH; length = readPacket(in, buffer)) {
+			if (length == END_OF_STREAM) {
+				throw new EOFException("Unexpected end of pkt-line stream");
+			}
+			content.write(buffer, 0, length);
+		}
+	}
+
+	/**
+	 * Writes a single packet.
+	 *
+	 * @param out where to write the packet to
+	 * @param data contains the payload
+	 * @param off start of the payload in {@code data}
+	 * @param len length of the payload; at most {@link #MAX_DATA_LENGTH}
+	 * @throws IOException if writing fails
+	 */
+	public static void writePacket(final OutputStream out, final byte[] data, final int off, final int len)
+			throws IOException
+	{
+		if (len <= 0 || len > MAX_DATA_LENGTH) {
+			throw new IllegalArgumentException("Invalid pkt-line payload length: " + len);
+		}
+		final int length = len + HEADER_LENGTH;
+		final byte[] header = new byte[HEADER_LENGTH];
+		for (int idx = HEADER_LENGTH - 1, rest = length; idx >= 0; idx--, rest >>= 4) {
+			header[idx] = HEX_DIGITS[rest & 0xF];
+		}
+		out.write(header);
+		out.write(data, off, len);
+	}
+
+	/**
+	 * Writes a single text packet, terminated by a line-feed.
+	 *
+	 * @param out where to write the packet to
+	 * @param text the content of the packet, without a trailing line-feed
+	 * @throws IOException if writing fails
+	 */
+	public static void writeText(final OutputStream out, final String text) throws IOException {
+
+		final byte[] data = (text + '\n').getBytes(StandardCharsets.UTF_8);
+		writePacket(out, data, 0, data.length);
+	}
+
+	/**
+	 * Writes a flush packet.
+	 *
+	 * @param out where to write the packet to
+	 * @throws IOException if writing fails
+	 */
+	public static void writeFlush(final OutputStream out) throws IOException {
+		out.write(FLUSH_PACKET);
+	}
+
+	/**
+	 * Splits everything written to it into data packets.
+	 * Closing this stream writes out the last, partial packet,
+	 * but neither writes a flush packet nor closes the underlying stream.
+	 */
+	public static class ContentOutputStream extends OutputStream {
+
+		private final OutputStream out;
+		private final byte[] packet;
+		private int count;
+
+		public ContentOutputStream(final OutputStream out) {
+
+			this.out = out;
+			this.packet = new byte[MAX_DATA_LENGTH];
+			this.count = 0;
+		}
+
+		private void writePacket() throws IOException {
+
+			if (count > 0) {
+				PktLine.writePacket(out, packet, 0, count);
+				count = 0;
+			}
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+
+			if (count == packet.length) {
+				writePacket();
+			}
+			packet[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+
+			int pos = off;
+			int remaining = len;
+			while (remaining > 0) {
+				if (count == packet.length) {
+					writePacket();
+				}
+				final int chunk = Math.min(remaining, packet.length - count);
+				System.arraycopy(b, pos, packet, count, chunk);
+				count += chunk;
+				pos += chunk;
+				remaining -= chunk;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			writePacket();
+		}
+	}
+}
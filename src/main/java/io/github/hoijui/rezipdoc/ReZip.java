@@ -18,17 +18,39 @@
 package io.github.hoijui.rezipdoc;
 
 import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import java.util.zip.CRC32;
 import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 import java.util.zip.ZipOutputStream;
 
@@ -43,6 +65,12 @@ public class ReZip {
 
 	private static final Logger LOGGER = Utils.getLogger(ReZip.class.getName());
 
+	/**
+	 * The largest content of STORED entries written with placeholders
+	 * for size and CRC, that still fits into a local header without ZIP64.
+	 */
+	private static final long MAX_SEEK_BACK_SIZE = 0xFFFFFFFEL;
+
 	/**
 	 * Whether to re-pack the output ZIP with compression
 	 * (default: {@code false}).
@@ -65,6 +93,38 @@ public class ReZip {
 	 * (default: {@code false}).
 	 */
 	private final boolean formatXml;
+	/**
+	 * How to compress each entry, if {@link #compression} is enabled
+	 * (default: {@code null}, which means: deflate everything with the default level).
+	 */
+	private CompressionPreset compressionPreset;
+	/**
+	 * Used to pretty-print XML content, if {@link #formatXml} is enabled.
+	 * It is kept for the whole life-time of this instance,
+	 * so it may be reused for many archives.
+	 */
+	private XmlFormatter xmlFormatter;
+	/**
+	 * How many entries to re-pack concurrently,
+	 * if the input is randomly accessible
+	 * (default: {@code 1}).
+	 */
+	private int parallelism;
+	/**
+	 * Where to look up and store results, if anywhere
+	 * (default: {@code null}).
+	 */
+	private ResultCache cache;
+	/**
+	 * Overrides the settings above for specific entries
+	 * (default: none).
+	 */
+	private EntryRules rules;
+	/**
+	 * Derived from {@link #xmlFormatter}, for entries whose rule requires
+	 * the other kind of pretty'fication, created when first needed.
+	 */
+	private XmlFormatter otherXmlFormatter;
 
 	/**
 	 * Stores settings about how to re-zip.
@@ -83,6 +143,12 @@ public class ReZip {
 		this.nullifyTimes = nullifyTimes;
 		this.recursive = recursive;
 		this.formatXml = formatXml;
+		this.compressionPreset = null;
+		this.xmlFormatter = new XmlFormatter();
+		this.parallelism = 1;
+		this.cache = null;
+		this.rules = EntryRules.getNone();
+		this.otherXmlFormatter = null;
 	}
 
 	public ReZip() {
@@ -123,21 +189,208 @@ public class ReZip {
 		return formatXml;
 	}
 
+	/**
+	 * How each entry gets compressed, if {@link #isCompression() enabled}.
+	 * With a preset, content whose beginning hardly deflates,
+	 * and nested archives that get re-zipped (and thus compressed) themselves,
+	 * are stored instead of deflated, and the rest gets deflated
+	 * with the level of the preset.
+	 * {@link #getRules() Rules} still take precedence.
+	 * @return default: {@code null}, which means:
+	 *   deflate everything with the default level
+	 */
+	public CompressionPreset getCompressionPreset() {
+		return compressionPreset;
+	}
+
+	/**
+	 * Sets how each entry gets compressed.
+	 * @param compressionPreset see {@link #getCompressionPreset()}
+	 */
+	public void setCompressionPreset(final CompressionPreset compressionPreset) {
+		this.compressionPreset = compressionPreset;
+	}
+
+	/**
+	 * What is used to pretty-print XML content, if {@link #isFormatXml()} is enabled.
+	 * @return default: {@code new XmlFormatter()}
+	 */
+	public XmlFormatter getXmlFormatter() {
+		return xmlFormatter;
+	}
+
+	/**
+	 * Sets what is used to pretty-print XML content.
+	 * It may be used by multiple threads concurrently.
+	 * @param xmlFormatter see {@link #getXmlFormatter()}
+	 */
+	public synchronized void setXmlFormatter(final XmlFormatter xmlFormatter) {
+
+		this.xmlFormatter = xmlFormatter;
+		// it was derived from the previous one
+		this.otherXmlFormatter = null;
+	}
+
+	/**
+	 * How many entries to re-pack concurrently.
+	 * With values greater then {@code 1}, files get indexed
+	 * by their central directory, and re-packed from there.
+	 * Input that is only sequentially accessible, like stdin,
+	 * gets inflated, re-packed and written in a pipeline instead,
+	 * see {@link #reZipPipelined(ZipInputStream, ZipOutputStream)}.
+	 * The output is the same as when re-packing sequentially.
+	 * @return default: {@code 1}
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets how many entries to re-pack concurrently.
+	 * @param parallelism see {@link #getParallelism()}
+	 */
+	public void setParallelism(final int parallelism) {
+
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism has to be at least 1, but is " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Where re-packed ZIPs are cached.
+	 * Using a cache requires the complete input to be available
+	 * before re-packing, which for stdin means spooling it
+	 * to a temporary file first.
+	 * @return default: {@code null}, which means no caching
+	 */
+	public ResultCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets where re-packed ZIPs are cached.
+	 * @param cache see {@link #getCache()}
+	 */
+	public void setCache(final ResultCache cache) {
+		this.cache = cache;
+	}
+
+	/**
+	 * The rules overriding the settings of this instance for specific entries.
+	 * @return default: {@link EntryRules#getNone()}
+	 */
+	public EntryRules getRules() {
+		return rules;
+	}
+
+	/**
+	 * Sets the rules overriding the settings of this instance for specific entries.
+	 * @param rules see {@link #getRules()}
+	 */
+	public void setRules(final EntryRules rules) {
+		this.rules = rules;
+	}
+
+	/**
+	 * Returns what pretty-prints the XML content of an entry.
+	 */
+	private synchronized XmlFormatter getXmlFormatter(final EntryRules.Rule rule) {
+
+		final XmlFormatter formatter = getXmlFormatter();
+		final boolean correct = rule.isCorrectXml(formatter.isCorrect());
+		if (correct == formatter.isCorrect()) {
+			return formatter;
+		}
+		if (otherXmlFormatter == null || otherXmlFormatter.isCorrect() != correct) {
+			otherXmlFormatter = formatter.withCorrect(correct);
+		}
+		return otherXmlFormatter;
+	}
+
+	/**
+	 * Which compression method to use for an entry.
+	 *
+	 * @param head the beginning of the content,
+	 *   or {@code null} if it was not looked at
+	 */
+	private int getCompressionMethod(final EntryRules.Rule rule, final boolean reZipNested,
+			final BufferedOutputStream head)
+	{
+		if (!isCompression()) {
+			return ZipEntry.STORED;
+		}
+		boolean worthDeflating = true;
+		if (compressionPreset != null && head != null) {
+			worthDeflating = !reZipNested && compressionPreset.isCompressible(head.toByteBuffer());
+		}
+		return rule.getCompressionMethod(worthDeflating ? ZipEntry.DEFLATED : ZipEntry.STORED);
+	}
+
+	/**
+	 * Which compression level to use for an entry.
+	 */
+	private int getCompressionLevel(final EntryRules.Rule rule) {
+
+		if (!isCompression()) {
+			return Deflater.DEFAULT_COMPRESSION;
+		}
+		return rule.getCompressionLevel(compressionPreset == null
+				? Deflater.DEFAULT_COMPRESSION
+				: compressionPreset.getLevel());
+	}
+
+	/**
+	 * Describes everything influencing the output,
+	 * for the keys of the {@link #getCache() cache}.
+	 */
+	private String getCacheSettings() {
+		return String.format("%s compression=%b nullifyTimes=%b recursive=%b formatXml=%b xmlFormatter=[%s] compressionPreset=%s rules=[%s]",
+				ReZip.class.getSimpleName(), compression, nullifyTimes, recursive, formatXml,
+				getXmlFormatter(), compressionPreset, rules);
+	}
+
 	private static void printUsage(final Level logLevel) {
 
 		final String name = ReZip.class.getSimpleName();
 		if (LOGGER.isLoggable(logLevel)) {
 			Utils.printUsageHeader(LOGGER, logLevel, name);
 			LOGGER.log(logLevel, "Usage:");
-			LOGGER.log(logLevel, String.format("\t%s [--compressed|--uncompressed] [--nullify-times] [--non-recursive] <in.zip >out.zip",
+			LOGGER.log(logLevel, String.format("\t%s [--compressed [--compression-preset <preset>]|--uncompressed] [--nullify-times] [--non-recursive] [--format-xml [--streaming-xml] [--canonical-xml]] [--rules <file>] [--threads <n>] [--cache <dir> [--cache-size <MiB>]] [--memory-budget <MiB>] <in.zip >out.zip",
 					name));
+			LOGGER.log(logLevel, String.format("\t%s --process [--no-clean|--no-smudge] [--compression-preset <preset>] [--threads <n>] [--cache <dir> [--cache-size <MiB>]] [--memory-budget <MiB>] [--nullify-times] [--non-recursive] [--format-xml [--streaming-xml] [--canonical-xml]] [--rules <file>]",
+					name));
+			LOGGER.log(logLevel, String.format("\t%s --cache <dir> --cache-stats", name));
 			LOGGER.log(logLevel, String.format("\t%s --write-suffixes", name));
 			LOGGER.log(logLevel, "Options:");
 			LOGGER.log(logLevel, "\t--compressed       re-zip compressed");
+			LOGGER.log(logLevel, "\t--compression-preset <speed|balanced|size>");
+			LOGGER.log(logLevel, "\t                   (with --compressed, or for smudge) store what looks incompressible,");
+			LOGGER.log(logLevel, "\t                   and deflate the rest with a fast, the default or the best level");
 			LOGGER.log(logLevel, "\t--uncompressed     (noop) re-zip uncompressed (this is the default, but we may want to explicitly state it on hte command line");
 			LOGGER.log(logLevel, "\t--nullify-times    set creation-, last-access- and last-modified-times of the re-zipped archives entries to 0");
 			LOGGER.log(logLevel, "\t--non-recursive    do not re-zip archives within archives");
 			LOGGER.log(logLevel, "\t--format-xml       pretty-print (reformat) XML content");
+			LOGGER.log(logLevel, "\t--streaming-xml    (with --format-xml) pretty-print XML in a single pass with little memory,");
+			LOGGER.log(logLevel, "\t                   instead of through a DOM of the whole document");
+			LOGGER.log(logLevel, "\t--canonical-xml    (with --format-xml) also order attributes and namespace declarations,");
+			LOGGER.log(logLevel, "\t                   and drop redundant ones, in a single pass, like --streaming-xml");
+			LOGGER.log(logLevel, "\t--rules <file>     override the settings above for the entries matching the patterns in this file,");
+			LOGGER.log(logLevel, "\t                   with lines like \"Thumbnails/ raw store\"; see EntryRules for the syntax");
+			LOGGER.log(logLevel, "\t--process          run as a long-running git filter process (filter.<driver>.process),");
+			LOGGER.log(logLevel, "\t                   re-zipping uncompressed on clean and compressed on smudge");
+			LOGGER.log(logLevel, "\t--no-clean         (with --process) do not offer the clean capability to git");
+			LOGGER.log(logLevel, "\t--no-smudge        (with --process) do not offer the smudge capability to git");
+			LOGGER.log(logLevel, "\t--threads <n>      re-pack up to n entries in parallel (default: 1);");
+			LOGGER.log(logLevel, "\t                   with --process: clean with up to n threads, and smudge up to n files");
+			LOGGER.log(logLevel, "\t                   in parallel, if git supports delaying (default: number of CPUs)");
+			LOGGER.log(logLevel, "\t--cache <dir>      look up and store re-zipped archives in this directory,");
+			LOGGER.log(logLevel, "\t                   which may be shared by concurrent processes");
+			LOGGER.log(logLevel, String.format("\t--cache-size <MiB> evict least recently used archives from the cache above this size (default: %d)",
+					ResultCache.DEFAULT_MAX_BYTES / (1024 * 1024)));
+			LOGGER.log(logLevel, "\t--cache-stats      print the hit rate and size of the cache, and exits");
+			LOGGER.log(logLevel, String.format("\t--memory-budget <MiB> buffer entries in memory up to this total, and spill to temporary files beyond (default: %d)",
+					MemoryBudget.getDefault().getLimit() / (1024 * 1024)));
 			LOGGER.log(logLevel, "\t--write-suffixes   writes suffix files next to the JAR, populated with defaults, and exits");
 		}
 	}
@@ -156,7 +409,21 @@ public class ReZip {
 		boolean nullifyTimes = false;
 		boolean recursive = true;
 		boolean formatXml = false;
-		for (final String arg : argv) {
+		boolean streamingXml = false;
+		boolean canonicalXml = false;
+		boolean process = false;
+		boolean clean = true;
+		boolean smudge = true;
+		// 0 means: not specified
+		int threads = 0;
+		Path cacheDir = null;
+		long cacheMaxBytes = ResultCache.DEFAULT_MAX_BYTES;
+		boolean cacheStats = false;
+		EntryRules rules = EntryRules.getNone();
+		CompressionPreset compressionPreset = null;
+		final Iterator<String> argsIt = Arrays.asList(argv).iterator();
+		while (argsIt.hasNext()) {
+			final String arg = argsIt.next();
 			if ("--help".equals(arg) || "-h".equals(arg)) {
 				printUsage(Level.INFO);
 				return;
@@ -171,6 +438,40 @@ public class ReZip {
 				recursive = false;
 			} else if ("--format-xml".equals(arg)) {
 				formatXml = true;
+			} else if ("--streaming-xml".equals(arg)) {
+				streamingXml = true;
+			} else if ("--canonical-xml".equals(arg)) {
+				canonicalXml = true;
+			} else if ("--compression-preset".equals(arg) && argsIt.hasNext()) {
+				try {
+					compressionPreset = CompressionPreset.parse(argsIt.next());
+				} catch (final IllegalArgumentException exc) {
+					printUsage(Level.WARNING);
+					System.exit(1);
+				}
+			} else if ("--rules".equals(arg) && argsIt.hasNext()) {
+				try {
+					rules = EntryRules.read(Paths.get(argsIt.next()));
+				} catch (final IllegalArgumentException exc) {
+					LOGGER.log(Level.SEVERE, exc.getMessage());
+					System.exit(1);
+				}
+			} else if ("--process".equals(arg)) {
+				process = true;
+			} else if ("--no-clean".equals(arg)) {
+				clean = false;
+			} else if ("--no-smudge".equals(arg)) {
+				smudge = false;
+			} else if ("--threads".equals(arg) && argsIt.hasNext()) {
+				threads = Integer.parseInt(argsIt.next());
+			} else if ("--cache".equals(arg) && argsIt.hasNext()) {
+				cacheDir = Paths.get(argsIt.next());
+			} else if ("--cache-size".equals(arg) && argsIt.hasNext()) {
+				cacheMaxBytes = Long.parseLong(argsIt.next()) * 1024 * 1024;
+			} else if ("--cache-stats".equals(arg)) {
+				cacheStats = true;
+			} else if ("--memory-budget".equals(arg) && argsIt.hasNext()) {
+				MemoryBudget.getDefault().setLimit(Long.parseLong(argsIt.next()) * 1024 * 1024);
 			} else if ("--write-suffixes".equals(arg)) {
 				try {
 					Utils.writeSuffixesFiles();
@@ -185,7 +486,58 @@ public class ReZip {
 			}
 		}
 
-		new ReZip(compressed, nullifyTimes, recursive, formatXml).reZip();
+		final ResultCache cache = cacheDir == null ? null : new ResultCache(cacheDir, cacheMaxBytes);
+		if (cacheStats) {
+			if (cache == null) {
+				printUsage(Level.WARNING);
+				System.exit(1);
+			}
+			LOGGER.log(Level.INFO, cache.getStats().toString());
+			return;
+		}
+
+		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", true, streamingXml);
+		xmlFormatter.setCanonical(canonicalXml);
+		try {
+			if (process) {
+				final ReZip cleaner = clean ? new ReZip(false, nullifyTimes, recursive, formatXml) : null;
+				final ReZip smudger = smudge ? new ReZip(true, nullifyTimes, recursive, formatXml) : null;
+				final int processThreads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+				if (cleaner != null) {
+					// git waits for each file to be cleaned, so we pipeline within it;
+					// with a single CPU, this stays sequential, as the pipeline is slower there
+					cleaner.setParallelism(processThreads);
+					cleaner.setXmlFormatter(xmlFormatter);
+					cleaner.setCache(cache);
+					cleaner.setRules(rules);
+				}
+				if (smudger != null) {
+					smudger.setXmlFormatter(xmlFormatter);
+					smudger.setCache(cache);
+					smudger.setRules(rules);
+					smudger.setCompressionPreset(compressionPreset);
+				}
+				final boolean direct = isStandardStreamsDirect();
+				final InputStream gitIn = direct ? ChannelInputStream.openStandardInput() : System.in;
+				final OutputStream gitOut = direct ? ChannelOutputStream.openStandardOutput()
+						: new java.io.BufferedOutputStream(System.out, PktLine.MAX_DATA_LENGTH);
+				new GitFilterProcess(cleaner, smudger, processThreads).run(gitIn, gitOut);
+				gitOut.flush();
+			} else {
+				final ReZip reZip = new ReZip(compressed, nullifyTimes, recursive, formatXml);
+				if (threads > 0) {
+					reZip.setParallelism(threads);
+				}
+				reZip.setXmlFormatter(xmlFormatter);
+				reZip.setCache(cache);
+				reZip.setRules(rules);
+				reZip.setCompressionPreset(compressionPreset);
+				reZip.reZip();
+			}
+		} finally {
+			// end the native zlib objects now, rather than whenever they get collected
+			ZlibPool.getDefault().clear();
+		}
 	}
 
 	/**
@@ -195,19 +547,653 @@ public class ReZip {
 	 */
 	public void reZip() throws IOException {
 
-		try (ZipInputStream zipIn = new ZipInputStream(System.in);
-				ZipOutputStream zipOut = new ZipOutputStream(System.out))
-		{
+		final boolean direct = isStandardStreamsDirect();
+		final InputStream in = direct ? ChannelInputStream.openStandardInput() : System.in;
+		final OutputStream out = direct ? ChannelOutputStream.openStandardOutput() : System.out;
+		if (getCache() != null) {
+			// The complete input has to be hashed before caching
+			final Path spoolFile = Files.createTempFile(ReZip.class.getSimpleName() + "_stdin_", ".zip");
+			try (InputStream toClose = in) {
+				Files.copy(in, spoolFile, StandardCopyOption.REPLACE_EXISTING);
+				reZip(spoolFile, out);
+			} finally {
+				deleteSpoolFile(spoolFile);
+			}
+		} else {
+			try (ZipInputStream zipIn = ZlibPool.getDefault().createZipInputStream(in);
+					ZipOutputStream zipOut = ZlibPool.getDefault().createZipOutputStream(out))
+			{
+				reZipStream(zipIn, zipOut);
+			}
+		}
+	}
+
+	/**
+	 * Re-packs a ZIP that is only sequentially accessible,
+	 * through a pipeline if more than one thread may be used.
+	 */
+	private void reZipStream(final ZipInputStream zipIn, final ZipOutputStream zipOut) throws IOException {
+
+		if (getParallelism() > 1) {
+			reZipPipelined(zipIn, zipOut);
+		} else {
 			reZip(zipIn, zipOut);
 		}
 	}
 
+	/**
+	 * Deletes a temporary file, which may fail on some systems
+	 * while the file is still memory-mapped by a {@link ZipIndex},
+	 * as a mapping only goes away once it gets garbage collected.
+	 */
+	private static void deleteSpoolFile(final Path spoolFile) {
+
+		try {
+			Files.deleteIfExists(spoolFile);
+		} catch (final IOException exc) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Failed to delete spool file; trying again on exit", exc);
+			}
+			spoolFile.toFile().deleteOnExit();
+		}
+	}
+
+	/**
+	 * Whether to read and write the standard streams
+	 * through channels on their file descriptors,
+	 * using large buffers and gathering writes,
+	 * rather than through {@link System#in} and {@link System#out}.
+	 * {@link System#out} is a {@link java.io.PrintStream},
+	 * which synchronizes every single write,
+	 * and {@link ZipOutputStream} writes its headers byte by byte.
+	 * This is only safe if nothing replaced the standard streams,
+	 * so it is limited to when this is the main class of the JVM.
+	 */
+	private static boolean isStandardStreamsDirect() {
+		return Utils.isMainClass(ReZip.class);
+	}
+
+	/**
+	 * Re-packs a ZIP file into an other file.
+	 * As the output is seekable, STORED entries do not have to be buffered
+	 * when re-packed sequentially;
+	 * their size and CRC are filled in after their content was written.
+	 *
+	 * @param zipInFile the source ZIP
+	 * @param zipOutFile the destination ZIP; it gets replaced if it exists
+	 * @throws IOException if any input or output fails
+	 */
 	public void reZip(final Path zipInFile, final Path zipOutFile) throws IOException {
 
-		try (ZipInputStream zipIn = new ZipInputStream(new BufferedInputStream(Files.newInputStream(zipInFile)));
-				ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(zipOutFile)))
+		try (OutputStream out = new SeekBackOutputStream(FileChannel.open(zipOutFile,
+				StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING)))
 		{
-			reZip(zipIn, zipOut);
+			reZip(zipInFile, out);
+		}
+	}
+
+	/**
+	 * Re-packs a ZIP that is available in memory.
+	 *
+	 * @param source the complete input ZIP
+	 * @param target where to write the re-packed ZIP to
+	 * @throws IOException if any input or output fails
+	 */
+	public void reZip(final SpillingOutputStream source, final OutputStream target) throws IOException {
+
+		// Larger content can not be mapped, so it misses out on these shortcuts
+		final ByteBuffer sourceBytes = source.size() <= ChunkedOutputStream.MAX_ARRAY_SIZE ? source.toByteBuffer() : null;
+		if (sourceBytes != null && isCanonical(sourceBytes)) {
+			// git often re-cleans files it cleaned before
+			source.writeTo(target);
+			return;
+		}
+		if (getCache() == null || sourceBytes == null) {
+			reZipUncached(source, target);
+		} else {
+			getCache().apply(ResultCache.key(getCacheSettings(), sourceBytes), target,
+					cacheTarget -> reZipUncached(source, cacheTarget));
+		}
+	}
+
+	private void reZipUncached(final SpillingOutputStream source, final OutputStream target) throws IOException {
+
+		try (ZipInputStream zipIn = ZlibPool.getDefault().createZipInputStream(source.createInputStream());
+				ZipOutputStream zipOut = ZlibPool.getDefault().createZipOutputStream(target))
+		{
+			reZipStream(zipIn, zipOut);
+		}
+	}
+
+	private static ZipIndex openIndex(final Path zipInFile) throws IOException {
+
+		try {
+			return new ZipIndex(zipInFile);
+		} catch (final ZipException exc) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Can not index ZIP file; falling back to sequential re-packing", exc);
+			}
+			return null;
+		}
+	}
+
+	private void reZip(final Path zipInFile, final OutputStream out) throws IOException {
+
+		if (isCanonical(zipInFile)) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Input is canonical already; copying it unchanged");
+			}
+			try (OutputStream target = out) {
+				Files.copy(zipInFile, target);
+			}
+			return;
+		}
+		if (getCache() == null) {
+			reZipUncached(zipInFile, out);
+		} else {
+			getCache().apply(ResultCache.key(getCacheSettings(), zipInFile), out,
+					cacheTarget -> reZipUncached(zipInFile, cacheTarget));
+			out.close();
+		}
+	}
+
+	private void reZipUncached(final Path zipInFile, final OutputStream out) throws IOException {
+
+		ZipIndex zipIndex = openIndex(zipInFile);
+		if (zipIndex != null && getParallelism() <= 1 && zipIndex.isSequentiallyReadable()) {
+			// sequential re-packing streams more, and buffers less
+			zipIndex.close();
+			zipIndex = null;
+		}
+		if (zipIndex == null) {
+			try (ZipInputStream zipIn = ZlibPool.getDefault().createZipInputStream(new BufferedInputStream(Files.newInputStream(zipInFile)));
+					ZipOutputStream zipOut = ZlibPool.getDefault().createZipOutputStream(out))
+			{
+				if (getParallelism() > 1) {
+					reZipPipelined(zipIn, zipOut);
+				} else {
+					reZip(zipIn, zipOut, out instanceof SeekBackOutputStream ? (SeekBackOutputStream) out : null);
+				}
+			}
+		} else {
+			try (ZipIndex zipIn = zipIndex;
+					ZipOutputStream zipOut = ZlibPool.getDefault().createZipOutputStream(out))
+			{
+				reZip(zipIn, zipOut);
+			}
+		}
+	}
+
+	private boolean isCanonical(final Path zipInFile) throws IOException {
+
+		if (isCompression()) {
+			return false;
+		}
+		try (FileChannel channel = FileChannel.open(zipInFile, StandardOpenOption.READ)) {
+			return channel.size() <= Integer.MAX_VALUE
+					&& isCanonical(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+		}
+	}
+
+	/**
+	 * Checks whether a ZIP is exactly what re-packing it would produce,
+	 * in which case it may be used as-is.
+	 * Only the headers are looked at, plus the first few bytes of each entry,
+	 * and the headers of nested archives (if {@link #isRecursive()}),
+	 * which makes this a lot cheaper then re-packing.
+	 * The CRCs in the headers are trusted without verification.
+	 * With {@link #isCompression()}, or if any entry would get XML formatted,
+	 * the ZIP is never considered canonical,
+	 * as that could only be checked by actually re-packing it.
+	 *
+	 * @param zip the complete ZIP, from its position to its limit
+	 * @return {@code true} if re-packing is known to reproduce the input
+	 */
+	public boolean isCanonical(final ByteBuffer zip) {
+
+		if (isCompression()) {
+			return false;
+		}
+		try {
+			return isCanonicalArchive(zip.slice().order(ByteOrder.LITTLE_ENDIAN));
+		} catch (final IOException exc) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Failed to check whether the ZIP is canonical", exc);
+			}
+			return false;
+		}
+	}
+
+	private static ByteBuffer slice(final ByteBuffer buffer, final int offset, final int length) {
+
+		final ByteBuffer duplicate = buffer.duplicate();
+		duplicate.position(offset);
+		duplicate.limit(offset + length);
+		return duplicate.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	/**
+	 * Simulates re-packing the given ZIP with empty entries,
+	 * and compares the resulting headers with the original ones,
+	 * after filling in the CRCs, sizes and offsets of the actual content.
+	 */
+	private boolean isCanonicalArchive(final ByteBuffer zip) throws IOException {
+
+		final int endOffset = zip.limit() - ZipIndex.END_HEADER_LENGTH;
+		if (endOffset < 0 || zip.getInt(endOffset) != ZipIndex.END_SIG) {
+			return false;
+		}
+		final long cenOffset = zip.getInt(endOffset + 16) & 0xFFFFFFFFL;
+		if (cenOffset > endOffset) {
+			return false;
+		}
+
+		final List<ZipEntry> entries = new ArrayList<>();
+		final List<Integer> offsets = new ArrayList<>();
+		final BufferedOutputStream expected = new BufferedOutputStream();
+		try (ZipOutputStream zipOut = ZlibPool.getDefault().createZipOutputStream(expected)) {
+			int offset = 0;
+			while (offset < cenOffset) {
+				if (offset + ZipIndex.LOC_HEADER_LENGTH > cenOffset || zip.getInt(offset) != ZipIndex.LOC_SIG) {
+					return false;
+				}
+				final int dataOffset = offset + ZipIndex.LOC_HEADER_LENGTH
+						+ (zip.getShort(offset + 26) & 0xFFFF) + (zip.getShort(offset + 28) & 0xFFFF);
+				if (dataOffset > cenOffset) {
+					return false;
+				}
+				final byte[] header = new byte[dataOffset - offset];
+				slice(zip, offset, header.length).get(header);
+				final ZipEntry entry = ZipIndex.parseLocalHeader(header);
+				final long size = entry.getSize();
+				if (entry.getMethod() != ZipEntry.STORED || size < 0 || size >= 0xFFFFFFFFL
+						|| dataOffset + size > cenOffset)
+				{
+					return false;
+				}
+				final ByteBuffer content = slice(zip, dataOffset, (int) size);
+				if (!isCanonicalContent(entry, content)) {
+					return false;
+				}
+
+				// The header of an empty entry differs only in CRC and sizes
+				final ZipEntry outEntry = passThroughEntry(entry, ZipEntry.STORED);
+				final ZipEntry emptyEntry = new ZipEntry(outEntry);
+				emptyEntry.setSize(0);
+				emptyEntry.setCompressedSize(0);
+				emptyEntry.setCrc(0);
+				expected.reset();
+				zipOut.putNextEntry(emptyEntry);
+				zipOut.closeEntry();
+				final ByteBuffer expectedHeader = ByteBuffer.allocate(expected.size()).order(ByteOrder.LITTLE_ENDIAN);
+				expectedHeader.put(expected.toByteBuffer());
+				expectedHeader.flip();
+				expectedHeader.putInt(14, (int) outEntry.getCrc());
+				expectedHeader.putInt(18, (int) size);
+				expectedHeader.putInt(22, (int) size);
+				if (!expectedHeader.equals(slice(zip, offset, header.length))) {
+					return false;
+				}
+
+				entries.add(outEntry);
+				offsets.add(offset);
+				offset = dataOffset + (int) size;
+			}
+			if (entries.size() >= 0xFFFF) {
+				// ZipOutputStream would write ZIP64 records
+				return false;
+			}
+
+			// Compare the central directory and the end record
+			expected.reset();
+			zipOut.finish();
+			final ByteBuffer expectedCen = ByteBuffer.allocate(expected.size()).order(ByteOrder.LITTLE_ENDIAN);
+			expectedCen.put(expected.toByteBuffer());
+			expectedCen.flip();
+			int cenPos = 0;
+			for (int ie = 0; ie < entries.size(); ie++) {
+				final ZipEntry outEntry = entries.get(ie);
+				expectedCen.putInt(cenPos + 16, (int) outEntry.getCrc());
+				expectedCen.putInt(cenPos + 20, (int) outEntry.getSize());
+				expectedCen.putInt(cenPos + 24, (int) outEntry.getSize());
+				expectedCen.putInt(cenPos + 42, offsets.get(ie));
+				cenPos += ZipIndex.CEN_HEADER_LENGTH + (expectedCen.getShort(cenPos + 28) & 0xFFFF)
+						+ (expectedCen.getShort(cenPos + 30) & 0xFFFF) + (expectedCen.getShort(cenPos + 32) & 0xFFFF);
+			}
+			expectedCen.putInt(cenPos + 16, (int) cenOffset);
+			return expectedCen.equals(slice(zip, (int) cenOffset, zip.limit() - (int) cenOffset));
+		}
+	}
+
+	/**
+	 * Checks whether the content of an entry would be re-packed unchanged.
+	 */
+	private boolean isCanonicalContent(final ZipEntry entry, final ByteBuffer content) throws IOException {
+
+		final EntryRules.Rule rule = getRules().getRule(entry.getName());
+		if (rule.isRaw()) {
+			return true;
+		}
+		final BufferedOutputStream head = new BufferedOutputStream(EntryClassifier.PREFIX_BYTES);
+		final byte[] headBytes = new byte[Math.min(content.remaining(), EntryClassifier.PREFIX_BYTES)];
+		content.duplicate().get(headBytes);
+		head.write(headBytes);
+		final EntryClassifier.Type type = EntryClassifier.getDefault().classify(entry.getName(), entry.getSize(), head);
+		if (rule.isFormatXml(isFormatXml()) && type == EntryClassifier.Type.XML) {
+			return false;
+		}
+		return !(rule.isRecursive(isRecursive()) && type == EntryClassifier.Type.ARCHIVE)
+				|| isCanonicalArchive(content);
+	}
+
+	/**
+	 * Reads a randomly accessible ZIP and writes to an other ZIP,
+	 * re-packing up to {@link #getParallelism()} entries concurrently.
+	 * The output is the same as the one of
+	 * {@link #reZip(ZipInputStream, ZipOutputStream)}.
+	 *
+	 * @param zipIn    the source ZIP
+	 * @param zipOut   the destination ZIP
+	 * @throws IOException if any input or output fails
+	 */
+	public void reZip(final ZipIndex zipIn, final ZipOutputStream zipOut)
+			throws IOException
+	{
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		// This limits how many re-packed entries are held in memory
+		final int maxPending = 2 * getParallelism();
+		final ForkJoinPool pool = new ForkJoinPool(getParallelism());
+		final Deque<ForkJoinTask<ReZippedEntry>> pending = new ArrayDeque<>(maxPending);
+		try {
+			final Iterator<ZipIndex.Entry> entries = zipIn.getEntries().iterator();
+			while (entries.hasNext() || !pending.isEmpty()) {
+				while (entries.hasNext() && pending.size() < maxPending) {
+					final ZipIndex.Entry indexEntry = entries.next();
+					pending.add(pool.submit(() -> reZipEntry(zipIn, indexEntry)));
+				}
+				// Write the entries in their original order
+				final ReZippedEntry reZipped = Utils.await(pending.remove());
+				zipOut.setLevel(reZipped.compressionLevel);
+				zipOut.putNextEntry(reZipped.entry);
+				if (reZipped.content == null) {
+					try (InputStream rawIn = zipIn.getRawInputStream(reZipped.indexEntry)) {
+						Utils.transferTo(rawIn, zipOut, buffer);
+					}
+				} else {
+					try {
+						reZipped.content.writeTo(zipOut);
+					} finally {
+						reZipped.content.discard();
+					}
+				}
+				zipOut.closeEntry();
+			}
+		} finally {
+			pool.shutdownNow();
+			discardPending(pending);
+			BufferPool.getDefault().release(buffer);
+		}
+	}
+
+	/**
+	 * Releases the buffers of entries that were re-packed,
+	 * but will not be written anymore, because of a failure.
+	 */
+	private static void discardPending(final Collection<ForkJoinTask<ReZippedEntry>> pending) {
+
+		for (final ForkJoinTask<ReZippedEntry> task : pending) {
+			try {
+				final ReZippedEntry reZipped = task.join();
+				if (reZipped.content != null) {
+					reZipped.content.discard();
+				}
+			} catch (final Exception exc) {
+				// we are failing already
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to discard a re-packed entry", exc);
+				}
+			}
+		}
+	}
+
+	private ReZippedEntry reZipEntry(final ZipIndex zipIn, final ZipIndex.Entry indexEntry)
+			throws IOException
+	{
+		final ZipEntry entry = zipIn.readLocalEntry(indexEntry);
+		final EntryRules.Rule rule = getRules().getRule(entry.getName());
+		// ZipInputStream knows the size after reading the content at the latest
+		entry.setSize(indexEntry.getSize());
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		// Only STORED content may be copied raw when writing,
+		// as inflating it there would happen sequentially
+		final boolean passThrough = indexEntry.getMethod() == ZipEntry.STORED;
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		Packing packing = null;
+		try (InputStream entryIn = zipIn.getInputStream(indexEntry)) {
+			packing = reZipEntry(entry, entryIn, rule, passThrough, false, false, buffer, entryBuffer);
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			if (packing == null || !packing.complete) {
+				entryBuffer.discard();
+			}
+		}
+		if (packing.complete) {
+			return new ReZippedEntry(indexEntry, entry, packing.compressionLevel, entryBuffer.getRaw());
+		}
+		return new ReZippedEntry(indexEntry, passThroughEntry(entry, packing.compressionMethod),
+				packing.compressionLevel, null);
+	}
+
+	/**
+	 * Reads a ZIP that is only sequentially accessible, and writes to an other ZIP,
+	 * in a pipeline of stages that run concurrently:
+	 * A reader thread inflates one entry after the other into a buffer,
+	 * up to {@link #getParallelism()} workers re-pack the buffered entries,
+	 * and the calling thread writes them in their original order.
+	 * The reader is held back while {@code 2 * getParallelism()} entries,
+	 * or half of the {@link MemoryBudget} worth of inflated content,
+	 * wait to be written.
+	 * The output is the same as the one of
+	 * {@link #reZip(ZipInputStream, ZipOutputStream)}.
+	 *
+	 * @param zipIn    the source ZIP; it must not be used by anyone else
+	 *   until this returns
+	 * @param zipOut   the destination ZIP
+	 * @throws IOException if any input or output fails
+	 */
+	public void reZipPipelined(final ZipInputStream zipIn, final ZipOutputStream zipOut)
+			throws IOException
+	{
+		final long maxPendingBytes = Math.max(1, MemoryBudget.getDefault().getLimit() / 2);
+		final BoundedTaskQueue<ReZippedEntry> pending = new BoundedTaskQueue<>(2 * getParallelism(), maxPendingBytes);
+		final ForkJoinPool pool = new ForkJoinPool(getParallelism());
+		final Thread reader = new Thread(() -> readPipelined(zipIn, pool, pending),
+				ReZip.class.getSimpleName() + "-reader");
+		reader.setDaemon(true);
+		reader.start();
+		try {
+			for (ForkJoinTask<ReZippedEntry> task = pending.take(); task != null; task = pending.take()) {
+				final ReZippedEntry reZipped = Utils.await(task);
+				try {
+					zipOut.setLevel(reZipped.compressionLevel);
+					zipOut.putNextEntry(reZipped.entry);
+					reZipped.content.writeTo(zipOut);
+					zipOut.closeEntry();
+				} finally {
+					reZipped.content.discard();
+				}
+			}
+		} finally {
+			final List<ForkJoinTask<ReZippedEntry>> remaining = pending.abort();
+			// The reader stops at the next entry, and discards what it holds
+			joinUninterruptibly(reader);
+			discardPending(remaining);
+			pool.shutdown();
+		}
+	}
+
+	private static void joinUninterruptibly(final Thread thread) {
+
+		boolean interrupted = false;
+		while (thread.isAlive()) {
+			try {
+				thread.join();
+			} catch (final InterruptedException exc) {
+				interrupted = true;
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/**
+	 * The reader stage of {@link #reZipPipelined(ZipInputStream, ZipOutputStream)},
+	 * inflating the entries, and submitting them for re-packing.
+	 */
+	private void readPipelined(final ZipInputStream zipIn, final ForkJoinPool pool,
+			final BoundedTaskQueue<ReZippedEntry> pending)
+	{
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		try {
+			while (pending.awaitRoom()) {
+				final ZipEntry entry = zipIn.getNextEntry();
+				if (entry == null) {
+					pending.finish();
+					return;
+				}
+				// ZipInputStream fills in size and CRC while reading the content,
+				// and the sequential re-packing sees them as they were before
+				final ZipEntry headerEntry = new ZipEntry(entry);
+				final SpillingOutputStream source = new SpillingOutputStream();
+				try {
+					Utils.transferTo(zipIn, source, buffer);
+					zipIn.closeEntry();
+				} catch (final IOException | RuntimeException exc) {
+					source.discard();
+					throw exc;
+				}
+				final ForkJoinTask<ReZippedEntry> task = pool.submit(() -> reZipEntry(headerEntry, source));
+				if (!pending.add(task, source.size())) {
+					discardPending(Collections.singletonList(task));
+					return;
+				}
+			}
+		} catch (final InterruptedException exc) {
+			pending.fail(new InterruptedIOException("Interrupted while waiting to read the next entry"));
+		} catch (final Throwable exc) {
+			pending.fail(exc);
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+	}
+
+	/**
+	 * The worker stage of {@link #reZipPipelined(ZipInputStream, ZipOutputStream)},
+	 * re-packing a single entry from its inflated content,
+	 * which it takes ownership of.
+	 */
+	private ReZippedEntry reZipEntry(final ZipEntry entry, final SpillingOutputStream source)
+			throws IOException
+	{
+		final EntryRules.Rule rule = getRules().getRule(entry.getName());
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		Packing packing = null;
+		try (InputStream entryIn = source.createInputStream()) {
+			packing = reZipEntry(entry, entryIn, rule, true, false, false, buffer, entryBuffer);
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			if (packing == null || !packing.complete) {
+				entryBuffer.discard();
+			}
+			if (packing == null || packing.complete) {
+				source.discard();
+			}
+		}
+		if (packing.complete) {
+			return new ReZippedEntry(null, entry, packing.compressionLevel, entryBuffer.getRaw());
+		}
+		// Content passed through is written from the inflated source as a whole
+		return new ReZippedEntry(null, passThroughEntry(entry, packing.compressionMethod),
+				packing.compressionLevel, source);
+	}
+
+	/**
+	 * A re-packed entry, ready to be written to the output ZIP.
+	 */
+	private static final class ReZippedEntry {
+
+		/**
+		 * Where to copy the raw content from, if {@link #content} is {@code null};
+		 * {@code null} when re-packing from a stream.
+		 */
+		private final ZipIndex.Entry indexEntry;
+		private final ZipEntry entry;
+		private final int compressionLevel;
+		/**
+		 * The re-packed content,
+		 * or {@code null} if the raw content is to be copied unchanged.
+		 */
+		private final SpillingOutputStream content;
+
+		ReZippedEntry(final ZipIndex.Entry indexEntry, final ZipEntry entry, final int compressionLevel,
+				final SpillingOutputStream content)
+		{
+			this.indexEntry = indexEntry;
+			this.entry = entry;
+			this.compressionLevel = compressionLevel;
+			this.content = content;
+		}
+	}
+
+	/**
+	 * How an entry gets written to the output ZIP.
+	 */
+	private static final class Packing {
+
+		private final int compressionMethod;
+		private final int compressionLevel;
+		/**
+		 * Whether the whole content was buffered,
+		 * or the rest of it is left to the caller.
+		 */
+		private final boolean complete;
+		/**
+		 * Whether the caller has to pretty-print the content while writing it,
+		 * if not {@link #complete}.
+		 */
+		private final boolean formatXml;
+		/**
+		 * Whether the caller has to re-pack the nested archive while writing it,
+		 * if not {@link #complete}.
+		 */
+		private final boolean reZipNested;
+
+		Packing(final int compressionMethod, final int compressionLevel, final boolean complete,
+				final boolean formatXml, final boolean reZipNested)
+		{
+			this.compressionMethod = compressionMethod;
+			this.compressionLevel = compressionLevel;
+			this.complete = complete;
+			this.formatXml = formatXml;
+			this.reZipNested = reZipNested;
+		}
+
+		/**
+		 * Creates the packing for content that is written by the caller.
+		 */
+		static Packing streamed(final int compressionMethod, final int compressionLevel,
+				final boolean formatXml, final boolean reZipNested)
+		{
+			return new Packing(compressionMethod, compressionLevel, false, formatXml, reZipNested);
+		}
+
+		/**
+		 * Creates the packing for content that was buffered as a whole.
+		 */
+		static Packing buffered(final int compressionMethod, final int compressionLevel) {
+			return new Packing(compressionMethod, compressionLevel, true, false, false);
 		}
 	}
 
@@ -221,68 +1207,385 @@ public class ReZip {
 	public void reZip(final ZipInputStream zipIn, final ZipOutputStream zipOut)
 			throws IOException
 	{
-		final int compressionMethod = isCompression() ? ZipEntry.DEFLATED : ZipEntry.STORED;
-		final byte[] buffer = new byte[8192];
-		final BufferedOutputStream uncompressedOutRaw = new BufferedOutputStream();
-		final CRC32 checksum = new CRC32();
-		final CheckedOutputStream uncompressedOutChecked = new CheckedOutputStream(uncompressedOutRaw, checksum);
-		reZip(zipIn, zipOut, compressionMethod, buffer, uncompressedOutRaw, checksum, uncompressedOutChecked);
+		reZip(zipIn, zipOut, null);
+	}
+
+	/**
+	 * Reads a ZIP and writes to an other ZIP.
+	 *
+	 * @param zipIn    the source ZIP
+	 * @param zipOut   the destination ZIP
+	 * @param seekBack the file {@code zipOut} writes to directly, if any,
+	 *   which allows to write STORED entries without buffering them
+	 * @throws IOException if any input or output fails
+	 */
+	private void reZip(final ZipInputStream zipIn, final ZipOutputStream zipOut,
+			final SeekBackOutputStream seekBack)
+			throws IOException
+	{
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		try {
+			reZip(zipIn, zipOut, seekBack, buffer, entryBuffer);
+		} finally {
+			entryBuffer.discard();
+			BufferPool.getDefault().release(buffer);
+		}
 	}
 
 	private void reZip(
 			final ZipInputStream zipIn,
 			final ZipOutputStream zipOut,
-			final int compressionMethod,
+			final SeekBackOutputStream seekBack,
 			final byte[] buffer,
-			final BufferedOutputStream uncompressedOutRaw,
-			final CRC32 checksum,
-			final CheckedOutputStream uncompressedOutChecked)
+			final EntryBuffer entryBuffer)
 			throws IOException
 	{
-		final XmlFormatter xmlFormatter = new XmlFormatter();
 		for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
-			uncompressedOutRaw.reset();
-			checksum.reset();
+			final EntryRules.Rule rule = getRules().getRule(entry.getName());
+			final Packing packing = reZipEntry(entry, zipIn, rule, true, true, seekBack != null,
+					buffer, entryBuffer);
 
-			// Copy file from zipIn into uncompressed, check-summed output stream
-			Utils.transferTo(zipIn, uncompressedOutChecked, buffer);
+			zipOut.setLevel(packing.compressionLevel);
+			if (packing.complete) {
+				zipOut.putNextEntry(entry);
+				entryBuffer.getRaw().writeTo(zipOut);
+				zipOut.closeEntry();
+			} else {
+				final ZipEntry outEntry = passThroughEntry(entry, packing.compressionMethod);
+				if (packing.compressionMethod == ZipEntry.STORED
+						&& (packing.formatXml || packing.reZipNested || outEntry.getSize() < 0 || outEntry.getCrc() < 0))
+				{
+					writeSeekBack(zipIn, zipOut, seekBack, outEntry, rule, packing, buffer, entryBuffer);
+				} else {
+					zipOut.putNextEntry(outEntry);
+					writeStreamed(zipIn, zipOut, rule, packing, buffer, entryBuffer);
+					zipOut.closeEntry();
+				}
+			}
 			zipIn.closeEntry();
+		}
+	}
 
-			// If we found a ZIP in this ZIP, and we want to recursively filter, then do so
-			if (isFormatXml() && Utils.isXml(entry.getName(), entry.getSize(), uncompressedOutRaw)) {
-				// XML file: pretty-print the data to stdout
-				final InputStream source = uncompressedOutRaw.createInputStream(true);
-				uncompressedOutRaw.reset();
-				xmlFormatter.prettify(source, uncompressedOutRaw, buffer);
-			} else if (isRecursive() && Utils.isZip(entry.getName(), entry.getSize(), uncompressedOutRaw)) {
-				final BufferedOutputStream subUncompressedOutRaw = new BufferedOutputStream();
-				final CRC32 subChecksum = new CRC32();
-				final CheckedOutputStream subUncompressedOutChecked = new CheckedOutputStream(subUncompressedOutRaw, subChecksum);
-				try (ZipInputStream zipInRec = new ZipInputStream(uncompressedOutRaw.createInputStream(true));
-						ZipOutputStream zipOutRec = new ZipOutputStream(uncompressedOutChecked))
-				{
-					uncompressedOutRaw.reset();
-					checksum.reset();
-					reZip(zipInRec, zipOutRec, compressionMethod, buffer, subUncompressedOutRaw, subChecksum, subUncompressedOutChecked);
+	/**
+	 * Writes a STORED entry of yet unknown size and CRC, without buffering it.
+	 * {@link ZipOutputStream} requires both up front for STORED entries,
+	 * so they start out as placeholders, and once the content is written,
+	 * they get filled in, both in the entry and in the local header in the file.
+	 * The placeholder size is chosen to not require ZIP64,
+	 * so the local header keeps its length;
+	 * this limits the size of the content to just below 4 GiB.
+	 * As the size of transformed content, or of content of unknown size,
+	 * can not be bounded up front, it is counted while being written,
+	 * and crossing the limit fails with a {@link ZipException},
+	 * before anything is written that would not fit into the local header.
+	 * The result is the same as if size and CRC had been known up front.
+	 */
+	private void writeSeekBack(
+			final ZipInputStream zipIn,
+			final ZipOutputStream zipOut,
+			final SeekBackOutputStream seekBack,
+			final ZipEntry outEntry,
+			final EntryRules.Rule rule,
+			final Packing packing,
+			final byte[] buffer,
+			final EntryBuffer entryBuffer)
+			throws IOException
+	{
+		final long localHeaderOffset = seekBack.position();
+		outEntry.setSize(MAX_SEEK_BACK_SIZE);
+		outEntry.setCompressedSize(MAX_SEEK_BACK_SIZE);
+		outEntry.setCrc(0);
+		zipOut.putNextEntry(outEntry);
+		final long dataOffset = seekBack.position();
+		final CRC32 checksum = new CRC32();
+		final OutputStream limited = new FilterOutputStream(zipOut) {
+
+			private long written = 0;
+
+			@Override
+			public void write(final int b) throws IOException {
+				write(new byte[] {(byte) b}, 0, 1);
+			}
+
+			@Override
+			public void write(final byte[] b, final int off, final int len) throws IOException {
+
+				if (written + len > MAX_SEEK_BACK_SIZE) {
+					throw new ZipException(String.format(
+							"Content of STORED entry \"%s\" exceeds %d bytes, which is the most that can be"
+									+ " written without knowing its size up front",
+							outEntry.getName(), MAX_SEEK_BACK_SIZE));
 				}
+				written += len;
+				out.write(b, off, len);
 			}
 
-			// Create the ZIP entry for destination ZIP
-			entry.setSize(uncompressedOutRaw.size());
-			entry.setCrc(checksum.getValue());
-			entry.setMethod(compressionMethod);
-			// Unknown compressed size
-			entry.setCompressedSize(-1);
-			if (isNullifyTimes()) {
-				entry.setTime(0);
-				entry.setCreationTime(FileTime.fromMillis(0));
-				entry.setLastAccessTime(FileTime.fromMillis(0));
-				entry.setLastModifiedTime(FileTime.fromMillis(0));
+			@Override
+			public void close() {
+				// NOTE We do explicitly NOT close the underlying stream,
+				//      as it continues with the next entry
 			}
+		};
+		writeStreamed(zipIn, new CheckedOutputStream(limited, checksum), rule, packing, buffer, entryBuffer);
+		final long size = seekBack.position() - dataOffset;
+		if (size > MAX_SEEK_BACK_SIZE) {
+			// only if something wrote to the file past us
+			throw new ZipException(String.format("Content of STORED entry \"%s\" is too large: %d bytes",
+					outEntry.getName(), size));
+		}
+		// ZipOutputStream keeps using this very entry object,
+		// to check the content against, and for the central directory
+		outEntry.setSize(size);
+		outEntry.setCompressedSize(size);
+		outEntry.setCrc(checksum.getValue());
+		zipOut.closeEntry();
 
-			zipOut.putNextEntry(entry);
-			uncompressedOutRaw.writeTo(zipOut);
-			zipOut.closeEntry();
+		// CRC, compressed size and size are at offset 14 of the local header
+		final ByteBuffer sizes = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+		sizes.putInt((int) checksum.getValue());
+		sizes.putInt((int) size);
+		sizes.putInt((int) size);
+		seekBack.overwrite(localHeaderOffset + 14, sizes.array());
+	}
+
+	/**
+	 * Writes the content of an entry that was not buffered as a whole,
+	 * made of the already buffered beginning, and the rest still to be read,
+	 * transforming it on the way, if required.
+	 * Only as much as the transformation needs is held in memory.
+	 */
+	private void writeStreamed(
+			final ZipInputStream zipIn,
+			final OutputStream target,
+			final EntryRules.Rule rule,
+			final Packing packing,
+			final byte[] buffer,
+			final EntryBuffer entryBuffer)
+			throws IOException
+	{
+		final SpillingOutputStream prefix = entryBuffer.getRaw();
+		if (packing.formatXml) {
+			try (InputStream source = EntryClassifier.continueAfterPrefix(prefix, zipIn)) {
+				// only the rough formatter gets here, which fails on output only
+				getXmlFormatter(rule).prettifyOrFail(source, target, buffer);
+			}
+		} else if (packing.reZipNested) {
+			// The nested archive is re-packed straight into this entry,
+			// entry by entry, through a buffer of the next deeper level
+			final EntryBuffer nestedBuffer = entryBuffer.getNested();
+			try (ZipInputStream zipInRec = ZlibPool.getDefault().createZipInputStream(
+							EntryClassifier.continueAfterPrefix(prefix, zipIn));
+					ZipOutputStream zipOutRec = ZlibPool.getDefault().createZipOutputStream(
+							new FilterOutputStream(target) {
+								@Override
+								public void write(final byte[] b, final int off, final int len)
+										throws IOException
+								{
+									out.write(b, off, len);
+								}
+
+								@Override
+								public void close() {
+									// NOTE We do explicitly NOT close the underlying stream,
+									//      as it continues with the next entry
+								}
+							}))
+			{
+				reZip(zipInRec, zipOutRec, null, buffer, nestedBuffer);
+			}
+		} else {
+			// Pass the content through unchanged
+			prefix.writeTo(target);
+			Utils.transferTo(zipIn, target, buffer);
+		}
+	}
+
+	/**
+	 * Re-packs the content of a single entry into a buffer,
+	 * and adjusts the entry to describe the re-packed content.
+	 * The type of the content is decided from its beginning only.
+	 * If allowed, and the entry needs no transformation,
+	 * only the beginning of the content is buffered, and the rest is left
+	 * to be passed through unchanged by the caller,
+	 * using {@link #passThroughEntry(ZipEntry, int)}.
+	 * STORED output requires the size and CRC to be known up front for this.
+	 * If also allowed, the same goes for content that needs to be transformed,
+	 * as long as the output is DEFLATED,
+	 * for which {@link ZipOutputStream} writes size and CRC after the content,
+	 * or the output is a file to which they can be written afterwards,
+	 * except for XML to be formatted correctly, which may fail half-way,
+	 * and then gets written as it was.
+	 * Content the rule declares <em>raw</em> is not looked at.
+	 * The compression method and level are chosen here as well,
+	 * as they may depend on the beginning of the content.
+	 *
+	 * @return how to write the entry, and whether the whole content was buffered
+	 */
+	private Packing reZipEntry(
+			final ZipEntry entry,
+			final InputStream entryIn,
+			final EntryRules.Rule rule,
+			final boolean allowPassThrough,
+			final boolean allowStreamedTransform,
+			final boolean seekBack,
+			final byte[] buffer,
+			final EntryBuffer entryBuffer)
+			throws IOException
+	{
+		entryBuffer.reset();
+		final SpillingOutputStream uncompressedOutRaw = entryBuffer.getRaw();
+		final OutputStream uncompressedOutChecked = entryBuffer.getChecked();
+
+		final boolean formatXmlEntry;
+		final boolean reZipNested;
+		final int compressionMethod;
+		if (rule.isRaw()) {
+			formatXmlEntry = false;
+			reZipNested = false;
+			compressionMethod = getCompressionMethod(rule, false, null);
+		} else {
+			EntryClassifier.readPrefix(entryIn, uncompressedOutChecked, buffer);
+			final BufferedOutputStream head = uncompressedOutRaw.getHead();
+			final EntryClassifier.Type type = EntryClassifier.getDefault().classify(
+					entry.getName(), entry.getSize(), head);
+			formatXmlEntry = rule.isFormatXml(isFormatXml()) && type == EntryClassifier.Type.XML;
+			reZipNested = rule.isRecursive(isRecursive()) && type == EntryClassifier.Type.ARCHIVE;
+			compressionMethod = getCompressionMethod(rule, reZipNested, head);
+		}
+		final int compressionLevel = getCompressionLevel(rule);
+		final boolean sizeLater = compressionMethod == ZipEntry.DEFLATED
+				|| (seekBack && entry.getSize() < MAX_SEEK_BACK_SIZE);
+		if (allowPassThrough && !formatXmlEntry && !reZipNested
+				&& (sizeLater || (entry.getSize() >= 0 && entry.getCrc() >= 0)))
+		{
+			return Packing.streamed(compressionMethod, compressionLevel, false, false);
+		}
+		// Only the rough XML formatter never fails half-way;
+		// the others need the whole content at hand, to start over with it
+		if (allowStreamedTransform && sizeLater
+				&& !(formatXmlEntry && getXmlFormatter(rule).isCorrect()))
+		{
+			return Packing.streamed(compressionMethod, compressionLevel, formatXmlEntry, reZipNested);
+		}
+
+		// Copy the rest of the file from zipIn into uncompressed, check-summed output stream
+		Utils.transferTo(entryIn, uncompressedOutChecked, buffer);
+
+		// If we found a ZIP in this ZIP, and we want to recursively filter, then do so
+		if (formatXmlEntry) {
+			// XML file: pretty-print the data to stdout
+			try (InputStream source = entryBuffer.detach()) {
+				source.mark(Integer.MAX_VALUE);
+				final InputStream formatterIn = new FilterInputStream(source) {
+					@Override
+					public void close() {
+						// NOTE We do explicitly NOT close the underlying stream,
+						//      as it may still be required for the fallback
+					}
+				};
+				try {
+					getXmlFormatter(rule).prettifyOrFail(formatterIn, uncompressedOutChecked, buffer);
+				} catch (final IOException exc) {
+					if (LOGGER.isLoggable(Level.WARNING)) {
+						LOGGER.log(Level.WARNING, String.format(
+								"Failed to pretty print \"%s\"; fallback to carbon-copy", entry.getName()), exc);
+					}
+					// In case of failure of pretty-printing, use the XML as-is,
+					// instead of whatever was already written of it
+					entryBuffer.reset();
+					source.reset();
+					Utils.transferTo(source, uncompressedOutChecked, buffer);
+				}
+			}
+		} else if (reZipNested) {
+			// The nested archive is read from the detached content,
+			// and re-packed straight back into this entries buffer
+			final EntryBuffer nestedBuffer = entryBuffer.getNested();
+			try (ZipInputStream zipInRec = ZlibPool.getDefault().createZipInputStream(entryBuffer.detach());
+					ZipOutputStream zipOutRec = ZlibPool.getDefault().createZipOutputStream(uncompressedOutChecked))
+			{
+				reZip(zipInRec, zipOutRec, null, buffer, nestedBuffer);
+			} finally {
+				nestedBuffer.discard();
+			}
+		}
+
+		finishEntry(entry, uncompressedOutRaw.size(), entryBuffer.getCrc(), compressionMethod);
+		return Packing.buffered(compressionMethod, compressionLevel);
+	}
+
+	/**
+	 * Creates the destination entry for content that is passed through unchanged,
+	 * taking over size and CRC from the source header, if known.
+	 * This has to be a copy, because {@link ZipInputStream}
+	 * still uses the source entry while reading the rest of the content.
+	 */
+	private ZipEntry passThroughEntry(final ZipEntry entry, final int compressionMethod) {
+
+		final ZipEntry outEntry = new ZipEntry(entry);
+		finishEntry(outEntry, entry.getSize(), entry.getCrc(), compressionMethod);
+		return outEntry;
+	}
+
+	/**
+	 * Removes ZIP64 extra fields taken over from the source,
+	 * as they describe the sizes and offset of the source entry.
+	 * {@link ZipOutputStream} adds a new one, where required.
+	 */
+	private static void removeZip64Extra(final ZipEntry entry) {
+
+		final byte[] extra = entry.getExtra();
+		if (extra == null) {
+			return;
+		}
+		final ByteBuffer fields = ByteBuffer.wrap(extra).order(ByteOrder.LITTLE_ENDIAN);
+		final ByteBuffer kept = ByteBuffer.allocate(extra.length).order(ByteOrder.LITTLE_ENDIAN);
+		boolean removed = false;
+		while (fields.remaining() >= 4) {
+			final int id = fields.getShort(fields.position()) & 0xFFFF;
+			final int length = fields.getShort(fields.position() + 2) & 0xFFFF;
+			if (4 + length > fields.remaining()) {
+				// malformed; leave the rest as it is
+				break;
+			}
+			final ByteBuffer field = fields.duplicate();
+			field.limit(field.position() + 4 + length);
+			fields.position(field.limit());
+			if (id == ZipIndex.ZIP64_EXTRA_ID) {
+				removed = true;
+			} else {
+				kept.put(field);
+			}
+		}
+		if (removed) {
+			kept.put(fields);
+			entry.setExtra(Arrays.copyOf(kept.array(), kept.position()));
+		}
+	}
+
+	/**
+	 * Adjusts an entry to describe the re-packed content,
+	 * so it is ready to be written to the destination ZIP.
+	 */
+	private void finishEntry(final ZipEntry entry, final long size, final long crc, final int compressionMethod) {
+
+		removeZip64Extra(entry);
+		// unknown only for DEFLATED output of content that is passed through
+		if (size >= 0) {
+			entry.setSize(size);
+		}
+		if (crc >= 0) {
+			entry.setCrc(crc);
+		}
+		entry.setMethod(compressionMethod);
+		// Unknown compressed size
+		entry.setCompressedSize(-1);
+		if (isNullifyTimes()) {
+			entry.setTime(0);
+			entry.setCreationTime(FileTime.fromMillis(0));
+			entry.setLastAccessTime(FileTime.fromMillis(0));
+			entry.setLastModifiedTime(FileTime.fromMillis(0));
 		}
 	}
 }
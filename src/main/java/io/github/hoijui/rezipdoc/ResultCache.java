@@ -0,0 +1,483 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent, content-addressed cache of transformation results,
+ * for example re-packed ZIPs or their textual representations.
+ * Results are stored as files, named after a SHA-256 hash
+ * of the input content and the transformation settings.
+ * Multiple processes may use the same cache directory concurrently:
+ * results are written to temporary files first,
+ * and then atomically moved into place.
+ * Once the cache grows beyond its maximum size,
+ * the least recently used results get evicted.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResultCache {
+
+	private static final Logger LOGGER = Utils.getLogger(ResultCache.class.getName());
+
+	/** Default maximum size of the cache: 256 MiB. */
+	public static final long DEFAULT_MAX_BYTES = 256L * 1024 * 1024;
+	/**
+	 * Part of every key; increase whenever the output
+	 * of the same input and settings changes.
+	 */
+	private static final String FORMAT_VERSION = "5";
+	private static final String RESULT_SUFFIX = ".result";
+	private static final String TEMP_SUFFIX = ".tmp";
+	private static final String STATS_FILE_NAME = "stats";
+	private static final long STALE_TEMP_MILLIS = 60L * 60 * 1000;
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	/**
+	 * File locks are held by the whole JVM,
+	 * so threads have to be serialized separately.
+	 */
+	private static final Object STATS_LOCK = new Object();
+
+	/**
+	 * Produces a result, in case it is not cached yet.
+	 */
+	@FunctionalInterface
+	public interface Producer {
+
+		/**
+		 * Writes the result.
+		 *
+		 * @param target where to write the result to; may be closed,
+		 *   which does not close the target of the cache user
+		 * @throws IOException if any input or output fails
+		 */
+		void produce(OutputStream target) throws IOException;
+	}
+
+	/**
+	 * Usage statistics of a cache directory,
+	 * accumulated over all processes using it.
+	 */
+	public static final class Stats {
+
+		private final long hits;
+		private final long misses;
+		private final long entries;
+		private final long bytes;
+
+		Stats(final long hits, final long misses, final long entries, final long bytes) {
+
+			this.hits = hits;
+			this.misses = misses;
+			this.entries = entries;
+			this.bytes = bytes;
+		}
+
+		public long getHits() {
+			return hits;
+		}
+
+		public long getMisses() {
+			return misses;
+		}
+
+		public long getEntries() {
+			return entries;
+		}
+
+		public long getBytes() {
+			return bytes;
+		}
+
+		@Override
+		public String toString() {
+
+			final long lookups = hits + misses;
+			return String.format("hits: %d, misses: %d (hit rate: %d%%), entries: %d, size: %d bytes",
+					hits, misses, lookups == 0 ? 0 : (hits * 100 / lookups), entries, bytes);
+		}
+	}
+
+	private final Path directory;
+	private final long maxBytes;
+
+	/**
+	 * Creates a cache using the given directory,
+	 * which gets created if it does not exist.
+	 *
+	 * @param directory where to store the results
+	 * @param maxBytes how big the cache may grow before old results get evicted
+	 */
+	public ResultCache(final Path directory, final long maxBytes) {
+
+		this.directory = directory;
+		this.maxBytes = maxBytes;
+	}
+
+	public ResultCache(final Path directory) {
+		this(directory, DEFAULT_MAX_BYTES);
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	private static MessageDigest createDigest(final String settings) {
+
+		final MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (final NoSuchAlgorithmException exc) {
+			// every Java platform is required to support SHA-256
+			throw new IllegalStateException(exc);
+		}
+		digest.update((FORMAT_VERSION + '\n' + settings + '\n').getBytes(StandardCharsets.UTF_8));
+		return digest;
+	}
+
+	private static String toKey(final MessageDigest digest) {
+
+		final byte[] hash = digest.digest();
+		final char[] key = new char[hash.length * 2];
+		for (int i = 0; i < hash.length; i++) {
+			key[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+			key[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+		}
+		return new String(key);
+	}
+
+	/**
+	 * Creates the key for an input.
+	 *
+	 * @param settings describes the transformation and all its settings
+	 * @param input the input content
+	 * @return the key under which the result gets cached
+	 */
+	public static String key(final String settings, final ByteBuffer input) {
+
+		final MessageDigest digest = createDigest(settings);
+		digest.update(input.duplicate());
+		return toKey(digest);
+	}
+
+	/**
+	 * Creates the key for an input file.
+	 *
+	 * @param settings describes the transformation and all its settings
+	 * @param input the input file
+	 * @return the key under which the result gets cached
+	 * @throws IOException if reading the input fails
+	 */
+	public static String key(final String settings, final Path input) throws IOException {
+
+		final MessageDigest digest = createDigest(settings);
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		try (InputStream in = new DigestInputStream(Files.newInputStream(input), digest)) {
+			while (in.read(buffer) >= 0) {
+				// only digesting
+			}
+		} finally {
+			BufferPool.getDefault().release(buffer);
+		}
+		return toKey(digest);
+	}
+
+	private Path resultFile(final String key) {
+		return directory.resolve(key + RESULT_SUFFIX);
+	}
+
+	/**
+	 * Writes the result for a key, either from the cache,
+	 * or by producing it, in which case it also gets cached.
+	 *
+	 * @param key see {@link #key(String, Path)}
+	 * @param target where to write the result to;
+	 *   it gets flushed, but not closed
+	 * @param producer writes the result, in case it is not cached
+	 * @throws IOException if any input or output fails
+	 */
+	public void apply(final String key, final OutputStream target, final Producer producer) throws IOException {
+
+		Files.createDirectories(directory);
+		final Path resultFile = resultFile(key);
+		InputStream cached;
+		try {
+			cached = Files.newInputStream(resultFile);
+		} catch (final NoSuchFileException exc) {
+			cached = null;
+		}
+		recordLookup(cached != null);
+		if (cached != null) {
+			touch(resultFile);
+			final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+			try (InputStream in = cached) {
+				Utils.transferTo(in, target, buffer);
+			} finally {
+				BufferPool.getDefault().release(buffer);
+			}
+			target.flush();
+			return;
+		}
+
+		final Path tempFile = Files.createTempFile(directory, key, TEMP_SUFFIX);
+		try {
+			try (OutputStream tempOut = Files.newOutputStream(tempFile);
+					OutputStream tee = new TeeOutputStream(target, tempOut))
+			{
+				producer.produce(tee);
+			}
+			try {
+				Files.move(tempFile, resultFile, StandardCopyOption.ATOMIC_MOVE);
+			} catch (final IOException exc) {
+				// most likely an other process stored the same result concurrently
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to store cached result", exc);
+				}
+			}
+		} finally {
+			Files.deleteIfExists(tempFile);
+		}
+		evict();
+	}
+
+	private static void touch(final Path file) {
+
+		try {
+			Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+		} catch (final IOException exc) {
+			// it might have been evicted just now; this is not an issue
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Failed to touch cached result", exc);
+			}
+		}
+	}
+
+	private List<Path> listFiles(final String suffix) throws IOException {
+
+		final List<Path> matching = new ArrayList<>();
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, '*' + suffix)) {
+			for (final Path file : files) {
+				matching.add(file);
+			}
+		}
+		return matching;
+	}
+
+	/**
+	 * Deletes the least recently used results,
+	 * until the cache is no bigger then its maximum size.
+	 *
+	 * @throws IOException if listing the cache directory fails
+	 */
+	public void evict() throws IOException {
+
+		final Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+		long totalBytes = 0;
+		for (final Path result : listFiles(RESULT_SUFFIX)) {
+			try {
+				final BasicFileAttributes attrs = Files.readAttributes(result, BasicFileAttributes.class);
+				attributes.put(result, attrs);
+				totalBytes += attrs.size();
+			} catch (final NoSuchFileException exc) {
+				// evicted by an other process concurrently
+			}
+		}
+		if (totalBytes > maxBytes) {
+			final List<Path> leastRecentlyUsedFirst = new ArrayList<>(attributes.keySet());
+			leastRecentlyUsedFirst.sort(Comparator.comparing(result -> attributes.get(result).lastModifiedTime()));
+			for (final Path result : leastRecentlyUsedFirst) {
+				if (totalBytes <= maxBytes) {
+					break;
+				}
+				Files.deleteIfExists(result);
+				totalBytes -= attributes.get(result).size();
+			}
+		}
+
+		// Remove left-overs of processes that were killed while producing a result
+		final long staleBefore = System.currentTimeMillis() - STALE_TEMP_MILLIS;
+		for (final Path temp : listFiles(TEMP_SUFFIX)) {
+			try {
+				if (Files.getLastModifiedTime(temp).toMillis() < staleBefore) {
+					Files.deleteIfExists(temp);
+				}
+			} catch (final NoSuchFileException exc) {
+				// finished concurrently
+			}
+		}
+	}
+
+	private FileChannel openStats() throws IOException {
+
+		Files.createDirectories(directory);
+		return FileChannel.open(directory.resolve(STATS_FILE_NAME),
+				StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+	}
+
+	private static long[] readStats(final FileChannel stats) throws IOException {
+
+		final ByteBuffer content = ByteBuffer.allocate((int) Math.min(stats.size(), 1024));
+		while (content.hasRemaining() && stats.read(content, content.position()) >= 0) {
+			// reading
+		}
+		final String[] parts = new String(content.array(), 0, content.position(), StandardCharsets.US_ASCII)
+				.trim().split("\\s+");
+		final long[] hitsMisses = new long[2];
+		if (parts.length == 2) {
+			try {
+				hitsMisses[0] = Long.parseLong(parts[0]);
+				hitsMisses[1] = Long.parseLong(parts[1]);
+			} catch (final NumberFormatException exc) {
+				// start over with corrupt statistics
+				hitsMisses[0] = 0;
+				hitsMisses[1] = 0;
+			}
+		}
+		return hitsMisses;
+	}
+
+	private void recordLookup(final boolean hit) {
+
+		synchronized (STATS_LOCK) {
+			try (FileChannel stats = openStats();
+					FileLock lock = stats.lock())
+			{
+				final long[] hitsMisses = readStats(stats);
+				hitsMisses[hit ? 0 : 1]++;
+				final byte[] content = (hitsMisses[0] + " " + hitsMisses[1] + '\n').getBytes(StandardCharsets.US_ASCII);
+				stats.truncate(0);
+				stats.write(ByteBuffer.wrap(content), 0);
+			} catch (final IOException exc) {
+				// statistics are not essential
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to update cache statistics", exc);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Collects the usage statistics of this cache.
+	 *
+	 * @return hits and misses of all processes using this cache, and its current size
+	 * @throws IOException if reading the statistics fails
+	 */
+	public Stats getStats() throws IOException {
+
+		final long[] hitsMisses;
+		synchronized (STATS_LOCK) {
+			try (FileChannel stats = openStats();
+					FileLock lock = stats.lock(0, Long.MAX_VALUE, true))
+			{
+				hitsMisses = readStats(stats);
+			}
+		}
+		long entries = 0;
+		long bytes = 0;
+		for (final Path result : listFiles(RESULT_SUFFIX)) {
+			try {
+				bytes += Files.size(result);
+				entries++;
+			} catch (final NoSuchFileException exc) {
+				// evicted concurrently
+			}
+		}
+		return new Stats(hitsMisses[0], hitsMisses[1], entries, bytes);
+	}
+
+	/**
+	 * Writes everything to two streams.
+	 * Closing it only flushes the first stream.
+	 */
+	private static class TeeOutputStream extends FilterOutputStream {
+
+		private final OutputStream branch;
+		private boolean closed;
+
+		TeeOutputStream(final OutputStream out, final OutputStream branch) {
+
+			super(out);
+			this.branch = branch;
+			this.closed = false;
+		}
+
+		@Override
+		public void write(final int b) throws IOException {
+
+			out.write(b);
+			branch.write(b);
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) throws IOException {
+
+			out.write(b, off, len);
+			branch.write(b, off, len);
+		}
+
+		@Override
+		public void flush() throws IOException {
+
+			out.flush();
+			branch.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				out.flush();
+			} finally {
+				branch.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,147 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A buffered output stream to a file,
+ * which allows to overwrite bytes that were written before.
+ * This is used to fill in the size and CRC of STORED entries
+ * in their local headers after their content was written,
+ * so the content does not have to be buffered up front.
+ */
+final class SeekBackOutputStream extends OutputStream {
+
+	/** Size of the write buffer: 64 KiB. */
+	static final int BUFFER_SIZE = 64 * 1024;
+
+	private final FileChannel channel;
+	private byte[] buffer;
+	private int count;
+	/**
+	 * The position in the file where the buffered bytes go.
+	 */
+	private long flushed;
+
+	/**
+	 * Creates a stream writing to a channel, starting at its current position.
+	 *
+	 * @param channel the file to write to; it gets closed with this stream
+	 * @throws IOException if the position of the channel can not be read
+	 */
+	SeekBackOutputStream(final FileChannel channel) throws IOException {
+
+		this.channel = channel;
+		this.buffer = BufferPool.getDefault().acquire(BUFFER_SIZE);
+		this.count = 0;
+		this.flushed = channel.position();
+	}
+
+	/**
+	 * Where the next byte gets written to.
+	 * @return the position in the file, including what is still buffered
+	 */
+	long position() {
+		return flushed + count;
+	}
+
+	/**
+	 * Replaces bytes written before.
+	 *
+	 * @param position where in the file the bytes to replace start
+	 * @param bytes the new content, which must not go beyond {@link #position()}
+	 * @throws IOException if writing to the file fails
+	 */
+	void overwrite(final long position, final byte[] bytes) throws IOException {
+
+		if (position < 0 || position + bytes.length > position()) {
+			throw new IllegalArgumentException("Can only overwrite bytes that were written already");
+		}
+		if (position >= flushed) {
+			// the common case: the header is still in the buffer
+			System.arraycopy(bytes, 0, buffer, (int) (position - flushed), bytes.length);
+		} else {
+			flushBuffer();
+			final ByteBuffer source = ByteBuffer.wrap(bytes);
+			for (long pos = position; source.hasRemaining(); ) {
+				pos += channel.write(source, pos);
+			}
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+
+		final ByteBuffer source = ByteBuffer.wrap(buffer, 0, count);
+		while (source.hasRemaining()) {
+			channel.write(source);
+		}
+		flushed += count;
+		count = 0;
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+
+		if (count == buffer.length) {
+			flushBuffer();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+
+		if (len > buffer.length - count) {
+			flushBuffer();
+		}
+		if (len >= buffer.length) {
+			// no use in copying it into the buffer
+			final ByteBuffer source = ByteBuffer.wrap(b, off, len);
+			while (source.hasRemaining()) {
+				channel.write(source);
+			}
+			flushed += len;
+		} else {
+			System.arraycopy(b, off, buffer, count, len);
+			count += len;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		flushBuffer();
+	}
+
+	@Override
+	public void close() throws IOException {
+
+		if (buffer == null) {
+			return;
+		}
+		try (FileChannel toClose = channel) {
+			flushBuffer();
+		} finally {
+			BufferPool.getDefault().release(buffer);
+			buffer = null;
+		}
+	}
+}
@@ -0,0 +1,540 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.Closeable;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Buffers content in memory, as long as the {@link MemoryBudget} allows,
+ * and transparently spills it to a temporary file otherwise.
+ * The beginning of the content is always kept in memory,
+ * so its type can be detected without touching the disk.
+ * Discarding (or resetting) it deletes the temporary file.
+ */
+@SuppressWarnings("WeakerAccess")
+public class SpillingOutputStream extends OutputStream {
+
+	private static final Logger LOGGER = Utils.getLogger(SpillingOutputStream.class.getName());
+
+	private final MemoryBudget budget;
+	/**
+	 * The content while in memory; empty once spilled.
+	 */
+	private ChunkedOutputStream memory;
+	/**
+	 * A copy of the beginning of the content.
+	 */
+	private final BufferedOutputStream head;
+	/**
+	 * How much of the budget we hold.
+	 */
+	private long reserved;
+	private Path spillFile;
+	private FileChannel spillChannel;
+	private ByteBuffer writeBuffer;
+	/**
+	 * How many bytes were written to the spill file,
+	 * not including the ones still in the {@link #writeBuffer}.
+	 */
+	private long spilledSize;
+
+	/**
+	 * Creates an empty buffer.
+	 *
+	 * @param budget limits the memory used by this and all other buffers sharing it
+	 */
+	public SpillingOutputStream(final MemoryBudget budget) {
+
+		this.budget = budget;
+		this.memory = new ChunkedOutputStream();
+		this.head = new BufferedOutputStream(EntryClassifier.PREFIX_BYTES);
+		this.reserved = 0;
+		this.spillFile = null;
+		this.spillChannel = null;
+		this.writeBuffer = null;
+		this.spilledSize = 0;
+	}
+
+	/**
+	 * Creates an empty buffer, using the default budget.
+	 */
+	public SpillingOutputStream() {
+		this(MemoryBudget.getDefault());
+	}
+
+	/**
+	 * Whether the content was spilled to a temporary file.
+	 *
+	 * @return {@code true} if the content does not fit into the budget
+	 */
+	public boolean isSpilled() {
+		return spillChannel != null;
+	}
+
+	/**
+	 * Returns the number of bytes written so far.
+	 *
+	 * @return the size of the whole content
+	 */
+	public long size() {
+		return isSpilled() ? spilledSize + writeBuffer.position() : memory.size();
+	}
+
+	/**
+	 * Returns the first {@link EntryClassifier#PREFIX_BYTES} bytes of the content,
+	 * or all of it, if it is shorter.
+	 * CAUTION Do not modify the returned buffer!
+	 *
+	 * @return a buffer suitable for type detection,
+	 *   for example with {@link EntryClassifier#classify(String, long, BufferedOutputStream)}
+	 */
+	public BufferedOutputStream getHead() {
+		return head;
+	}
+
+	/**
+	 * Makes sure the in-memory buffer can take more bytes.
+	 *
+	 * @return whether the budget allowed it
+	 */
+	private boolean ensureMemory(final int length) {
+
+		final long needed = memory.size() + length;
+		if (needed <= memory.capacity()) {
+			return true;
+		}
+		final long newCapacity = memory.capacityFor(needed);
+		if (!budget.tryReserve(newCapacity - reserved)) {
+			return false;
+		}
+		memory.ensureCapacity(needed);
+		reserved = newCapacity;
+		return true;
+	}
+
+	/**
+	 * Adjusts our reservation to the actual capacity of the in-memory buffer,
+	 * which may only shrink on its own.
+	 */
+	private void syncReservation() {
+
+		final long capacity = memory.capacity();
+		if (capacity < reserved) {
+			budget.release(reserved - capacity);
+			reserved = capacity;
+		}
+	}
+
+	private void spill() throws IOException {
+
+		if (LOGGER.isLoggable(Level.FINE)) {
+			LOGGER.log(Level.FINE, String.format("Memory budget exceeded; spilling %d bytes to disk", memory.size()));
+		}
+		spillFile = Files.createTempFile(SpillingOutputStream.class.getSimpleName() + '_', ".tmp");
+		try {
+			spillChannel = FileChannel.open(spillFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		} catch (final IOException exc) {
+			Files.deleteIfExists(spillFile);
+			spillFile = null;
+			throw exc;
+		}
+		writeBuffer = ByteBuffer.wrap(BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE));
+		for (final ByteBuffer chunk : memory.toByteBuffers()) {
+			writeFully(chunk);
+		}
+		memory.release();
+		budget.release(reserved);
+		reserved = 0;
+	}
+
+	private void writeFully(final ByteBuffer data) throws IOException {
+
+		// Positional writes do not interfere with the positional reads of our input streams
+		while (data.hasRemaining()) {
+			spilledSize += spillChannel.write(data, spilledSize);
+		}
+	}
+
+	private void flushWriteBuffer() throws IOException {
+
+		writeBuffer.flip();
+		writeFully(writeBuffer);
+		writeBuffer.clear();
+	}
+
+	@Override
+	public void write(final int b) throws IOException {
+
+		if (head.size() < EntryClassifier.PREFIX_BYTES) {
+			head.write(b);
+		}
+		if (!isSpilled()) {
+			if (ensureMemory(1)) {
+				memory.write(b);
+				return;
+			}
+			spill();
+		}
+		if (!writeBuffer.hasRemaining()) {
+			flushWriteBuffer();
+		}
+		writeBuffer.put((byte) b);
+	}
+
+	@Override
+	public void write(final byte[] b, final int off, final int len) throws IOException {
+
+		final int headMissing = EntryClassifier.PREFIX_BYTES - head.size();
+		if (headMissing > 0) {
+			head.write(b, off, Math.min(len, headMissing));
+		}
+		if (!isSpilled()) {
+			if (ensureMemory(len)) {
+				memory.write(b, off, len);
+				return;
+			}
+			spill();
+		}
+		if (len > writeBuffer.remaining()) {
+			flushWriteBuffer();
+			if (len >= writeBuffer.capacity()) {
+				writeFully(ByteBuffer.wrap(b, off, len));
+				return;
+			}
+		}
+		writeBuffer.put(b, off, len);
+	}
+
+	/**
+	 * Writes buffered bytes to the spill file, if any.
+	 * This does not force them to the storage device.
+	 */
+	@Override
+	public void flush() throws IOException {
+
+		if (isSpilled()) {
+			flushWriteBuffer();
+		}
+	}
+
+	/**
+	 * Writes the complete content to the specified output stream.
+	 *
+	 * @param out the output stream to which to write the content
+	 * @throws IOException if any input or output fails
+	 */
+	public void writeTo(final OutputStream out) throws IOException {
+
+		if (isSpilled()) {
+			final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+			try (InputStream in = createInputStream()) {
+				Utils.transferTo(in, out, buffer);
+			} finally {
+				BufferPool.getDefault().release(buffer);
+			}
+		} else {
+			memory.writeTo(out);
+		}
+	}
+
+	/**
+	 * Creates an {@code InputStream} streaming the content,
+	 * without copying it.
+	 * CAUTION Do not add data to this buffer while the stream is still in use!
+	 *
+	 * @return a stream over the current content
+	 * @throws IOException if flushing to the spill file fails
+	 */
+	public InputStream createInputStream() throws IOException {
+
+		if (isSpilled()) {
+			flushWriteBuffer();
+			return new ZipIndex.SliceInputStream(spillChannel, 0, spilledSize);
+		}
+		return memory.createInputStream();
+	}
+
+	/**
+	 * Moves the content into an {@code InputStream},
+	 * leaving this buffer empty, so it may be re-used right away,
+	 * for example to write a transformed version of the content into it.
+	 * The memory or temporary file is only released
+	 * once the returned stream gets closed.
+	 * Until then, the returned stream supports {@link InputStream#mark(int)}
+	 * and {@link InputStream#reset()} without any limit,
+	 * for example to start over with the original content
+	 * if transforming it failed half-way.
+	 *
+	 * @return a stream over the current content, taking ownership of it
+	 * @throws IOException if flushing to the spill file fails
+	 */
+	public InputStream detachInputStream() throws IOException {
+
+		final InputStream detached;
+		if (isSpilled()) {
+			flushWriteBuffer();
+			final FileChannel channel = spillChannel;
+			final Path file = spillFile;
+			final long detachedSize = spilledSize;
+			detached = new DetachedInputStream(() -> new ZipIndex.SliceInputStream(channel, 0, detachedSize),
+					() -> deleteSpill(channel, file));
+			releaseWriteBuffer();
+			spillChannel = null;
+			spillFile = null;
+			spilledSize = 0;
+		} else {
+			final ChunkedOutputStream detachedMemory = memory;
+			final long detachedReserved = reserved;
+			detached = new DetachedInputStream(detachedMemory::createInputStream, () -> {
+				detachedMemory.release();
+				budget.release(detachedReserved);
+			});
+			memory = new ChunkedOutputStream();
+			reserved = 0;
+		}
+		head.reset();
+		return detached;
+	}
+
+	/**
+	 * Creates a read-only {@code ByteBuffer} view of the content,
+	 * without copying it, unless the in-memory content consists of multiple chunks;
+	 * spilled content gets memory mapped.
+	 * Merging multiple chunks briefly needs memory for the content twice;
+	 * if the budget does not allow for that, the content gets spilled,
+	 * and mapped instead.
+	 * CAUTION Do not add data to this buffer while the view is still in use!
+	 *
+	 * @return a read-only view of the current content
+	 * @throws IOException if the content is larger then
+	 *   {@link ChunkedOutputStream#MAX_ARRAY_SIZE},
+	 *   or mapping it fails
+	 */
+	public ByteBuffer toByteBuffer() throws IOException {
+
+		if (isSpilled()) {
+			flushWriteBuffer();
+			if (spilledSize > ChunkedOutputStream.MAX_ARRAY_SIZE) {
+				throw new IOException(String.format("Content too large to be mapped: %d bytes", spilledSize));
+			}
+			return spillChannel.map(FileChannel.MapMode.READ_ONLY, 0, spilledSize);
+		}
+		if (memory.size() > ChunkedOutputStream.MAX_ARRAY_SIZE) {
+			throw new IOException(String.format("Content too large for a single buffer: %d bytes", memory.size()));
+		}
+		if (memory.toByteBuffers().size() > 1) {
+			// the chunks are only released after they were merged
+			if (!budget.tryReserve(memory.size())) {
+				spill();
+				return toByteBuffer();
+			}
+			reserved += memory.size();
+		}
+		final ByteBuffer content = memory.toByteBuffer();
+		syncReservation();
+		return content;
+	}
+
+	/**
+	 * Discards the content.
+	 * Memory stays reserved for re-use,
+	 * but a spill file gets deleted.
+	 *
+	 * @throws IOException if closing the spill file fails
+	 */
+	public void reset() throws IOException {
+
+		if (isSpilled()) {
+			final FileChannel channel = spillChannel;
+			final Path file = spillFile;
+			releaseWriteBuffer();
+			spillChannel = null;
+			spillFile = null;
+			spilledSize = 0;
+			deleteSpill(channel, file);
+		} else {
+			memory.reset();
+		}
+		head.reset();
+	}
+
+	/**
+	 * Discards the content, and releases all memory and files.
+	 * The memory goes back to the {@link BufferPool}.
+	 * This buffer may still be used afterwards.
+	 *
+	 * @throws IOException if closing the spill file fails
+	 */
+	public void discard() throws IOException {
+
+		reset();
+		memory.release();
+		budget.release(reserved);
+		reserved = 0;
+	}
+
+	/**
+	 * Like with {@link java.io.ByteArrayOutputStream},
+	 * closing has no effect on the content,
+	 * so this may safely be wrapped by other streams.
+	 * Use {@link #discard()} to release the content.
+	 *
+	 * @throws IOException if flushing to the spill file fails
+	 */
+	@Override
+	public void close() throws IOException {
+		flush();
+	}
+
+	private void releaseWriteBuffer() {
+
+		BufferPool.getDefault().release(writeBuffer.array());
+		writeBuffer = null;
+	}
+
+	private static void deleteSpill(final FileChannel channel, final Path file) throws IOException {
+
+		try {
+			channel.close();
+		} finally {
+			try {
+				Files.deleteIfExists(file);
+			} catch (final IOException exc) {
+				// for example on Windows, while the file is still memory mapped
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to delete spill file; retrying on exit", exc);
+				}
+				file.toFile().deleteOnExit();
+			}
+		}
+	}
+
+	/**
+	 * Opens a new stream over the whole of some content.
+	 */
+	private interface Opener {
+
+		InputStream open() throws IOException;
+	}
+
+	/**
+	 * Owns detached content, and releases it when closed.
+	 * As the content is kept until then,
+	 * it may be read again from any marked position.
+	 */
+	private static class DetachedInputStream extends FilterInputStream {
+
+		private final Opener opener;
+		private final Closeable release;
+		private boolean closed;
+		private long position;
+		private long markPosition;
+
+		DetachedInputStream(final Opener opener, final Closeable release) throws IOException {
+
+			super(opener.open());
+			this.opener = opener;
+			this.release = release;
+			this.closed = false;
+			this.position = 0;
+			this.markPosition = 0;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			final int value = in.read();
+			if (value >= 0) {
+				position++;
+			}
+			return value;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+
+			final int read = in.read(b, off, len);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(final long n) throws IOException {
+
+			final long skipped = in.skip(n);
+			position += skipped;
+			return skipped;
+		}
+
+		@Override
+		public boolean markSupported() {
+			return true;
+		}
+
+		@Override
+		public synchronized void mark(final int readlimit) {
+			// the whole content is kept anyway
+			markPosition = position;
+		}
+
+		@Override
+		public synchronized void reset() throws IOException {
+
+			if (closed) {
+				throw new IOException("Stream closed");
+			}
+			in.close();
+			in = opener.open();
+			position = 0;
+			while (position < markPosition) {
+				final long skipped = in.skip(markPosition - position);
+				if (skipped <= 0) {
+					throw new IOException("Failed to return to the marked position");
+				}
+				position += skipped;
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (closed) {
+				return;
+			}
+			closed = true;
+			try {
+				super.close();
+			} finally {
+				release.close();
+			}
+		}
+	}
+}
@@ -22,6 +22,7 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.net.URISyntaxException;
@@ -36,6 +37,8 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Formatter;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -57,17 +60,29 @@ public final class Utils {
 			= RESOURCE_FILE_SUFFIXES_PREFIX + "suffixes-xml.csv";
 	public static final String RESOURCE_FILE_SUFFIXES_ARCHIVE
 			= RESOURCE_FILE_SUFFIXES_PREFIX + "suffixes-archive.csv";
+	public static final String RESOURCE_FILE_SUFFIXES_BINARY
+			= RESOURCE_FILE_SUFFIXES_PREFIX + "suffixes-binary.csv";
 	public static final Set<String> DEFAULT_SUFFIXES_XML = immutableSetFromResource("/ext_xml.txt");
 	public static final Set<String> DEFAULT_SUFFIXES_TEXT = immutableSetFromResource("/ext_text.txt");
 	public static final Set<String> DEFAULT_SUFFIXES_ARCHIVE = immutableSetFromResource("/ext_archives.txt");
-	private static final Set<String> SUFFIXES_XML;
-	private static final Set<String> SUFFIXES_TEXT;
-	private static final Set<String> SUFFIXES_ARCHIVE;
+	public static final Set<String> DEFAULT_SUFFIXES_BINARY = immutableSetFromResource("/ext_binary.txt");
+	/**
+	 * The maximum number of leading content bytes
+	 * {@link #isType(String, long, BufferedOutputStream, String, Set, String)}
+	 * looks at, covering both the magic headers
+	 * and {@link #guessContentTypeFromStream(InputStream)}.
+	 */
+	public static final int TYPE_DETECTION_BYTES = 16;
+	static final Set<String> SUFFIXES_XML;
+	static final Set<String> SUFFIXES_TEXT;
+	static final Set<String> SUFFIXES_ARCHIVE;
+	static final Set<String> SUFFIXES_BINARY;
 
 	static {
 		SUFFIXES_XML = collectFileOrDefaults(RESOURCE_FILE_SUFFIXES_XML, DEFAULT_SUFFIXES_XML);
 		SUFFIXES_TEXT = collectFileOrDefaults(RESOURCE_FILE_SUFFIXES_TEXT, DEFAULT_SUFFIXES_TEXT);
 		SUFFIXES_ARCHIVE = collectFileOrDefaults(RESOURCE_FILE_SUFFIXES_ARCHIVE, DEFAULT_SUFFIXES_ARCHIVE);
+		SUFFIXES_BINARY = collectFileOrDefaults(RESOURCE_FILE_SUFFIXES_BINARY, DEFAULT_SUFFIXES_BINARY);
 	}
 
 	private Utils() {
@@ -181,6 +196,9 @@ public final class Utils {
 
 		suffixesFile = sourceDir().resolve(RESOURCE_FILE_SUFFIXES_ARCHIVE);
 		writeLines(suffixesFile, SUFFIXES_ARCHIVE);
+
+		suffixesFile = sourceDir().resolve(RESOURCE_FILE_SUFFIXES_BINARY);
+		writeLines(suffixesFile, SUFFIXES_BINARY);
 	}
 
 	/**
@@ -198,6 +216,9 @@ public final class Utils {
 
 		suffixesFile = sourceDir().resolve(RESOURCE_FILE_SUFFIXES_ARCHIVE);
 		Files.deleteIfExists(suffixesFile);
+
+		suffixesFile = sourceDir().resolve(RESOURCE_FILE_SUFFIXES_BINARY);
+		Files.deleteIfExists(suffixesFile);
 	}
 
 	/**
@@ -350,6 +371,50 @@ public final class Utils {
 		}
 	}
 
+	/**
+	 * Waits for a concurrent task to complete,
+	 * and passes on what it failed with, if anything.
+	 *
+	 * @param task the task to wait for
+	 * @param <T> the type of the tasks result
+	 * @return the result of the task
+	 * @throws IOException if the task failed with one, or waiting for it was interrupted
+	 */
+	static <T> T await(final ForkJoinTask<T> task) throws IOException {
+
+		try {
+			return task.get();
+		} catch (final InterruptedException exc) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for a concurrent task");
+		} catch (final ExecutionException exc) {
+			final Throwable cause = exc.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	/**
+	 * Whether the JVM was launched with the given class as its main class,
+	 * as reported by the launcher.
+	 * Only then, nothing can have replaced {@link System#in} and {@link System#out}
+	 * before the program started, so their file descriptors may be used directly.
+	 *
+	 * @param mainClass the class to check for
+	 * @return {@code false} if unknown, or launched otherwise, for example from a test
+	 */
+	static boolean isMainClass(final Class<?> mainClass) {
+
+		final String command = System.getProperty("sun.java.command", "");
+		return command.equals(mainClass.getName()) || command.startsWith(mainClass.getName() + ' ');
+	}
+
 	/**
 	 * Tries to determine the type of an input stream based on the
 	 * characters at the beginning of the stream.
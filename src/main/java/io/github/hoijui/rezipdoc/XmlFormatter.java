@@ -24,16 +24,23 @@ import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
 
 import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
 import javax.xml.transform.OutputKeys;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
 import javax.xml.transform.dom.DOMSource;
 import javax.xml.transform.stream.StreamResult;
-import javax.xml.xpath.XPath;
 import javax.xml.xpath.XPathConstants;
+import javax.xml.xpath.XPathExpression;
 import javax.xml.xpath.XPathExpressionException;
 import javax.xml.xpath.XPathFactory;
 import java.io.BufferedInputStream;
@@ -43,14 +50,24 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.PrintStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Deque;
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -69,10 +86,27 @@ public class XmlFormatter {
 	private static final int DEFAULT_ARG_INDENT_SPACES = 2;
 	private static final String DEFAULT_ARG_INDENT = "  ";
 	private static final boolean DEFAULT_ARG_CORRECT = true;
+	private static final boolean DEFAULT_ARG_STREAMING = false;
+	/**
+	 * Below this size, content is not worth being split up
+	 * for parallel <em>rough and fast</em> pretty'fication: 1 MiB.
+	 */
+	public static final int MIN_PARALLEL_CHUNK_SIZE = 1024 * 1024;
+	private static final String LOAD_EXTERNAL_DTD_FEATURE = "http://apache.org/xml/features/nonvalidating/load-external-dtd";
+	private static final String REPORT_CDATA_PROPERTY = "http://java.sun.com/xml/stream/properties/report-cdata-event";
 
 	private final int indentSpaces;
 	private final String indent;
 	private final boolean correct;
+	private final boolean streaming;
+	private int parallelism;
+	private boolean canonical;
+	private OfflineEntityResolver entityResolver;
+	/**
+	 * Parsers, serializers and compiled expressions for the current thread,
+	 * as JAXP objects are not thread-safe, but expensive to create.
+	 */
+	private final ThreadLocal<JaxpCache> jaxpCache;
 
 	/**
 	 * Creates an instance with specific values.
@@ -86,12 +120,35 @@ public class XmlFormatter {
 	 *   <em>correct</em> is slower, and works for valid XML only.
 	 *   <em>rough and fast</em> might produce weird results if there are
 	 *   '{@literal <}' or '{@literal >}' characters which are not part of tags.
+	 * @param streaming whether <em>correct</em> pretty'fication streams the content through StAX,
+	 *   which needs memory only in the order of the nesting depth,
+	 *   instead of building a DOM of the whole document.
+	 *   The output differs from the DOM based one only in how text is indented.
 	 */
-	public XmlFormatter(final int indentSpaces, final String indent, final boolean correct) {
+	public XmlFormatter(final int indentSpaces, final String indent, final boolean correct, final boolean streaming) {
 
 		this.indentSpaces = indentSpaces;
 		this.indent = indent;
 		this.correct = correct;
+		this.streaming = streaming;
+		this.parallelism = 1;
+		this.canonical = false;
+		this.entityResolver = OfflineEntityResolver.getDefault();
+		this.jaxpCache = ThreadLocal.withInitial(JaxpCache::new);
+	}
+
+	/**
+	 * Creates an instance with specific values,
+	 * using the DOM based <em>correct</em> pretty'fication.
+	 *
+	 * @param indentSpaces how many spaces to use per indent
+	 * @param indent what string to use for oen indent
+	 *   (this might be two spaces or one TAB, for example)
+	 * @param correct whether to use <em>correct</em> or <em>rough and fast</em> pretty'fication.
+	 * @see #XmlFormatter(int, String, boolean, boolean)
+	 */
+	public XmlFormatter(final int indentSpaces, final String indent, final boolean correct) {
+		this(indentSpaces, indent, correct, DEFAULT_ARG_STREAMING);
 	}
 
 	/**
@@ -101,6 +158,132 @@ public class XmlFormatter {
 		this(DEFAULT_ARG_INDENT_SPACES, DEFAULT_ARG_INDENT, DEFAULT_ARG_CORRECT);
 	}
 
+	/**
+	 * Creates an instance with the same settings as this one,
+	 * except for whether <em>correct</em> or <em>rough and fast</em>
+	 * pretty'fication is used.
+	 *
+	 * @param correct see {@link #isCorrect()}
+	 * @return this instance, if it already uses the requested kind of pretty'fication,
+	 *   or a new one otherwise
+	 */
+	public XmlFormatter withCorrect(final boolean correct) {
+
+		if (correct == this.correct) {
+			return this;
+		}
+		final XmlFormatter other = new XmlFormatter(indentSpaces, indent, correct, streaming);
+		other.setParallelism(parallelism);
+		other.setCanonical(canonical);
+		other.setEntityResolver(entityResolver);
+		return other;
+	}
+
+	/**
+	 * Whether <em>correct</em> pretty'fication streams the content through StAX.
+	 * @return whether the streaming engine is used instead of the DOM based one
+	 */
+	public boolean isStreaming() {
+		return streaming;
+	}
+
+	/**
+	 * Whether <em>correct</em> or <em>rough and fast</em> pretty'fication is used.
+	 * @return whether only valid XML gets pretty-printed
+	 */
+	public boolean isCorrect() {
+		return correct;
+	}
+
+	/**
+	 * How many threads to use for <em>rough and fast</em> pretty'fication
+	 * of content that is available as a whole,
+	 * see {@link #prettifyRoughAndFast(ByteBuffer, OutputStream)}.
+	 * The output is the same as when pretty-printing sequentially.
+	 * @return default: {@code 1}
+	 */
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	/**
+	 * Sets how many threads to use for <em>rough and fast</em> pretty'fication.
+	 * @param parallelism see {@link #getParallelism()}
+	 */
+	public void setParallelism(final int parallelism) {
+
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism has to be at least 1, but is " + parallelism);
+		}
+		this.parallelism = parallelism;
+	}
+
+	/**
+	 * Whether <em>correct</em> pretty'fication also canonicalizes the XML,
+	 * to make different saves of the same document as similar as possible.
+	 * Namespace declarations get ordered by prefix,
+	 * attributes by namespace URI and local name, like in Canonical XML,
+	 * and namespace declarations already in scope are dropped.
+	 * This always uses the streaming engine.
+	 * @return default: {@code false}
+	 */
+	public boolean isCanonical() {
+		return canonical;
+	}
+
+	/**
+	 * Sets whether <em>correct</em> pretty'fication also canonicalizes the XML.
+	 * @param canonical see {@link #isCanonical()}
+	 */
+	public void setCanonical(final boolean canonical) {
+		this.canonical = canonical;
+	}
+
+	/**
+	 * What resolves external DTDs and entities for <em>correct</em> pretty'fication.
+	 * The network is never accessed.
+	 * @return default: {@link OfflineEntityResolver#getDefault()},
+	 *   which resolves everything to empty content
+	 */
+	public OfflineEntityResolver getEntityResolver() {
+		return entityResolver;
+	}
+
+	/**
+	 * Sets what resolves external DTDs and entities.
+	 * @param entityResolver see {@link #getEntityResolver()}
+	 */
+	public void setEntityResolver(final OfflineEntityResolver entityResolver) {
+		this.entityResolver = entityResolver;
+	}
+
+	/**
+	 * Describes all the settings that affect the output,
+	 * for example to be used in cache keys.
+	 * @return the same for formatters that produce the same output
+	 */
+	@Override
+	public String toString() {
+		return String.format("%s indentSpaces=%d indent=\"%s\" correct=%b streaming=%b canonical=%b entityResolver=[%s]",
+				XmlFormatter.class.getSimpleName(), indentSpaces, indent.replace("\t", "\\t"), correct, streaming,
+				canonical, entityResolver);
+	}
+
+	/**
+	 * Whether content of a certain size would be pretty-printed in parallel
+	 * by {@link #prettifyRoughAndFast(ByteBuffer, OutputStream)}.
+	 * Only then is it worth to make the content available as a whole.
+	 *
+	 * @param xmlBytes the size of the XML content
+	 * @return whether <em>rough and fast</em> pretty'fication is used,
+	 *   with more then one thread, and the content is large enough to be split up
+	 */
+	public boolean isParallel(final long xmlBytes) {
+		return !correct && parallelism > 1
+				&& xmlBytes >= 2L * MIN_PARALLEL_CHUNK_SIZE
+				&& xmlBytes <= ChunkedOutputStream.MAX_ARRAY_SIZE;
+	}
+
 	private static void printUsage(final Level logLevel) {
 
 		final String name = XmlFormatter.class.getSimpleName();
@@ -116,6 +299,13 @@ public class XmlFormatter {
 			LOGGER.log(logLevel, String.format(
 					"\t%s                                     # input from stdin, output to stdout",
 					name));
+			LOGGER.log(logLevel, "Options:");
+			LOGGER.log(logLevel, "\t-r, --rough          rough and fast pretty-printing, also of invalid XML");
+			LOGGER.log(logLevel, "\t-s, --streaming      correct pretty-printing through StAX instead of a DOM");
+			LOGGER.log(logLevel, "\t-c, --canonical      correct pretty-printing through StAX, ordering attributes and namespaces");
+			LOGGER.log(logLevel, "\t--catalog <file>     resolve external DTDs and entities through an XML catalog");
+			LOGGER.log(logLevel, "\t--no-external        ignore external DTDs and entities altogether");
+			LOGGER.log(logLevel, "\t-t, --threads <n>    rough pretty-printing of an input file with n threads (default: 1)");
 			LOGGER.log(logLevel, "Examples:");
 			LOGGER.log(logLevel, String.format("\t%s in-file.xml out-file.xml",
 					name));
@@ -168,14 +358,29 @@ public class XmlFormatter {
 			int indentSpaces = DEFAULT_ARG_INDENT_SPACES;
 			String indent = DEFAULT_ARG_INDENT;
 			boolean correct = DEFAULT_ARG_CORRECT;
+			boolean streaming = DEFAULT_ARG_STREAMING;
 			Path inFile = null;
 			Path outFile = null;
 			int bufferSize = DEFAULT_BUFFER_SIZE;
+			int threads = 1;
+			boolean canonical = false;
+			Path catalog = null;
+			boolean ignoreExternal = false;
 			final Iterator<String> argsIt = argsL.iterator();
 			while (argsIt.hasNext()) {
 				final String arg = argsIt.next();
 				if ("-r".equals(arg) || "--rough".equals(arg)) {
 					correct = false;
+				} else if ("-s".equals(arg) || "--streaming".equals(arg)) {
+					streaming = true;
+				} else if ("-t".equals(arg) || "--threads".equals(arg)) {
+					threads = Integer.parseInt(argsIt.next());
+				} else if ("-c".equals(arg) || "--canonical".equals(arg)) {
+					canonical = true;
+				} else if ("--catalog".equals(arg)) {
+					catalog = Paths.get(argsIt.next());
+				} else if ("--no-external".equals(arg)) {
+					ignoreExternal = true;
 				} else if ("--indent-spaces".equals(arg)) {
 					indentSpaces = Integer.parseInt(argsIt.next());
 				} else if ("--indent".equals(arg)) {
@@ -195,12 +400,32 @@ public class XmlFormatter {
 				}
 			}
 
-			final XmlFormatter xmlFormatter = new XmlFormatter(indentSpaces, indent, correct);
+			final XmlFormatter xmlFormatter = new XmlFormatter(indentSpaces, indent, correct, streaming);
+			xmlFormatter.setParallelism(threads);
+			xmlFormatter.setCanonical(canonical);
+
+			try {
+				xmlFormatter.setEntityResolver(catalog == null
+						? new OfflineEntityResolver(ignoreExternal)
+						: new OfflineEntityResolver(catalog, ignoreExternal));
+			} catch (final IOException exc) {
+				if (LOGGER.isLoggable(Level.SEVERE)) {
+					LOGGER.log(Level.SEVERE, "Failed to read the XML catalog", exc);
+				}
+				System.exit(1);
+			}
 
 			try (InputStream source = createInput(inFile);
 					OutputStream target = createOutput(outFile))
 			{
-				xmlFormatter.prettify(source, target, createBuffer(bufferSize));
+				if (inFile != null && xmlFormatter.isParallel(Files.size(inFile))) {
+					try (FileChannel channel = FileChannel.open(inFile)) {
+						xmlFormatter.prettifyRoughAndFast(
+								channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), target);
+					}
+				} else {
+					xmlFormatter.prettify(source, target, createBuffer(bufferSize));
+				}
 			} catch (final Exception exc) {
 				if (LOGGER.isLoggable(Level.SEVERE)) {
 					LOGGER.log(Level.SEVERE, "Failed to XML pretty-print", exc);
@@ -227,15 +452,42 @@ public class XmlFormatter {
 			throws IOException
 	{
 		try {
-			if (correct) {
+			prettifyOrFail(xmlIn, xmlOut, buffer);
+		} catch (final IOException exc) {
+			LOGGER.log(Level.WARNING, "Failed to pretty print; fallback to carbon-copy", exc);
+			// In case of failure of pretty-printing, use the XML as-is
+			Utils.transferTo(xmlIn, xmlOut, buffer);
+		}
+	}
+
+	/**
+	 * Reformats XML content to be easy on the human eye,
+	 * without falling back to the original content on failure.
+	 * CAUTION Parts of the output may already be written
+	 * when this fails, so the caller has to take care of that,
+	 * for example by starting over with the original content.
+	 *
+	 * @param xmlIn  the supplier of XML content to pretty-print
+	 * @param xmlOut where the pretty XML content shall be written to
+	 * @param buffer may be used internally for whatever in- or out-buffering there might be
+	 * @throws IOException if any input or output fails, or the input is not valid XML
+	 * @see #prettify(InputStream, OutputStream, byte[])
+	 */
+	public void prettifyOrFail(final InputStream xmlIn, final OutputStream xmlOut, final byte[] buffer)
+			throws IOException
+	{
+		try {
+			if (correct && (streaming || canonical)) {
+				prettifyStreaming(xmlIn, xmlOut);
+			} else if (correct) {
 				prettifyCorrect(xmlIn, xmlOut);
 			} else {
 				prettifyRoughAndFast(xmlIn, xmlOut, buffer);
 			}
+		} catch (final IOException exc) {
+			throw exc;
 		} catch (final Exception exc) {
-			LOGGER.log(Level.WARNING, "Failed to pretty print; fallback to carbon-copy", exc);
-			// In case of failure of pretty-printing, use the XML as-is
-			Utils.transferTo(xmlIn, xmlOut, buffer);
+			throw new IOException("Failed to pretty print", exc);
 		}
 	}
 
@@ -269,102 +521,1054 @@ public class XmlFormatter {
 			XPathExpressionException,
 			TransformerException
 	{
-		final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
-		documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-		final Document document = documentBuilderFactory
-				.newDocumentBuilder()
-				.parse(new InputSource(xmlIn));
+		final JaxpCache jaxp = jaxpCache.get();
+		boolean complete = false;
+		try {
+			final DocumentBuilder documentBuilder = jaxp.getDocumentBuilder(entityResolver.isIgnoreExternal());
+			// never fetch external DTDs or entities
+			documentBuilder.setEntityResolver(entityResolver);
+			final Document document;
+			try {
+				document = documentBuilder.parse(new InputSource(xmlIn));
+			} finally {
+				documentBuilder.reset();
+			}
 
-		final XPath xPath = XPathFactory.newInstance().newXPath();
-		final NodeList nodeList = (NodeList) xPath.evaluate("//text()[normalize-space()='']",
-				document,
-				XPathConstants.NODESET);
+			final NodeList nodeList = (NodeList) jaxp.getWhitespaceExpression().evaluate(document,
+					XPathConstants.NODESET);
+
+			for (int i = 0; i < nodeList.getLength(); ++i) {
+				Node node = nodeList.item(i);
+				node.getParentNode().removeChild(node);
+			}
 
-		for (int i = 0; i < nodeList.getLength(); ++i) {
-			Node node = nodeList.item(i);
-			node.getParentNode().removeChild(node);
+			final StreamResult streamResult = new StreamResult(xmlOut);
+
+			jaxp.getTransformer(indentSpaces).transform(new DOMSource(document), streamResult);
+			complete = true;
+		} finally {
+			if (!complete) {
+				// do not re-use objects that failed half-way
+				jaxpCache.remove();
+			}
 		}
+	}
 
-		final TransformerFactory transformerFactory = TransformerFactory.newInstance();
-		transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
-		final Transformer transformer = transformerFactory.newTransformer();
-		transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
-		transformer.setOutputProperty(OutputKeys.INDENT, "yes");
-		transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", String.valueOf(indentSpaces));
+	/**
+	 * Reformats XML content in a single pass,
+	 * dropping whitespace-only text and indenting elements on the fly,
+	 * like {@link #prettifyCorrect(InputStream, OutputStream)} does,
+	 * but without ever holding more then a single element in memory.
+	 * Elements containing text are not indented within,
+	 * and whitespace-only text is kept within them,
+	 * from the first non-whitespace text on,
+	 * so no whitespace is added to or removed from their text after that.
+	 * CAUTION As the output is written while reading,
+	 * it may be incomplete if the input turns out to be invalid.
+	 *
+	 * @param xmlIn  the supplier of XML content to pretty-print
+	 * @param xmlOut where the pretty XML content shall be written to;
+	 *   it gets flushed, but not closed
+	 * @throws IOException if any output fails
+	 * @throws XMLStreamException if the input is not valid XML
+	 */
+	public void prettifyStreaming(final InputStream xmlIn, final OutputStream xmlOut)
+			throws IOException, XMLStreamException
+	{
+		final JaxpCache jaxp = jaxpCache.get();
+		final XMLInputFactory inputFactory = jaxp.getInputFactory();
+		// never fetch external DTDs or entities
+		inputFactory.setXMLResolver(entityResolver);
+		final XMLStreamReader reader = inputFactory.createXMLStreamReader(xmlIn);
+		try {
+			final Writer out = new OutputStreamWriter(xmlOut, StandardCharsets.UTF_8);
+			out.write(String.format("<?xml version=\"%s\" encoding=\"UTF-8\" standalone=\"%s\"?>",
+					reader.getVersion() == null ? "1.0" : reader.getVersion(),
+					reader.standaloneSet() && reader.isStandalone() ? "yes" : "no"));
+			final XMLStreamWriter writer = jaxp.getOutputFactory().createXMLStreamWriter(out);
+			new StreamingPrettifier(reader, writer, createIndent(indentSpaces), canonical).run();
+			// this also completes a trailing empty element
+			writer.writeEndDocument();
+			writer.flush();
+			out.write('\n');
+			out.flush();
+		} finally {
+			reader.close();
+		}
+	}
 
-		final StreamResult streamResult = new StreamResult(xmlOut);
+	private static String createIndent(final int spaces) {
 
-		transformer.transform(new DOMSource(document), streamResult);
+		final StringBuilder indentBuilder = new StringBuilder(spaces);
+		for (int si = 0; si < spaces; si++) {
+			indentBuilder.append(' ');
+		}
+		return indentBuilder.toString();
 	}
 
+	/**
+	 * Reformats XML content to be easy on the human eye,
+	 * by putting every tag and every line of text on a line of its own,
+	 * and indenting it according to the nesting of the elements.
+	 * This works on the raw bytes, so it requires an ASCII compatible encoding,
+	 * like UTF-8 or ISO-8859-*, but the content does not need to be valid XML.
+	 *
+	 * @param xmlIn  the supplier of XML content to pretty-print
+	 * @param xmlOut where the pretty XML content shall be written to;
+	 *   it gets flushed, but not closed
+	 * @param buffer used for reading the input
+	 * @throws IOException if any input or output fails
+	 */
 	public void prettifyRoughAndFast(final InputStream xmlIn, final OutputStream xmlOut, final byte[] buffer)
 			throws IOException
 	{
-		// this is a kind of stack, denoting the number of indents
-		int numIndents = 0;
+		final RoughScanner scanner = new RoughScanner(xmlOut, indent.getBytes(StandardCharsets.UTF_8), 0);
+		try {
+			for (int readBytes = xmlIn.read(buffer); readBytes > 0; readBytes = xmlIn.read(buffer)) {
+				scanner.scan(buffer, readBytes);
+			}
+			scanner.finish();
+		} finally {
+			scanner.release();
+		}
+	}
 
-		// prepare the in-buffer
-		final StringBuilder inBuffer = new StringBuilder();
-		// prepare the out stream wrapper,
-		// which allows to write string data more comfortably
-		final PrintStream xmlOutPrinter = new PrintStream(xmlOut);
+	/**
+	 * Reformats XML content like {@link #prettifyRoughAndFast(InputStream, OutputStream, byte[])},
+	 * producing exactly the same output, but using up to {@link #getParallelism()} threads.
+	 * The content gets split into chunks, each ending with a '{@literal >}'.
+	 * All chunks are scanned concurrently, as if each started right after a tag,
+	 * to find how much they change the indentation.
+	 * Where this assumption turns out wrong,
+	 * for example because a '{@literal >}' was part of a comment,
+	 * the scan continues sequentially into the following chunk.
+	 * The resulting segments then get pretty-printed concurrently,
+	 * each starting with the sum of the indentation changes before it,
+	 * and are written in order.
+	 *
+	 * @param xml    the XML content to pretty-print; its position is not changed
+	 * @param xmlOut where the pretty XML content shall be written to;
+	 *   it gets flushed, but not closed
+	 * @throws IOException if any output fails
+	 */
+	public void prettifyRoughAndFast(final ByteBuffer xml, final OutputStream xmlOut) throws IOException {
+		prettifyRoughAndFast(xml, xmlOut,
+				Math.max(MIN_PARALLEL_CHUNK_SIZE, xml.remaining() / (4 * parallelism)));
+	}
 
-		for (int readBytes = xmlIn.read(buffer); readBytes > 0; readBytes = xmlIn.read(buffer)) {
-			// convert the newly read part to a string
-			// and append it to the leftover, which was already read
-			inBuffer.append(new String(buffer, 0, readBytes));
+	void prettifyRoughAndFast(final ByteBuffer xml, final OutputStream xmlOut, final int chunkSize)
+			throws IOException
+	{
+		final byte[] indentBytes = indent.getBytes(StandardCharsets.UTF_8);
+		final int[] bounds = splitAfterTags(xml, chunkSize);
+		if (parallelism == 1 || bounds.length <= 2) {
+			final RoughScanner scanner = new RoughScanner(xmlOut, indentBytes, 0);
+			try {
+				scanner.scan(xml);
+				scanner.finish();
+			} finally {
+				scanner.release();
+			}
+			return;
+		}
 
-			// split all the content we have at the moment into rows (think: lines)
-			final String[] rows = inBuffer.toString()
-					.replace(">", ">\n")
-					.replace("<", "\n<")
-					.split("\n");
+		final ForkJoinPool pool = new ForkJoinPool(parallelism);
+		final List<ForkJoinTask<SpillingOutputStream>> segments = new ArrayList<>();
+		int written = 0;
+		try {
+			final List<ForkJoinTask<RoughScanner>> dryRuns = new ArrayList<>(bounds.length - 1);
+			for (int ci = 0; ci < bounds.length - 1; ci++) {
+				final ByteBuffer chunk = slice(xml, bounds[ci], bounds[ci + 1]);
+				dryRuns.add(pool.submit(() -> {
+					final RoughScanner dryRun = new RoughScanner(null, indentBytes, 0);
+					dryRun.scan(chunk);
+					return dryRun;
+				}));
+			}
+			int numIndents = 0;
+			int ci = 0;
+			while (ci < dryRuns.size()) {
+				final int start = bounds[ci];
+				final RoughScanner dryRun = Utils.await(dryRuns.get(ci));
+				ci++;
+				while (!dryRun.isAfterMarkup() && ci < dryRuns.size()) {
+					// the next chunk does not start right after a tag; continue with the actual state
+					dryRun.scan(slice(xml, bounds[ci], bounds[ci + 1]));
+					ci++;
+				}
+				final ByteBuffer segment = slice(xml, start, bounds[ci]);
+				final int startIndents = numIndents;
+				segments.add(pool.submit(() -> prettifySegment(segment, indentBytes, startIndents)));
+				numIndents += dryRun.getIndents();
+			}
+			for (; written < segments.size(); written++) {
+				final SpillingOutputStream segmentOut = Utils.await(segments.get(written));
+				try {
+					segmentOut.writeTo(xmlOut);
+				} finally {
+					segmentOut.discard();
+				}
+			}
+			xmlOut.flush();
+		} finally {
+			pool.shutdownNow();
+			discardSegments(segments.subList(written, segments.size()));
+		}
+	}
 
-			// handle all except the last row,
-			// because it is potentially incomplete
-			for (int ir = 0; ir < rows.length - 1; ir++) {
-				numIndents = handleRow(xmlOutPrinter, rows[ir].trim(), numIndents);
+	/**
+	 * Finds where to split content into chunks of roughly the given size,
+	 * each but the last one ending with a '{@literal >}'.
+	 *
+	 * @return the start of each chunk, followed by the end of the last one
+	 */
+	private static int[] splitAfterTags(final ByteBuffer xml, final int chunkSize) {
+
+		final int limit = xml.limit();
+		final List<Integer> bounds = new ArrayList<>();
+		int bound = xml.position();
+		bounds.add(bound);
+		while (limit - bound > chunkSize) {
+			bound += chunkSize;
+			while (bound < limit && xml.get(bound - 1) != '>') {
+				bound++;
 			}
+			bounds.add(bound);
+		}
+		if (bound < limit) {
+			bounds.add(limit);
+		}
+		final int[] boundsArr = new int[bounds.size()];
+		for (int bi = 0; bi < boundsArr.length; bi++) {
+			boundsArr[bi] = bounds.get(bi);
+		}
+		return boundsArr;
+	}
+
+	private static ByteBuffer slice(final ByteBuffer xml, final int start, final int end) {
+
+		final ByteBuffer slice = xml.duplicate();
+		slice.limit(end);
+		slice.position(start);
+		return slice;
+	}
 
-			// fill the buffer with only the last row,
-			// which is potentially incomplete
-			inBuffer.setLength(0);
-			inBuffer.append(rows[rows.length - 1]);
+	private static SpillingOutputStream prettifySegment(final ByteBuffer segment, final byte[] indent,
+			final int numIndents)
+			throws IOException
+	{
+		final SpillingOutputStream segmentOut = new SpillingOutputStream();
+		final RoughScanner scanner = new RoughScanner(segmentOut, indent, numIndents);
+		boolean complete = false;
+		try {
+			scanner.scan(segment);
+			scanner.finish();
+			complete = true;
+			return segmentOut;
+		} finally {
+			scanner.release();
+			if (!complete) {
+				segmentOut.discard();
+			}
 		}
-		// handle the last row
-		handleRow(xmlOutPrinter, inBuffer.toString().trim(), numIndents);
 	}
 
-	private static void appendIndents(final PrintStream output, final int numIndents, final String indent) {
+	/**
+	 * Releases the buffers of segments that were pretty-printed,
+	 * but will not be written anymore, because of a failure.
+	 */
+	private static void discardSegments(final List<ForkJoinTask<SpillingOutputStream>> segments) {
 
-		for (int ii = 0; ii < numIndents; ii++) {
-			output.append(indent);
+		for (final ForkJoinTask<SpillingOutputStream> segment : segments) {
+			try {
+				segment.join().discard();
+			} catch (final Exception exc) {
+				// we are failing already
+				if (LOGGER.isLoggable(Level.FINE)) {
+					LOGGER.log(Level.FINE, "Failed to discard a pretty-printed segment", exc);
+				}
+			}
 		}
 	}
 
-	private int handleRow(final PrintStream xmlOut, final String row, final int numIndents) {
+	/**
+	 * A state machine doing <em>rough and fast</em> pretty'fication on raw bytes.
+	 * It may be fed the input in arbitrary pieces.
+	 * Tags are copied as they are, and are only scanned for their end,
+	 * taking quoted attribute values into account,
+	 * while comments, CDATA sections, processing instructions
+	 * and declarations like {@code <!DOCTYPE ...>} end only with their respective end markers.
+	 * Text is trimmed line by line; whitespace within a line is withheld
+	 * until we know whether more text follows on the same line.
+	 * Without an output, it only keeps track of its state,
+	 * which allows to find out how a piece of input changes the indentation.
+	 */
+	private static final class RoughScanner {
+
+		private static final int STATE_TEXT = 0;
+		/** Just after a '{@literal <}'. */
+		private static final int STATE_TAG_START = 1;
+		/** Just after "{@literal <}!", while it may still become a comment or CDATA section. */
+		private static final int STATE_BANG = 2;
+		private static final int STATE_OPEN_TAG = 3;
+		private static final int STATE_CLOSE_TAG = 4;
+		private static final int STATE_PROCESSING_INSTRUCTION = 5;
+		private static final int STATE_COMMENT = 6;
+		private static final int STATE_CDATA = 7;
+		private static final int STATE_DECLARATION = 8;
+
+		/** What follows "{@literal <}!" in a comment start. */
+		private static final byte[] COMMENT_START = "--".getBytes(StandardCharsets.US_ASCII);
+		/** What follows "{@literal <}!" in a CDATA section start. */
+		private static final byte[] CDATA_START = "[CDATA[".getBytes(StandardCharsets.US_ASCII);
+		private static final int INITIAL_WHITESPACE_SIZE = 64;
+
+		private final OutputStream out;
+		private final byte[] indent;
+		private final byte[] outBuffer;
+		private int outLength;
+		private int state;
+		private int numIndents;
+		/**
+		 * Whether some of the current line of text was written already.
+		 */
+		private boolean lineStarted;
+		private byte[] whitespace;
+		private int whitespaceLength;
+		private final byte[] bang;
+		private int bangLength;
+		/**
+		 * The quote character of the attribute value we are in, or {@code 0}.
+		 */
+		private byte quote;
+		private byte previous;
+		/**
+		 * How many of the characters repeated in an end marker
+		 * (like '-' in "--{@literal >}") we just saw.
+		 */
+		private int repeated;
+		private int bracketDepth;
+
+		RoughScanner(final OutputStream out, final byte[] indent, final int numIndents) {
+
+			this.out = out;
+			this.indent = indent;
+			this.outBuffer = out == null ? null : BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+			this.outLength = 0;
+			this.state = STATE_TEXT;
+			this.numIndents = numIndents;
+			this.lineStarted = false;
+			this.whitespace = new byte[INITIAL_WHITESPACE_SIZE];
+			this.whitespaceLength = 0;
+			this.bang = new byte[CDATA_START.length];
+			this.bangLength = 0;
+			this.quote = 0;
+			this.previous = 0;
+			this.repeated = 0;
+			this.bracketDepth = 0;
+		}
+
+		void scan(final byte[] input, final int length) throws IOException {
+			scan(input, 0, length);
+		}
+
+		private void scan(final byte[] input, final int off, final int length) throws IOException {
+
+			final int end = off + length;
+			for (int bi = off; bi < end; bi++) {
+				process(input[bi]);
+			}
+		}
+
+		/**
+		 * Scans the remaining content of a buffer, without changing its position.
+		 */
+		void scan(final ByteBuffer input) throws IOException {
 
-		int curIndents = numIndents;
-		if (!row.isEmpty()) {
-			if (row.startsWith("<?")) {
-				xmlOut.append(row).append("\n");
-			} else if (row.startsWith("</")) {
-				--curIndents;
-				appendIndents(xmlOut, curIndents, indent);
-				xmlOut.append(row).append("\n");
-			} else if (row.startsWith("<") && !row.endsWith("/>")) {
-				appendIndents(xmlOut, curIndents, indent);
-				xmlOut.append(row).append("\n");
-				curIndents++;
-				if (row.endsWith("]]>")) {
-					curIndents--;
+			if (input.hasArray()) {
+				scan(input.array(), input.arrayOffset() + input.position(), input.remaining());
+				return;
+			}
+			final ByteBuffer source = input.duplicate();
+			final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+			try {
+				while (source.hasRemaining()) {
+					final int length = Math.min(buffer.length, source.remaining());
+					source.get(buffer, 0, length);
+					scan(buffer, 0, length);
+				}
+			} finally {
+				BufferPool.getDefault().release(buffer);
+			}
+		}
+
+		/**
+		 * Whether we are in the state we are in right after a tag,
+		 * which is the one we start in.
+		 */
+		boolean isAfterMarkup() {
+			return state == STATE_TEXT && !lineStarted && whitespaceLength == 0;
+		}
+
+		/**
+		 * The current indentation level, which may be negative.
+		 */
+		int getIndents() {
+			return numIndents;
+		}
+
+		private void process(final byte cur) throws IOException {
+
+			switch (state) {
+				case STATE_TEXT:
+					processText(cur);
+					break;
+				case STATE_TAG_START:
+					processTagStart(cur);
+					break;
+				case STATE_BANG:
+					processBang(cur);
+					break;
+				case STATE_OPEN_TAG:
+				case STATE_CLOSE_TAG:
+					write(cur);
+					if (quote != 0) {
+						if (cur == quote) {
+							quote = 0;
+						}
+					} else if (cur == '"' || cur == '\'') {
+						quote = cur;
+					} else if (cur == '>') {
+						if (state == STATE_OPEN_TAG && previous != '/') {
+							numIndents++;
+						}
+						endMarkup();
+					}
+					previous = cur;
+					break;
+				case STATE_PROCESSING_INSTRUCTION:
+					write(cur);
+					if (cur == '>' && previous == '?') {
+						endMarkup();
+					}
+					previous = cur;
+					break;
+				case STATE_COMMENT:
+					processEndMarker(cur, (byte) '-');
+					break;
+				case STATE_CDATA:
+					processEndMarker(cur, (byte) ']');
+					break;
+				case STATE_DECLARATION:
+				default:
+					processDeclaration(cur);
+					break;
+			}
+		}
+
+		private void processText(final byte cur) throws IOException {
+
+			if (cur == '<') {
+				endTextLine();
+				state = STATE_TAG_START;
+			} else if (cur == '\n') {
+				endTextLine();
+			} else if ((cur & 0xFF) <= ' ') {
+				// leading whitespace is skipped, the rest withheld
+				if (lineStarted) {
+					if (whitespaceLength == whitespace.length) {
+						whitespace = Arrays.copyOf(whitespace, 2 * whitespace.length);
+					}
+					whitespace[whitespaceLength++] = cur;
+				}
+			} else {
+				if (lineStarted) {
+					write(whitespace, 0, whitespaceLength);
+					whitespaceLength = 0;
+				} else {
+					writeIndents();
+					lineStarted = true;
+				}
+				write(cur);
+			}
+		}
+
+		private void processTagStart(final byte cur) throws IOException {
+
+			if (cur == '?') {
+				write((byte) '<');
+				write(cur);
+				state = STATE_PROCESSING_INSTRUCTION;
+				previous = cur;
+			} else if (cur == '/') {
+				numIndents--;
+				writeIndents();
+				write((byte) '<');
+				write(cur);
+				state = STATE_CLOSE_TAG;
+				quote = 0;
+				previous = cur;
+			} else if (cur == '!') {
+				state = STATE_BANG;
+				bangLength = 0;
+			} else {
+				writeIndents();
+				write((byte) '<');
+				state = STATE_OPEN_TAG;
+				quote = 0;
+				previous = '<';
+				process(cur);
+			}
+		}
+
+		private void processBang(final byte cur) throws IOException {
+
+			bang[bangLength++] = cur;
+			final byte[] candidate = bang[0] == COMMENT_START[0] ? COMMENT_START
+					: (bang[0] == CDATA_START[0] ? CDATA_START : null);
+			if (candidate != null && cur == candidate[bangLength - 1]) {
+				if (bangLength == candidate.length) {
+					writeIndents();
+					write((byte) '<');
+					write((byte) '!');
+					write(bang, 0, bangLength);
+					state = candidate == COMMENT_START ? STATE_COMMENT : STATE_CDATA;
+					repeated = 0;
+				}
+				return;
+			}
+			writeIndents();
+			write((byte) '<');
+			write((byte) '!');
+			state = STATE_DECLARATION;
+			quote = 0;
+			bracketDepth = 0;
+			// what we collected may contain anything up to the end of the declaration
+			for (int bi = 0; bi < bangLength; bi++) {
+				process(bang[bi]);
+			}
+		}
+
+		private void processEndMarker(final byte cur, final byte repeatedMarker) throws IOException {
+
+			write(cur);
+			if (cur == '>' && repeated >= 2) {
+				endMarkup();
+			} else if (cur == repeatedMarker) {
+				repeated++;
+			} else {
+				repeated = 0;
+			}
+		}
+
+		private void processDeclaration(final byte cur) throws IOException {
+
+			write(cur);
+			if (quote != 0) {
+				if (cur == quote) {
+					quote = 0;
+				}
+			} else if (cur == '"' || cur == '\'') {
+				quote = cur;
+			} else if (cur == '[') {
+				bracketDepth++;
+			} else if (cur == ']') {
+				bracketDepth--;
+			} else if (cur == '>' && bracketDepth <= 0) {
+				endMarkup();
+			}
+		}
+
+		private void endMarkup() throws IOException {
+
+			write((byte) '\n');
+			state = STATE_TEXT;
+			lineStarted = false;
+			whitespaceLength = 0;
+		}
+
+		private void endTextLine() throws IOException {
+
+			if (lineStarted) {
+				write((byte) '\n');
+				lineStarted = false;
+			}
+			whitespaceLength = 0;
+		}
+
+		/**
+		 * Completes what is left unfinished at the end of the input.
+		 */
+		void finish() throws IOException {
+
+			switch (state) {
+				case STATE_TEXT:
+					endTextLine();
+					break;
+				case STATE_TAG_START:
+					writeIndents();
+					write((byte) '<');
+					endMarkup();
+					break;
+				case STATE_BANG:
+					writeIndents();
+					write((byte) '<');
+					write((byte) '!');
+					write(bang, 0, bangLength);
+					endMarkup();
+					break;
+				default:
+					endMarkup();
+					break;
+			}
+			if (out != null) {
+				out.write(outBuffer, 0, outLength);
+				outLength = 0;
+				out.flush();
+			}
+		}
+
+		void release() {
+
+			if (outBuffer != null) {
+				BufferPool.getDefault().release(outBuffer);
+			}
+		}
+
+		private void writeIndents() throws IOException {
+
+			for (int ii = 0; ii < numIndents; ii++) {
+				write(indent, 0, indent.length);
+			}
+		}
+
+		private void write(final byte cur) throws IOException {
+
+			if (out == null) {
+				return;
+			}
+			if (outLength == outBuffer.length) {
+				out.write(outBuffer, 0, outLength);
+				outLength = 0;
+			}
+			outBuffer[outLength++] = cur;
+		}
+
+		private void write(final byte[] bytes, final int off, final int len) throws IOException {
+
+			if (out == null) {
+				return;
+			}
+			if (len > outBuffer.length - outLength) {
+				out.write(outBuffer, 0, outLength);
+				outLength = 0;
+				if (len > outBuffer.length) {
+					out.write(bytes, off, len);
+					return;
+				}
+			}
+			System.arraycopy(bytes, off, outBuffer, outLength, len);
+			outLength += len;
+		}
+	}
+
+	/**
+	 * The JAXP objects used by a single thread, each created on first use.
+	 * Looking up the factories through the service loader,
+	 * and creating and configuring the parsers and serializers,
+	 * often takes longer then pretty-printing a small document.
+	 */
+	private static final class JaxpCache {
+
+		private DocumentBuilder documentBuilder;
+		/**
+		 * Whether {@link #documentBuilder} does not load external DTDs.
+		 */
+		private boolean ignoreExternal;
+		private XPathExpression whitespaceExpression;
+		private Transformer transformer;
+		private XMLInputFactory inputFactory;
+		private XMLOutputFactory outputFactory;
+
+		DocumentBuilder getDocumentBuilder(final boolean ignoreExternal) throws ParserConfigurationException {
+
+			if (documentBuilder == null || this.ignoreExternal != ignoreExternal) {
+				final DocumentBuilderFactory documentBuilderFactory = DocumentBuilderFactory.newInstance();
+				documentBuilderFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+				if (ignoreExternal) {
+					documentBuilderFactory.setFeature(LOAD_EXTERNAL_DTD_FEATURE, false);
+				}
+				documentBuilder = documentBuilderFactory.newDocumentBuilder();
+				this.ignoreExternal = ignoreExternal;
+			}
+			return documentBuilder;
+		}
+
+		XPathExpression getWhitespaceExpression() throws XPathExpressionException {
+
+			if (whitespaceExpression == null) {
+				whitespaceExpression = XPathFactory.newInstance().newXPath()
+						.compile("//text()[normalize-space()='']");
+			}
+			return whitespaceExpression;
+		}
+
+		/**
+		 * Returns the serializer.
+		 * The indentation is always the same for one formatter,
+		 * and this cache belongs to a single formatter.
+		 */
+		Transformer getTransformer(final int indentSpaces) throws TransformerException {
+
+			if (transformer == null) {
+				final TransformerFactory transformerFactory = TransformerFactory.newInstance();
+				transformerFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+				transformer = transformerFactory.newTransformer();
+				transformer.setOutputProperty(OutputKeys.OMIT_XML_DECLARATION, "no");
+				transformer.setOutputProperty(OutputKeys.INDENT, "yes");
+				transformer.setOutputProperty("{http://xml.apache.org/xslt}indent-amount", String.valueOf(indentSpaces));
+			}
+			return transformer;
+		}
+
+		XMLInputFactory getInputFactory() {
+
+			if (inputFactory == null) {
+				inputFactory = XMLInputFactory.newInstance();
+				inputFactory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+				inputFactory.setProperty(XMLInputFactory.IS_COALESCING, false);
+				if (inputFactory.isPropertySupported(REPORT_CDATA_PROPERTY)) {
+					// the JDK internal implementation reports CDATA as plain text otherwise
+					inputFactory.setProperty(REPORT_CDATA_PROPERTY, true);
+				}
+			}
+			return inputFactory;
+		}
+
+		XMLOutputFactory getOutputFactory() {
+
+			if (outputFactory == null) {
+				outputFactory = XMLOutputFactory.newInstance();
+			}
+			return outputFactory;
+		}
+	}
+
+	/**
+	 * Copies events from a StAX reader to a writer,
+	 * dropping whitespace-only text and adding indents.
+	 * A start tag is only written once we know whether the element is empty,
+	 * and whitespace only while we do not know yet whether it is all there is of a text,
+	 * so only a single start tag and a run of whitespace are ever held in memory.
+	 * In <em>canonical</em> mode, namespace declarations are ordered by prefix,
+	 * attributes by namespace URI and local name, like in
+	 * <a href="https://www.w3.org/TR/xml-c14n/">Canonical XML</a>,
+	 * and namespace declarations already in scope are dropped.
+	 */
+	private static final class StreamingPrettifier {
+
+		/** Orders namespace declarations, given as prefix-URI pairs. */
+		private static final Comparator<String[]> NAMESPACE_ORDER = Comparator.comparing(namespace -> namespace[0]);
+		/** Orders attributes, given as prefix-namespace-name-value quadruples. */
+		private static final Comparator<String[]> ATTRIBUTE_ORDER
+				= Comparator.<String[], String>comparing(attribute -> attribute[1])
+				.thenComparing(attribute -> attribute[2]);
+
+		private final XMLStreamReader reader;
+		private final XMLStreamWriter writer;
+		private final String indent;
+		private final StringBuilder whitespace;
+		private int depth;
+		/**
+		 * Whether the current text contains more then whitespace,
+		 * in which case it was written already.
+		 */
+		private boolean inText;
+		/**
+		 * Which of the open elements, by nesting depth, contain text,
+		 * in which case neither their children nor their end tags
+		 * may be indented, as that would change the text.
+		 * Bit {@code 0} stands for the document itself.
+		 */
+		private final BitSet mixed;
+		/**
+		 * Whether the start tag of the current element is yet to be written.
+		 */
+		private boolean startPending;
+		private String pendingPrefix;
+		private String pendingLocalName;
+		private String pendingNamespace;
+		/**
+		 * Namespace declarations of the pending start tag, as prefix-URI pairs.
+		 */
+		private final List<String> pendingNamespaces;
+		/**
+		 * Attributes of the pending start tag, as prefix-namespace-name-value quadruples.
+		 */
+		private final List<String> pendingAttributes;
+		private final boolean canonical;
+		/**
+		 * The namespace declarations in scope, as prefix-URI pairs;
+		 * only maintained in <em>canonical</em> mode.
+		 */
+		private final List<String> namespaceScope;
+		/**
+		 * The size of {@link #namespaceScope} at the start of each open element.
+		 */
+		private final Deque<Integer> namespaceScopeSizes;
+
+		StreamingPrettifier(final XMLStreamReader reader, final XMLStreamWriter writer, final String indent,
+				final boolean canonical)
+		{
+			this.reader = reader;
+			this.writer = writer;
+			this.indent = indent;
+			this.canonical = canonical;
+			this.namespaceScope = new ArrayList<>();
+			this.namespaceScopeSizes = new ArrayDeque<>();
+			this.whitespace = new StringBuilder();
+			this.depth = 0;
+			this.inText = false;
+			this.mixed = new BitSet();
+			this.startPending = false;
+			this.pendingPrefix = null;
+			this.pendingLocalName = null;
+			this.pendingNamespace = null;
+			this.pendingNamespaces = new ArrayList<>();
+			this.pendingAttributes = new ArrayList<>();
+		}
+
+		void run() throws XMLStreamException {
+
+			while (reader.hasNext()) {
+				switch (reader.next()) {
+					case XMLStreamConstants.START_ELEMENT:
+						endText();
+						writePendingStart(false);
+						writeIndent(depth, mixed.get(depth));
+						readStart();
+						depth++;
+						break;
+					case XMLStreamConstants.END_ELEMENT:
+						endText();
+						final boolean mixedContent = mixed.get(depth);
+						mixed.clear(depth);
+						depth--;
+						if (startPending) {
+							writePendingStart(true);
+						} else {
+							writeIndent(depth, mixedContent);
+							writer.writeEndElement();
+							endNamespaceScope();
+						}
+						break;
+					case XMLStreamConstants.CHARACTERS:
+						handleText();
+						break;
+					case XMLStreamConstants.CDATA:
+						endText();
+						writePendingStart(false);
+						writer.writeCData(reader.getText());
+						mixed.set(depth);
+						break;
+					case XMLStreamConstants.COMMENT:
+						endText();
+						writePendingStart(false);
+						writeIndent(depth, mixed.get(depth));
+						writer.writeComment(reader.getText());
+						break;
+					case XMLStreamConstants.PROCESSING_INSTRUCTION:
+						endText();
+						writePendingStart(false);
+						writeIndent(depth, mixed.get(depth));
+						writer.writeProcessingInstruction(reader.getPITarget(), reader.getPIData());
+						break;
+					case XMLStreamConstants.DTD:
+						writeIndent(depth, mixed.get(depth));
+						writer.writeDTD(reader.getText());
+						break;
+					case XMLStreamConstants.ENTITY_REFERENCE:
+						endText();
+						writePendingStart(false);
+						writer.writeEntityRef(reader.getLocalName());
+						mixed.set(depth);
+						break;
+					default:
+						// ignorable whitespace, document start and end
+						break;
 				}
+			}
+		}
+
+		private void handleText() throws XMLStreamException {
+
+			final char[] chars = reader.getTextCharacters();
+			final int start = reader.getTextStart();
+			final int length = reader.getTextLength();
+			if (!inText) {
+				int ci = start;
+				while (ci < start + length && isXmlWhitespace(chars[ci])) {
+					ci++;
+				}
+				if (ci == start + length) {
+					// nothing but whitespace so far
+					whitespace.append(chars, start, length);
+					return;
+				}
+				inText = true;
+				writePendingStart(false);
+				if (whitespace.length() > 0) {
+					writer.writeCharacters(whitespace.toString());
+					whitespace.setLength(0);
+				}
+			}
+			writer.writeCharacters(chars, start, length);
+			mixed.set(depth);
+		}
+
+		/**
+		 * Whether a character is white-space in the sense of XML,
+		 * as opposed to {@link Character#isWhitespace(char)},
+		 * which also matches the wide spaces of Unicode,
+		 * that carry content.
+		 */
+		private static boolean isXmlWhitespace(final char chr) {
+			return chr == ' ' || chr == '\t' || chr == '\n' || chr == '\r';
+		}
+
+		/**
+		 * Ends the current text; whitespace-only text gets dropped,
+		 * unless the current element is known to contain text already.
+		 */
+		private void endText() throws XMLStreamException {
+
+			if (!inText && whitespace.length() > 0 && mixed.get(depth)) {
+				writer.writeCharacters(whitespace.toString());
+			}
+			whitespace.setLength(0);
+			inText = false;
+		}
+
+		private static String nonNull(final String value) {
+			return value == null ? "" : value;
+		}
+
+		/**
+		 * Remembers the start tag the reader is at.
+		 */
+		private void readStart() {
+
+			startPending = true;
+			pendingPrefix = nonNull(reader.getPrefix());
+			pendingLocalName = reader.getLocalName();
+			pendingNamespace = nonNull(reader.getNamespaceURI());
+			pendingNamespaces.clear();
+			for (int ni = 0; ni < reader.getNamespaceCount(); ni++) {
+				pendingNamespaces.add(nonNull(reader.getNamespacePrefix(ni)));
+				pendingNamespaces.add(nonNull(reader.getNamespaceURI(ni)));
+			}
+			pendingAttributes.clear();
+			for (int ai = 0; ai < reader.getAttributeCount(); ai++) {
+				pendingAttributes.add(nonNull(reader.getAttributePrefix(ai)));
+				pendingAttributes.add(nonNull(reader.getAttributeNamespace(ai)));
+				pendingAttributes.add(reader.getAttributeLocalName(ai));
+				pendingAttributes.add(reader.getAttributeValue(ai));
+			}
+		}
+
+		private void writePendingStart(final boolean empty) throws XMLStreamException {
+
+			if (!startPending) {
+				return;
+			}
+			startPending = false;
+			if (empty) {
+				writer.writeEmptyElement(pendingPrefix, pendingLocalName, pendingNamespace);
 			} else {
-				appendIndents(xmlOut, curIndents, indent);
-				xmlOut.append(row).append("\n");
+				writer.writeStartElement(pendingPrefix, pendingLocalName, pendingNamespace);
+			}
+			if (canonical) {
+				namespaceScopeSizes.push(namespaceScope.size());
+			}
+			for (final String[] namespace : ordered(pendingNamespaces, 2, NAMESPACE_ORDER)) {
+				if (canonical) {
+					if (isInScope(namespace[0], namespace[1])) {
+						continue;
+					}
+					namespaceScope.add(namespace[0]);
+					namespaceScope.add(namespace[1]);
+				}
+				if (namespace[0].isEmpty()) {
+					writer.writeDefaultNamespace(namespace[1]);
+				} else {
+					writer.writeNamespace(namespace[0], namespace[1]);
+				}
+			}
+			for (final String[] attribute : ordered(pendingAttributes, 4, ATTRIBUTE_ORDER)) {
+				if (attribute[0].isEmpty()) {
+					writer.writeAttribute(attribute[2], attribute[3]);
+				} else {
+					writer.writeAttribute(attribute[0], attribute[1], attribute[2], attribute[3]);
+				}
+			}
+			if (empty) {
+				endNamespaceScope();
+			}
+		}
+
+		/**
+		 * Splits a list into tuples, and orders them in <em>canonical</em> mode.
+		 */
+		private List<String[]> ordered(final List<String> values, final int tupleSize,
+				final Comparator<String[]> order)
+		{
+			final List<String[]> tuples = new ArrayList<>(values.size() / tupleSize);
+			for (int vi = 0; vi < values.size(); vi += tupleSize) {
+				tuples.add(values.subList(vi, vi + tupleSize).toArray(new String[tupleSize]));
+			}
+			if (canonical) {
+				tuples.sort(order);
+			}
+			return tuples;
+		}
+
+		/**
+		 * Checks whether a namespace prefix is bound to a URI already.
+		 */
+		private boolean isInScope(final String prefix, final String uri) {
+
+			for (int ni = namespaceScope.size() - 2; ni >= 0; ni -= 2) {
+				if (namespaceScope.get(ni).equals(prefix)) {
+					return namespaceScope.get(ni + 1).equals(uri);
+				}
+			}
+			// only the empty default namespace is in scope initially
+			return prefix.isEmpty() && uri.isEmpty();
+		}
+
+		private void endNamespaceScope() {
+
+			if (canonical) {
+				final int size = namespaceScopeSizes.pop();
+				namespaceScope.subList(size, namespaceScope.size()).clear();
 			}
 		}
 
-		return curIndents;
+		/**
+		 * Starts a new, indented line, unless within mixed content.
+		 *
+		 * @param level how many times to indent
+		 * @param mixedContent whether the surrounding element contains text
+		 */
+		private void writeIndent(final int level, final boolean mixedContent) throws XMLStreamException {
+
+			if (mixedContent) {
+				return;
+			}
+			writer.writeCharacters("\n");
+			for (int li = 0; li < level; li++) {
+				writer.writeCharacters(indent);
+			}
+		}
 	}
 }
@@ -18,15 +18,15 @@
 package io.github.hoijui.rezipdoc;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.CRC32;
-import java.util.zip.CheckedOutputStream;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
 import java.util.zip.ZipInputStream;
 
 /**
@@ -44,6 +44,15 @@ public class ZipDoc {
 
 	private final boolean recursive;
 	private final boolean formatXml;
+	/**
+	 * Used to pretty-print XML content, if {@link #formatXml} is enabled.
+	 */
+	private XmlFormatter xmlFormatter;
+	/**
+	 * Where to look up and store textual representations, if anywhere
+	 * (default: {@code null}).
+	 */
+	private ResultCache cache;
 
 	/**
 	 * Creates an instance with specific values.
@@ -57,6 +66,8 @@ public class ZipDoc {
 
 		this.recursive = recursive;
 		this.formatXml = formatXml;
+		this.xmlFormatter = new XmlFormatter(2, "  ", true);
+		this.cache = null;
 	}
 
 	/**
@@ -66,6 +77,38 @@ public class ZipDoc {
 		this(true, true);
 	}
 
+	/**
+	 * What is used to pretty-print XML content, if enabled.
+	 * @return default: DOM based, <em>correct</em> pretty'fication
+	 */
+	public XmlFormatter getXmlFormatter() {
+		return xmlFormatter;
+	}
+
+	/**
+	 * Sets what is used to pretty-print XML content.
+	 * @param xmlFormatter see {@link #getXmlFormatter()}
+	 */
+	public void setXmlFormatter(final XmlFormatter xmlFormatter) {
+		this.xmlFormatter = xmlFormatter;
+	}
+
+	/**
+	 * Where textual representations are cached.
+	 * @return default: {@code null}, which means no caching
+	 */
+	public ResultCache getCache() {
+		return cache;
+	}
+
+	/**
+	 * Sets where textual representations are cached.
+	 * @param cache see {@link #getCache()}
+	 */
+	public void setCache(final ResultCache cache) {
+		this.cache = cache;
+	}
+
 	private static void printUsage(final Level logLevel) {
 
 		final String name = ZipDoc.class.getSimpleName();
@@ -73,7 +116,7 @@ public class ZipDoc {
 			Utils.printUsageHeader(LOGGER, logLevel, name);
 			LOGGER.log(logLevel, "Usage:");
 			LOGGER.log(logLevel, String.format(
-					"\t%s [Archive-input-file]   # writes textual version to stdout",
+					"\t%s [--non-recursive] [--format-xml [--streaming-xml|--canonical-xml|--rough-xml [--threads <n>]]] [--cache <dir> [--cache-size <MiB>]] [Archive-input-file]   # writes textual version to stdout",
 					name));
 			LOGGER.log(logLevel, String.format(
 					"Examples:%n\t%s in-file.zip > text-representation.txt",
@@ -94,12 +137,31 @@ public class ZipDoc {
 
 		boolean recursive = true;
 		boolean formatXml = false;
-		for (int i = 0; i < argv.length - 1; i++) {
+		boolean streamingXml = false;
+		boolean canonicalXml = false;
+		boolean roughXml = false;
+		int threads = 1;
+		Path cacheDir = null;
+		long cacheMaxBytes = ResultCache.DEFAULT_MAX_BYTES;
+		final int lastOption = argv.length - 1;
+		for (int i = 0; i < lastOption; i++) {
 			final String arg = argv[i];
 			if ("--non-recursive".equals(arg)) {
 				recursive = false;
 			} else if ("--format-xml".equals(arg)) {
 				formatXml = true;
+			} else if ("--streaming-xml".equals(arg)) {
+				streamingXml = true;
+			} else if ("--canonical-xml".equals(arg)) {
+				canonicalXml = true;
+			} else if ("--rough-xml".equals(arg)) {
+				roughXml = true;
+			} else if ("--threads".equals(arg) && i + 1 < lastOption) {
+				threads = Integer.parseInt(argv[++i]);
+			} else if ("--cache".equals(arg) && i + 1 < lastOption) {
+				cacheDir = Paths.get(argv[++i]);
+			} else if ("--cache-size".equals(arg) && i + 1 < lastOption) {
+				cacheMaxBytes = Long.parseLong(argv[++i]) * 1024 * 1024;
 			} else {
 				if (LOGGER.isLoggable(Level.WARNING)) {
 					LOGGER.log(Level.WARNING, String.format("Invalid argument '%s'%n", arg));
@@ -109,7 +171,20 @@ public class ZipDoc {
 			}
 		}
 
-		new ZipDoc(recursive, formatXml).transform(Paths.get(argv[argv.length - 1]));
+		final ZipDoc zipDoc = new ZipDoc(recursive, formatXml);
+		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", !roughXml, streamingXml);
+		xmlFormatter.setParallelism(threads);
+		xmlFormatter.setCanonical(canonicalXml);
+		zipDoc.setXmlFormatter(xmlFormatter);
+		if (cacheDir != null) {
+			zipDoc.setCache(new ResultCache(cacheDir, cacheMaxBytes));
+		}
+		try {
+			zipDoc.transform(Paths.get(argv[argv.length - 1]));
+		} finally {
+			// end the native zlib objects now, rather than whenever they get collected
+			ZlibPool.getDefault().clear();
+		}
 	}
 
 	/**
@@ -121,8 +196,78 @@ public class ZipDoc {
 	 */
 	public void transform(final Path zipFile) throws IOException {
 
-		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zipFile))) {
-			transform(zipIn, System.out);
+		if (getCache() == null) {
+			transformUncached(zipFile, System.out);
+		} else {
+			final String settings = String.format("%s recursive=%b formatXml=%b xmlFormatter=[%s]",
+					ZipDoc.class.getSimpleName(), recursive, formatXml, xmlFormatter);
+			getCache().apply(ResultCache.key(settings, zipFile), System.out,
+					cacheTarget -> {
+						final PrintStream output = new PrintStream(cacheTarget);
+						transformUncached(zipFile, output);
+						// PrintStream swallows exceptions, but we must not cache a partial result
+						if (output.checkError()) {
+							throw new IOException("Failed to write the textual representation");
+						}
+					});
+		}
+	}
+
+	private void transformUncached(final Path zipFile, final PrintStream output) throws IOException {
+
+		final ZipIndex zipIndex = openIndex(zipFile);
+		if (zipIndex != null && !zipIndex.isSequentiallyReadable()) {
+			try (ZipIndex zipIn = zipIndex) {
+				transform(zipIn, output);
+			}
+			return;
+		}
+		if (zipIndex != null) {
+			zipIndex.close();
+		}
+		try (ZipInputStream zipIn = ZlibPool.getDefault().createZipInputStream(Files.newInputStream(zipFile))) {
+			transform(zipIn, output);
+		}
+	}
+
+	private static ZipIndex openIndex(final Path zipFile) throws IOException {
+
+		try {
+			return new ZipIndex(zipFile);
+		} catch (final ZipException exc) {
+			if (LOGGER.isLoggable(Level.FINE)) {
+				LOGGER.log(Level.FINE, "Can not index ZIP file; reading it sequentially", exc);
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * Reads the specified ZIP file through its index,
+	 * and outputs a textual representation of it to the specified output stream.
+	 * This is the same as with {@link #transform(ZipInputStream, PrintStream)},
+	 * but also works for archives that can not be read sequentially.
+	 * Nested archives are still read sequentially.
+	 *
+	 * @param zipIn  the ZIP file to convert to a text
+	 * @param output where the text gets written to
+	 * @throws IOException if any input or output fails
+	 */
+	public void transform(final ZipIndex zipIn, final PrintStream output) throws IOException {
+
+		final XmlFormatter xmlFormatter = getXmlFormatter();
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		try {
+			for (final ZipIndex.Entry indexEntry : zipIn.getEntries()) {
+				final ZipEntry entry = zipIn.readLocalEntry(indexEntry);
+				try (InputStream entryIn = zipIn.getInputStream(indexEntry)) {
+					transformEntry(entry, entryIn, output, xmlFormatter, buffer, entryBuffer);
+				}
+			}
+		} finally {
+			entryBuffer.discard();
+			BufferPool.getDefault().release(buffer);
 		}
 	}
 
@@ -137,46 +282,84 @@ public class ZipDoc {
 	public void transform(final ZipInputStream zipIn, final PrintStream output)
 			throws IOException
 	{
-		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", true);
-		final byte[] buffer = new byte[8192];
+		final XmlFormatter xmlFormatter = getXmlFormatter();
+		final byte[] buffer = BufferPool.getDefault().acquire(BufferPool.TRANSFER_BUFFER_SIZE);
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		try {
+			transform(zipIn, output, xmlFormatter, buffer, entryBuffer);
+		} finally {
+			entryBuffer.discard();
+			BufferPool.getDefault().release(buffer);
+		}
+	}
+
+	private void transform(
+			final ZipInputStream zipIn,
+			final PrintStream output,
+			final XmlFormatter xmlFormatter,
+			final byte[] buffer,
+			final EntryBuffer entryBuffer)
+			throws IOException
+	{
 		ZipEntry entry;
-		final BufferedOutputStream uncompressedOutRaw = new BufferedOutputStream();
-		final CRC32 checkSum = new CRC32();
-		final CheckedOutputStream uncompressedOutChecked = new CheckedOutputStream(uncompressedOutRaw, checkSum);
 		while ((entry = zipIn.getNextEntry()) != null) {
-			uncompressedOutRaw.reset();
-			checkSum.reset();
+			transformEntry(entry, zipIn, output, xmlFormatter, buffer, entryBuffer);
+			zipIn.closeEntry();
+		}
+	}
 
-			output.println("Sub-file:\t" + entry);
+	private void transformEntry(
+			final ZipEntry entry,
+			final InputStream entryIn,
+			final PrintStream output,
+			final XmlFormatter xmlFormatter,
+			final byte[] buffer,
+			final EntryBuffer entryBuffer)
+			throws IOException
+	{
+		entryBuffer.reset();
+		final SpillingOutputStream uncompressedOutRaw = entryBuffer.getRaw();
 
-			// Copy the file from zipIn into the uncompressed, check-summed output stream
-			Utils.transferTo(zipIn, uncompressedOutChecked, buffer);
-			zipIn.closeEntry();
+		output.println("Sub-file:\t" + entry);
 
-			final boolean isXml = Utils.isXml(entry.getName(), entry.getSize(), uncompressedOutRaw);
-			if (formatXml && isXml) {
-				// XML file: pretty-print the data to stdout
-				xmlFormatter.prettify(uncompressedOutRaw.createInputStream(false), output, buffer);
-			} else if (Utils.isPlainText(entry.getName(), entry.getSize(), uncompressedOutRaw) || isXml) {
-				// Text file: dump directly to output
-				uncompressedOutRaw.writeTo(output);
-			} else if (Utils.isZip(entry.getName(), entry.getSize(), uncompressedOutRaw)
-					&& recursive)
-			{
-				// Zip: recursively uncompress to output
-				output.println("Sub-ZIP start:\t" + entry.getName());
-				try (ZipInputStream zipInRec = new ZipInputStream(
-						uncompressedOutRaw.createInputStream(false)))
-				{
-					transform(zipInRec, output);
-				}
-				output.println("Sub-ZIP end:  \t" + entry.getName());
+		// Only the beginning of the content is buffered to decide what to do with it,
+		// the rest gets streamed from entryIn
+		EntryClassifier.readPrefix(entryIn, entryBuffer.getChecked(), buffer);
+		final EntryClassifier.Type type = EntryClassifier.getDefault().classify(
+				entry.getName(), entry.getSize(), uncompressedOutRaw.getHead());
+		if (formatXml && type == EntryClassifier.Type.XML) {
+			// XML file: pretty-print the data to stdout
+			if (xmlFormatter.isParallel(entry.getSize())) {
+				Utils.transferTo(entryIn, entryBuffer.getChecked(), buffer);
+				xmlFormatter.prettifyRoughAndFast(uncompressedOutRaw.toByteBuffer(), output);
 			} else {
-				// Unknown file type: report uncompressed size and CRC32
-				output.println("File size:\t" + uncompressedOutRaw.size());
-				output.println("Checksum:\t" + Long.toHexString(checkSum.getValue()));
+				try (InputStream source = EntryClassifier.continueAfterPrefix(uncompressedOutRaw, entryIn)) {
+					xmlFormatter.prettify(source, output, buffer);
+				}
+			}
+		} else if (type == EntryClassifier.Type.TEXT || type == EntryClassifier.Type.XML) {
+			// Text file: dump directly to output
+			uncompressedOutRaw.writeTo(output);
+			Utils.transferTo(entryIn, output, buffer);
+		} else if (type == EntryClassifier.Type.ARCHIVE && recursive) {
+			// Zip: recursively uncompress to output
+			output.println("Sub-ZIP start:\t" + entry.getName());
+			final EntryBuffer nestedBuffer = entryBuffer.getNested();
+			try (ZipInputStream entryInRec = ZlibPool.getDefault().createZipInputStream(
+					EntryClassifier.continueAfterPrefix(uncompressedOutRaw, entryIn)))
+			{
+				transform(entryInRec, output, xmlFormatter, buffer, nestedBuffer);
+			} finally {
+				nestedBuffer.discard();
 			}
-			output.println();
+			output.println("Sub-ZIP end:  \t" + entry.getName());
+		} else {
+			// Unknown file type: report uncompressed size and CRC32,
+			// check-summing the rest of the content without keeping it
+			final long size = uncompressedOutRaw.size() + entryBuffer.checksumOnly(entryIn, buffer);
+			output.println("File size:\t" + size);
+			output.println("Checksum:\t" + Long.toHexString(entryBuffer.getCrc()));
 		}
+		output.println();
 	}
 }
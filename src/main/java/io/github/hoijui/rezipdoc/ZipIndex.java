@@ -0,0 +1,704 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+import java.util.zip.InflaterInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * An index over the entries of a ZIP file, read from its central directory.
+ * It allows to read the entries independently of each other,
+ * and from multiple threads concurrently.
+ * Files of up to {@link #MAX_MAPPED_SIZE} are memory-mapped,
+ * so parsing the headers and reading the content requires no system calls,
+ * and the raw content of the entries is available as slices of the mapping.
+ * Only archives that {@link ZipInputStream} would read the exact same way
+ * are accepted, which means that the entries have to follow each other
+ * without gaps, in the same order as they appear in the central directory.
+ * This allows random access processing to produce the same results
+ * as sequential processing.
+ * The one exception are STORED entries followed by a data descriptor,
+ * which {@link ZipInputStream} can not read at all,
+ * as it can not know where their content ends;
+ * see {@link #isSequentiallyReadable()}.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ZipIndex implements Closeable {
+
+	static final int LOC_SIG = 0x04034b50;
+	static final int CEN_SIG = 0x02014b50;
+	static final int END_SIG = 0x06054b50;
+	private static final int ZIP64_END_SIG = 0x06064b50;
+	private static final int ZIP64_LOC_SIG = 0x07064b50;
+	static final int LOC_HEADER_LENGTH = 30;
+	static final int CEN_HEADER_LENGTH = 46;
+	static final int END_HEADER_LENGTH = 22;
+	private static final int ZIP64_END_HEADER_LENGTH = 56;
+	private static final int ZIP64_LOC_HEADER_LENGTH = 20;
+	private static final int MAX_COMMENT_LENGTH = 0xFFFF;
+	static final int ZIP64_EXTRA_ID = 0x0001;
+	private static final int ZIP64_MAGIC_COUNT = 0xFFFF;
+	private static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+	private static final int FLAG_ENCRYPTED = 0x01;
+	private static final int FLAG_DATA_DESCRIPTOR = 0x08;
+	private static final int INFLATER_BUFFER_SIZE = 8192;
+	/**
+	 * Files larger then this are read with positional reads,
+	 * instead of being memory-mapped,
+	 * as a single mapping is limited to 2 GiB.
+	 */
+	public static final long MAX_MAPPED_SIZE = Integer.MAX_VALUE;
+
+	/**
+	 * The central directory information about a single entry.
+	 */
+	public static final class Entry {
+
+		private final String name;
+		private final int method;
+		private final long crc;
+		private final long compressedSize;
+		private final long size;
+		private final long localHeaderOffset;
+		private final long dataOffset;
+		private final boolean dataDescriptor;
+
+		Entry(final String name, final int method, final long crc, final long compressedSize, final long size,
+				final long localHeaderOffset, final long dataOffset, final boolean dataDescriptor)
+		{
+			this.name = name;
+			this.method = method;
+			this.crc = crc;
+			this.compressedSize = compressedSize;
+			this.size = size;
+			this.localHeaderOffset = localHeaderOffset;
+			this.dataOffset = dataOffset;
+			this.dataDescriptor = dataDescriptor;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * The compression method.
+		 * @return either {@link ZipEntry#STORED} or {@link ZipEntry#DEFLATED}
+		 */
+		public int getMethod() {
+			return method;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		public long getCompressedSize() {
+			return compressedSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLocalHeaderOffset() {
+			return localHeaderOffset;
+		}
+
+		public long getDataOffset() {
+			return dataOffset;
+		}
+
+		/**
+		 * Whether the size and CRC follow the content in a data descriptor,
+		 * instead of being part of the local header.
+		 * @return whether the local header announces a data descriptor
+		 */
+		public boolean hasDataDescriptor() {
+			return dataDescriptor;
+		}
+	}
+
+	private final FileChannel channel;
+	/**
+	 * The whole file, if it is not larger then {@link #MAX_MAPPED_SIZE},
+	 * else {@code null}.
+	 * Its position and limit are never changed,
+	 * so it may be used by multiple threads concurrently.
+	 */
+	private final ByteBuffer mapped;
+	private final List<Entry> entries;
+
+	/**
+	 * Reads the central directory of a ZIP file.
+	 *
+	 * @param zipFile the ZIP file to index
+	 * @throws ZipException if the file is not a ZIP file,
+	 *   or is not readable the same way as with {@link ZipInputStream}
+	 * @throws IOException if reading fails
+	 */
+	public ZipIndex(final Path zipFile) throws IOException {
+
+		this.channel = FileChannel.open(zipFile, StandardOpenOption.READ);
+		try {
+			final long fileSize = channel.size();
+			this.mapped = fileSize <= MAX_MAPPED_SIZE
+					? channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize).order(ByteOrder.LITTLE_ENDIAN)
+					: null;
+			this.entries = Collections.unmodifiableList(readEntries());
+		} catch (final IOException exc) {
+			channel.close();
+			throw exc;
+		}
+	}
+
+	/**
+	 * The entries of the archive, in the order they are stored in.
+	 * @return an unmodifiable list of all the entries
+	 */
+	public List<Entry> getEntries() {
+		return entries;
+	}
+
+	/**
+	 * Whether {@link ZipInputStream} can read this archive,
+	 * and would see the same entries as this index.
+	 * @return {@code false} if there are STORED entries with data descriptors
+	 */
+	public boolean isSequentiallyReadable() {
+
+		for (final Entry entry : entries) {
+			if (entry.getMethod() == ZipEntry.STORED && entry.hasDataDescriptor()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Whether the file is memory-mapped.
+	 * @return whether the file is not larger then {@link #MAX_MAPPED_SIZE}
+	 */
+	public boolean isMapped() {
+		return mapped != null;
+	}
+
+	/**
+	 * Returns a part of the file, from the mapping if there is one.
+	 *
+	 * @return a little-endian buffer with position zero,
+	 *   which the caller may modify the position and limit of
+	 */
+	private ByteBuffer read(final long position, final int length) throws IOException {
+
+		if (mapped == null) {
+			return read(channel, position, length);
+		}
+		if (position < 0 || position + length > mapped.capacity()) {
+			throw new EOFException("Unexpected end of ZIP file");
+		}
+		final ByteBuffer slice = mapped.duplicate();
+		slice.position((int) position);
+		slice.limit((int) position + length);
+		return slice.slice().order(ByteOrder.LITTLE_ENDIAN);
+	}
+
+	private static ByteBuffer read(final FileChannel channel, final long position, final int length)
+			throws IOException
+	{
+		final ByteBuffer data = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+		while (data.hasRemaining()) {
+			if (channel.read(data, position + data.position()) < 0) {
+				throw new EOFException("Unexpected end of ZIP file");
+			}
+		}
+		data.flip();
+		return data;
+	}
+
+	private static int getShort(final ByteBuffer data, final int index) {
+		return data.getShort(index) & 0xFFFF;
+	}
+
+	private static long getInt(final ByteBuffer data, final int index) {
+		return data.getInt(index) & ZIP64_MAGIC;
+	}
+
+	private long findEnd() throws IOException {
+
+		final long fileSize = channel.size();
+		final int tailLength = (int) Math.min(fileSize, END_HEADER_LENGTH + MAX_COMMENT_LENGTH);
+		final ByteBuffer tail = read(fileSize - tailLength, tailLength);
+		for (int pos = tailLength - END_HEADER_LENGTH; pos >= 0; pos--) {
+			if (tail.getInt(pos) == END_SIG
+					&& pos + END_HEADER_LENGTH + getShort(tail, pos + 20) == tailLength)
+			{
+				return fileSize - tailLength + pos;
+			}
+		}
+		throw new ZipException("End of central directory record not found");
+	}
+
+	private List<Entry> readEntries() throws IOException {
+
+		final long endPos = findEnd();
+		final ByteBuffer end = read(endPos, END_HEADER_LENGTH);
+		long numEntries = getShort(end, 10);
+		long cenSize = getInt(end, 12);
+		long cenOffset = getInt(end, 16);
+		if (numEntries == ZIP64_MAGIC_COUNT || cenSize == ZIP64_MAGIC || cenOffset == ZIP64_MAGIC) {
+			if (endPos < ZIP64_LOC_HEADER_LENGTH) {
+				throw new ZipException("ZIP64 end of central directory locator not found");
+			}
+			final ByteBuffer locator = read(endPos - ZIP64_LOC_HEADER_LENGTH, ZIP64_LOC_HEADER_LENGTH);
+			if (locator.getInt(0) != ZIP64_LOC_SIG) {
+				throw new ZipException("ZIP64 end of central directory locator not found");
+			}
+			final ByteBuffer zip64End = read(locator.getLong(8), ZIP64_END_HEADER_LENGTH);
+			if (zip64End.getInt(0) != ZIP64_END_SIG) {
+				throw new ZipException("Invalid ZIP64 end of central directory record");
+			}
+			numEntries = zip64End.getLong(32);
+			cenSize = zip64End.getLong(40);
+			cenOffset = zip64End.getLong(48);
+		}
+		if (cenSize > Integer.MAX_VALUE || cenOffset + cenSize > endPos) {
+			throw new ZipException("Invalid central directory");
+		}
+
+		final ByteBuffer cen = read(cenOffset, (int) cenSize);
+		// the count comes from the file, so it is not trusted for pre-allocation
+		final List<Entry> entries = new ArrayList<>((int) Math.min(numEntries, cenSize / CEN_HEADER_LENGTH));
+		int pos = 0;
+		for (long ie = 0; ie < numEntries; ie++) {
+			if (pos + CEN_HEADER_LENGTH > cen.limit() || cen.getInt(pos) != CEN_SIG) {
+				throw new ZipException("Invalid central directory header");
+			}
+			entries.add(readEntry(cen, pos));
+			pos += CEN_HEADER_LENGTH + getShort(cen, pos + 28) + getShort(cen, pos + 30) + getShort(cen, pos + 32);
+		}
+		checkSequential(entries, cenOffset);
+		return entries;
+	}
+
+	private Entry readEntry(final ByteBuffer cen, final int pos) throws IOException {
+
+		final int flags = getShort(cen, pos + 8);
+		final int method = getShort(cen, pos + 10);
+		final long crc = getInt(cen, pos + 16);
+		long compressedSize = getInt(cen, pos + 20);
+		long size = getInt(cen, pos + 24);
+		final int nameLength = getShort(cen, pos + 28);
+		final int extraLength = getShort(cen, pos + 30);
+		long localHeaderOffset = getInt(cen, pos + 42);
+		final byte[] nameBytes = new byte[nameLength];
+		((ByteBuffer) cen.duplicate().position(pos + CEN_HEADER_LENGTH)).get(nameBytes);
+		final String name = new String(nameBytes, StandardCharsets.UTF_8);
+
+		if ((flags & FLAG_ENCRYPTED) != 0) {
+			throw new ZipException("Encrypted ZIP entry not supported: " + name);
+		}
+		if (method != ZipEntry.STORED && method != ZipEntry.DEFLATED) {
+			throw new ZipException("Unsupported compression method " + method + " of ZIP entry: " + name);
+		}
+
+		if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+			// the real values are stored in the ZIP64 extra field,
+			// but only those that did not fit into the header
+			final int extraStart = pos + CEN_HEADER_LENGTH + nameLength;
+			int extraPos = extraStart;
+			while (extraPos + 4 <= extraStart + extraLength && getShort(cen, extraPos) != ZIP64_EXTRA_ID) {
+				extraPos += 4 + getShort(cen, extraPos + 2);
+			}
+			if (extraPos + 4 > extraStart + extraLength) {
+				throw new ZipException("ZIP64 extra field missing for ZIP entry: " + name);
+			}
+			int valuePos = extraPos + 4;
+			if (size == ZIP64_MAGIC) {
+				size = cen.getLong(valuePos);
+				valuePos += 8;
+			}
+			if (compressedSize == ZIP64_MAGIC) {
+				compressedSize = cen.getLong(valuePos);
+				valuePos += 8;
+			}
+			if (localHeaderOffset == ZIP64_MAGIC) {
+				localHeaderOffset = cen.getLong(valuePos);
+			}
+		}
+
+		final ByteBuffer loc = read(localHeaderOffset, LOC_HEADER_LENGTH);
+		if (loc.getInt(0) != LOC_SIG) {
+			throw new ZipException("Invalid local header of ZIP entry: " + name);
+		}
+		final boolean dataDescriptor = (getShort(loc, 6) & FLAG_DATA_DESCRIPTOR) != 0;
+		if (method == ZipEntry.STORED && dataDescriptor && (size >= ZIP64_MAGIC || compressedSize != size)) {
+			throw new ZipException("Invalid size of stored ZIP entry with data descriptor: " + name);
+		}
+		final long dataOffset = localHeaderOffset + LOC_HEADER_LENGTH + getShort(loc, 26) + getShort(loc, 28);
+
+		return new Entry(name, method, crc, compressedSize, size, localHeaderOffset, dataOffset, dataDescriptor);
+	}
+
+	/**
+	 * Ensures that {@link ZipInputStream} would see the same entries,
+	 * by checking that the entries follow each other without gaps.
+	 */
+	private static void checkSequential(final List<Entry> entries, final long cenOffset) throws ZipException {
+
+		long expectedOffset = 0;
+		Entry previous = null;
+		for (final Entry entry : entries) {
+			checkGap(previous, expectedOffset, entry.getLocalHeaderOffset());
+			expectedOffset = entry.getDataOffset() + entry.getCompressedSize();
+			previous = entry;
+		}
+		checkGap(previous, expectedOffset, cenOffset);
+	}
+
+	private static void checkGap(final Entry previous, final long expectedOffset, final long offset)
+			throws ZipException
+	{
+		final long gap = offset - expectedOffset;
+		// a data descriptor may follow DEFLATED entries, and STORED ones announcing it,
+		// with or without signature, and in normal or ZIP64 format
+		final boolean valid = gap == 0
+				|| (previous != null && (previous.getMethod() == ZipEntry.DEFLATED || previous.hasDataDescriptor())
+						&& (gap == 12 || gap == 16 || gap == 20 || gap == 24));
+		if (!valid) {
+			throw new ZipException("ZIP entries are not stored sequentially, at offset " + offset);
+		}
+	}
+
+	/**
+	 * Reads the local header of an entry.
+	 * This is exactly what {@link ZipInputStream#getNextEntry()}
+	 * would return for this entry, before reading its content.
+	 * For STORED entries with a data descriptor,
+	 * it is what it would return if size and CRC were in the local header.
+	 *
+	 * @param entry the entry whose local header to read
+	 * @return the entry as parsed from the local header
+	 * @throws IOException if reading fails
+	 */
+	public ZipEntry readLocalEntry(final Entry entry) throws IOException {
+
+		final ByteBuffer header = read(entry.getLocalHeaderOffset(),
+				(int) (entry.getDataOffset() - entry.getLocalHeaderOffset()));
+		final byte[] headerBytes = new byte[header.remaining()];
+		header.get(headerBytes);
+		if (entry.getMethod() == ZipEntry.STORED && entry.hasDataDescriptor()) {
+			final ByteBuffer patched = ByteBuffer.wrap(headerBytes).order(ByteOrder.LITTLE_ENDIAN);
+			patched.putShort(6, (short) (getShort(patched, 6) & ~FLAG_DATA_DESCRIPTOR));
+			patched.putInt(14, (int) entry.getCrc());
+			patched.putInt(18, (int) entry.getCompressedSize());
+			patched.putInt(22, (int) entry.getSize());
+		}
+		return parseLocalHeader(headerBytes);
+	}
+
+	/**
+	 * Parses a local header exactly like {@link ZipInputStream#getNextEntry()} does.
+	 *
+	 * @param header the complete local header, including name and extra field
+	 * @return the entry as parsed from the local header
+	 * @throws IOException if the header is invalid
+	 */
+	public static ZipEntry parseLocalHeader(final byte[] header) throws IOException {
+
+		try (ZipInputStream headerIn = ZlibPool.getDefault().createZipInputStream(new ByteArrayInputStream(header))) {
+			final ZipEntry localEntry = headerIn.getNextEntry();
+			if (localEntry == null) {
+				throw new ZipException("Invalid local header");
+			}
+			return localEntry;
+		}
+	}
+
+	/**
+	 * Opens a stream to read the uncompressed content of an entry.
+	 * Like with {@link ZipInputStream}, reaching the end of the stream fails
+	 * if the content does not match the size and CRC of the entry.
+	 *
+	 * @param entry the entry whose content to read
+	 * @return the uncompressed content of the entry
+	 */
+	public InputStream getInputStream(final Entry entry) {
+
+		final InputStream rawIn = getRawInputStream(entry);
+		final InputStream dataIn;
+		if (entry.getMethod() == ZipEntry.DEFLATED) {
+			dataIn = new EntryInflaterInputStream(rawIn);
+		} else {
+			dataIn = rawIn;
+		}
+		return new VerifyingInputStream(dataIn, entry);
+	}
+
+	/**
+	 * Opens a stream to read the raw content of an entry,
+	 * as it is stored in the archive.
+	 * For {@link ZipEntry#STORED} entries, this is the uncompressed content,
+	 * though unlike with {@link #getInputStream(Entry)}, it is not verified.
+	 *
+	 * @param entry the entry whose content to read
+	 * @return the raw content of the entry
+	 */
+	public InputStream getRawInputStream(final Entry entry) {
+
+		if (mapped != null) {
+			return new MappedInputStream(getMappedData(entry));
+		}
+		return new SliceInputStream(channel, entry.getDataOffset(), entry.getCompressedSize());
+	}
+
+	private ByteBuffer getMappedData(final Entry entry) {
+
+		final ByteBuffer slice = mapped.duplicate();
+		slice.position((int) entry.getDataOffset());
+		slice.limit((int) (entry.getDataOffset() + entry.getCompressedSize()));
+		return slice.slice();
+	}
+
+	/**
+	 * Returns the raw content of an entry, as it is stored in the archive.
+	 * If the file is mapped, this is a read-only slice of the mapping,
+	 * so nothing gets copied; otherwise, the content is read into memory.
+	 *
+	 * @param entry the entry whose content to return
+	 * @return a buffer holding the raw content of the entry, and nothing else
+	 * @throws IOException if the file is not mapped, and reading fails,
+	 *   or the content is too large to fit into a buffer
+	 */
+	public ByteBuffer getRawData(final Entry entry) throws IOException {
+
+		if (mapped != null) {
+			return getMappedData(entry).asReadOnlyBuffer();
+		}
+		if (entry.getCompressedSize() > ChunkedOutputStream.MAX_ARRAY_SIZE) {
+			throw new IOException("ZIP entry too large to be buffered: " + entry.getName());
+		}
+		return read(channel, entry.getDataOffset(), (int) entry.getCompressedSize());
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+
+	/**
+	 * Reads a part of a file, using positional reads only,
+	 * so multiple of these may be used on the same channel concurrently.
+	 */
+	static class SliceInputStream extends InputStream {
+
+		private final FileChannel channel;
+		private long position;
+		private long remaining;
+
+		SliceInputStream(final FileChannel channel, final long position, final long length) {
+
+			this.channel = channel;
+			this.position = position;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			final byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+
+			if (remaining <= 0) {
+				return -1;
+			}
+			final int toRead = (int) Math.min(len, remaining);
+			final int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+			if (read < 0) {
+				throw new EOFException("Unexpected end of file");
+			}
+			position += read;
+			remaining -= read;
+			return read;
+		}
+	}
+
+	/**
+	 * Reads a slice of the mapped file.
+	 * Each instance has its own view of the mapping,
+	 * so multiple of these may be used concurrently.
+	 */
+	private static class MappedInputStream extends InputStream {
+
+		private final ByteBuffer data;
+
+		MappedInputStream(final ByteBuffer data) {
+			this.data = data;
+		}
+
+		@Override
+		public int read() {
+			return data.hasRemaining() ? data.get() & 0xFF : -1;
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) {
+
+			if (!data.hasRemaining()) {
+				return -1;
+			}
+			final int toRead = Math.min(len, data.remaining());
+			data.get(b, off, toRead);
+			return toRead;
+		}
+
+		@Override
+		public long skip(final long n) {
+
+			final int skipped = (int) Math.max(0, Math.min(n, data.remaining()));
+			data.position(data.position() + skipped);
+			return skipped;
+		}
+
+		@Override
+		public int available() {
+			return data.remaining();
+		}
+	}
+
+	/**
+	 * Inflates raw DEFLATE data with a pooled inflater,
+	 * and gives it back on close.
+	 */
+	private static class EntryInflaterInputStream extends InflaterInputStream {
+
+		private boolean dummyByteSupplied;
+		private boolean released;
+
+		EntryInflaterInputStream(final InputStream in) {
+
+			super(in, ZlibPool.getDefault().acquireInflater(), INFLATER_BUFFER_SIZE);
+			this.dummyByteSupplied = false;
+			this.released = false;
+		}
+
+		@Override
+		protected void fill() throws IOException {
+
+			len = in.read(buf, 0, buf.length);
+			if (len < 0) {
+				if (dummyByteSupplied) {
+					throw new EOFException("Unexpected end of ZLIB input stream");
+				}
+				// the inflater requires an extra dummy byte in "nowrap" mode
+				buf[0] = 0;
+				len = 1;
+				dummyByteSupplied = true;
+			}
+			inf.setInput(buf, 0, len);
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			try {
+				super.close();
+			} finally {
+				if (!released) {
+					released = true;
+					ZlibPool.getDefault().release(inf);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Checks size and CRC of the content at the end of the stream.
+	 */
+	private static class VerifyingInputStream extends InputStream {
+
+		private final InputStream in;
+		private final Entry entry;
+		private final CRC32 checksum;
+		private long size;
+
+		VerifyingInputStream(final InputStream in, final Entry entry) {
+
+			this.in = in;
+			this.entry = entry;
+			this.checksum = new CRC32();
+			this.size = 0;
+		}
+
+		private void verify() throws ZipException {
+
+			if (size != entry.getSize()) {
+				throw new ZipException("Invalid entry size (expected " + entry.getSize()
+						+ " but got " + size + " bytes) of ZIP entry: " + entry.getName());
+			}
+			if (checksum.getValue() != entry.getCrc()) {
+				throw new ZipException("Invalid entry CRC of ZIP entry: " + entry.getName());
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+
+			final byte[] single = new byte[1];
+			return read(single, 0, 1) < 0 ? -1 : (single[0] & 0xFF);
+		}
+
+		@Override
+		public int read(final byte[] b, final int off, final int len) throws IOException {
+
+			final int read = in.read(b, off, len);
+			if (read < 0) {
+				verify();
+			} else {
+				checksum.update(b, off, read);
+				size += read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			in.close();
+		}
+	}
+}
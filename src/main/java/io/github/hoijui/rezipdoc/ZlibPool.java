@@ -0,0 +1,318 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Keeps {@link Inflater}s and {@link Deflater}s that are no longer in use,
+ * for re-use, so the native memory behind them
+ * does not have to be allocated anew for every entry and (nested) archive.
+ * All of them work in "nowrap" mode, as required for ZIP files.
+ * Objects that do not fit into the pool get {@code end()}ed right away,
+ * and {@link #clear()} ends all idle ones,
+ * so no native memory is left waiting for the garbage collector.
+ * It may be used by multiple threads concurrently.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ZlibPool {
+
+	/** Default for how many idle objects of each kind are kept. */
+	public static final int DEFAULT_MAX_IDLE = 32;
+
+	private static final ZlibPool DEFAULT = new ZlibPool(DEFAULT_MAX_IDLE);
+
+	/**
+	 * Stands in for a pooled inflater within a stream that gets closed,
+	 * so closing it does not end the pooled one.
+	 */
+	private static final Inflater ENDED_INFLATER = createEndedInflater();
+	/**
+	 * Stands in for a pooled deflater within a stream that gets closed,
+	 * so closing it does not end the pooled one.
+	 */
+	private static final Deflater ENDED_DEFLATER = createEndedDeflater();
+
+	private final int maxIdle;
+	private final Queue<Inflater> idleInflaters;
+	private final AtomicInteger idleInflatersCount;
+	/**
+	 * Idle deflaters by compression level,
+	 * as changing the level of a deflater may change its output.
+	 */
+	private final Map<Integer, Queue<Deflater>> idleDeflaters;
+	private final AtomicInteger idleDeflatersCount;
+
+	/**
+	 * Creates an empty pool.
+	 *
+	 * @param maxIdle how many idle objects of each kind to keep at most
+	 */
+	public ZlibPool(final int maxIdle) {
+
+		this.maxIdle = maxIdle;
+		this.idleInflaters = new ConcurrentLinkedQueue<>();
+		this.idleInflatersCount = new AtomicInteger(0);
+		this.idleDeflaters = new ConcurrentHashMap<>();
+		this.idleDeflatersCount = new AtomicInteger(0);
+	}
+
+	/**
+	 * The pool used when none is specified explicitly.
+	 * @return a pool keeping up to {@link #DEFAULT_MAX_IDLE} objects of each kind
+	 */
+	public static ZlibPool getDefault() {
+		return DEFAULT;
+	}
+
+	private static Inflater createEndedInflater() {
+
+		final Inflater inflater = new Inflater(true);
+		inflater.end();
+		return inflater;
+	}
+
+	private static Deflater createEndedDeflater() {
+
+		final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.end();
+		return deflater;
+	}
+
+	/**
+	 * How many idle inflaters are kept currently.
+	 * @return the number of inflaters ready for re-use
+	 */
+	public int getIdleInflaters() {
+		return idleInflatersCount.get();
+	}
+
+	/**
+	 * How many idle deflaters are kept currently.
+	 * @return the number of deflaters ready for re-use, of all levels
+	 */
+	public int getIdleDeflaters() {
+		return idleDeflatersCount.get();
+	}
+
+	/**
+	 * Returns an inflater in its initial state,
+	 * either from the pool, or newly created.
+	 *
+	 * @return an inflater that is exclusively owned by the caller,
+	 *   until it is given back with {@link #release(Inflater)}
+	 */
+	public Inflater acquireInflater() {
+
+		final Inflater pooled = idleInflaters.poll();
+		if (pooled != null) {
+			idleInflatersCount.decrementAndGet();
+			return pooled;
+		}
+		return new Inflater(true);
+	}
+
+	/**
+	 * Gives back an inflater, for re-use.
+	 * The caller must not use it anymore afterwards.
+	 *
+	 * @param inflater the inflater to give back
+	 */
+	public void release(final Inflater inflater) {
+
+		if (idleInflatersCount.incrementAndGet() > maxIdle) {
+			idleInflatersCount.decrementAndGet();
+			inflater.end();
+			return;
+		}
+		inflater.reset();
+		idleInflaters.offer(inflater);
+	}
+
+	/**
+	 * Returns a deflater in its initial state,
+	 * either from the pool, or newly created.
+	 *
+	 * @param level the compression level, from 0 to 9,
+	 *   or {@link Deflater#DEFAULT_COMPRESSION}
+	 * @return a deflater that is exclusively owned by the caller,
+	 *   until it is given back with {@link #release(Deflater, int)}
+	 */
+	public Deflater acquireDeflater(final int level) {
+
+		final Queue<Deflater> idle = idleDeflaters.get(level);
+		final Deflater pooled = idle == null ? null : idle.poll();
+		if (pooled != null) {
+			idleDeflatersCount.decrementAndGet();
+			return pooled;
+		}
+		return new Deflater(level, true);
+	}
+
+	/**
+	 * Gives back a deflater, for re-use.
+	 * The caller must not use it anymore afterwards.
+	 *
+	 * @param deflater the deflater to give back
+	 * @param level the compression level the deflater uses currently
+	 */
+	public void release(final Deflater deflater, final int level) {
+
+		if (idleDeflatersCount.incrementAndGet() > maxIdle) {
+			idleDeflatersCount.decrementAndGet();
+			deflater.end();
+			return;
+		}
+		deflater.reset();
+		idleDeflaters.computeIfAbsent(level, key -> new ConcurrentLinkedQueue<>()).offer(deflater);
+	}
+
+	/**
+	 * Ends all idle inflaters and deflaters,
+	 * releasing their native memory.
+	 * The pool may still be used afterwards.
+	 */
+	public void clear() {
+
+		for (Inflater inflater = idleInflaters.poll(); inflater != null; inflater = idleInflaters.poll()) {
+			idleInflatersCount.decrementAndGet();
+			inflater.end();
+		}
+		for (final Queue<Deflater> idle : idleDeflaters.values()) {
+			for (Deflater deflater = idle.poll(); deflater != null; deflater = idle.poll()) {
+				idleDeflatersCount.decrementAndGet();
+				deflater.end();
+			}
+		}
+	}
+
+	/**
+	 * Creates a ZIP input stream that uses an inflater from this pool,
+	 * and gives it back when closed.
+	 *
+	 * @param in the actual input stream
+	 * @return a new ZIP input stream
+	 */
+	public ZipInputStream createZipInputStream(final InputStream in) {
+		return new PooledZipInputStream(in, this);
+	}
+
+	/**
+	 * Creates a ZIP output stream that uses a deflater from this pool,
+	 * and gives it back when closed.
+	 *
+	 * @param out the actual output stream
+	 * @return a new ZIP output stream
+	 */
+	public ZipOutputStream createZipOutputStream(final OutputStream out) {
+		return new PooledZipOutputStream(out, this);
+	}
+
+	/**
+	 * A ZIP input stream using a pooled inflater.
+	 * {@link ZipInputStream} always creates an inflater of its own;
+	 * we end it right away, and replace it with a pooled one.
+	 */
+	private static class PooledZipInputStream extends ZipInputStream {
+
+		private final ZlibPool pool;
+		private Inflater pooled;
+
+		PooledZipInputStream(final InputStream in, final ZlibPool pool) {
+
+			super(in);
+			this.pool = pool;
+			this.pooled = pool.acquireInflater();
+			inf.end();
+			inf = pooled;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			final Inflater toRelease = pooled;
+			pooled = null;
+			inf = ENDED_INFLATER;
+			try {
+				super.close();
+			} finally {
+				if (toRelease != null) {
+					pool.release(toRelease);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A ZIP output stream using a pooled deflater.
+	 * {@link ZipOutputStream} always creates a deflater of its own;
+	 * we end it right away, and replace it with a pooled one.
+	 */
+	private static class PooledZipOutputStream extends ZipOutputStream {
+
+		private final ZlibPool pool;
+		private Deflater pooled;
+		private int level;
+
+		PooledZipOutputStream(final OutputStream out, final ZlibPool pool) {
+
+			super(out);
+			this.pool = pool;
+			this.level = Deflater.DEFAULT_COMPRESSION;
+			this.pooled = pool.acquireDeflater(level);
+			def.end();
+			def = pooled;
+		}
+
+		@Override
+		public void setLevel(final int level) {
+
+			super.setLevel(level);
+			this.level = level;
+		}
+
+		@Override
+		public void close() throws IOException {
+
+			if (pooled == null) {
+				super.close();
+				return;
+			}
+			final Deflater toRelease = pooled;
+			try {
+				finish();
+			} finally {
+				pooled = null;
+				def = ENDED_DEFLATER;
+				pool.release(toRelease, level);
+			}
+			super.close();
+		}
+	}
+}
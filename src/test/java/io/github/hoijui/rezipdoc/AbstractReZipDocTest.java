@@ -23,9 +23,11 @@ import org.junit.Before;
 import org.junit.Rule;
 import org.junit.contrib.java.lang.system.ExpectedSystemExit;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.lang.invoke.MethodHandles;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Collections;
@@ -33,6 +35,7 @@ import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -112,6 +115,75 @@ public abstract class AbstractReZipDocTest {
 		Files.deleteIfExists(subZipFile);
 	}
 
+	private static void writeLittleEndian(final ByteArrayOutputStream out, final long value, final int bytes) {
+
+		for (int bi = 0; bi < bytes; bi++) {
+			out.write((int) (value >>> (8 * bi)));
+		}
+	}
+
+	/**
+	 * Creates a ZIP with STORED entries that have their size and CRC
+	 * in data descriptors only, which {@link java.util.zip.ZipInputStream} can not read.
+	 */
+	protected static void createStoredDataDescriptorZip(
+			final Path zipFile,
+			final Path rootDir,
+			final List<File> contents)
+			throws IOException
+	{
+		final ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		final ByteArrayOutputStream cen = new ByteArrayOutputStream();
+		// 1980-01-01 00:00
+		final long dosTime = 0x00210000L;
+		for (final File file : contents) {
+			final byte[] name = rootDir.relativize(file.toPath()).toString().getBytes(StandardCharsets.UTF_8);
+			final byte[] data = Files.readAllBytes(file.toPath());
+			final CRC32 crc = new CRC32();
+			crc.update(data);
+			final long offset = zip.size();
+
+			writeLittleEndian(zip, 0x04034b50L, 4);
+			writeLittleEndian(zip, 10, 2);
+			writeLittleEndian(zip, 0x08, 2);
+			writeLittleEndian(zip, ZipEntry.STORED, 2);
+			writeLittleEndian(zip, dosTime, 4);
+			writeLittleEndian(zip, 0, 12);
+			writeLittleEndian(zip, name.length, 2);
+			writeLittleEndian(zip, 0, 2);
+			zip.write(name);
+			zip.write(data);
+			writeLittleEndian(zip, 0x08074b50L, 4);
+			writeLittleEndian(zip, crc.getValue(), 4);
+			writeLittleEndian(zip, data.length, 4);
+			writeLittleEndian(zip, data.length, 4);
+
+			writeLittleEndian(cen, 0x02014b50L, 4);
+			writeLittleEndian(cen, 20, 2);
+			writeLittleEndian(cen, 10, 2);
+			writeLittleEndian(cen, 0x08, 2);
+			writeLittleEndian(cen, ZipEntry.STORED, 2);
+			writeLittleEndian(cen, dosTime, 4);
+			writeLittleEndian(cen, crc.getValue(), 4);
+			writeLittleEndian(cen, data.length, 4);
+			writeLittleEndian(cen, data.length, 4);
+			writeLittleEndian(cen, name.length, 2);
+			writeLittleEndian(cen, 0, 12);
+			writeLittleEndian(cen, offset, 4);
+			cen.write(name);
+		}
+		final long cenOffset = zip.size();
+		cen.writeTo(zip);
+		writeLittleEndian(zip, 0x06054b50L, 4);
+		writeLittleEndian(zip, 0, 4);
+		writeLittleEndian(zip, contents.size(), 2);
+		writeLittleEndian(zip, contents.size(), 2);
+		writeLittleEndian(zip, cen.size(), 4);
+		writeLittleEndian(zip, cenOffset, 4);
+		writeLittleEndian(zip, 0, 2);
+		Files.write(zipFile, zip.toByteArray());
+	}
+
 	@Before
 	public void setUp() throws IOException {
 
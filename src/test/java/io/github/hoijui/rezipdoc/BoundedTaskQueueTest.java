@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * @see BoundedTaskQueue
+ */
+public class BoundedTaskQueueTest {
+
+	private static ForkJoinTask<Integer> task(final int value) {
+		return ForkJoinTask.adapt(() -> value);
+	}
+
+	@Test
+	public void testOrder() throws IOException, InterruptedException {
+
+		final BoundedTaskQueue<Integer> queue = new BoundedTaskQueue<>(4, 100);
+		for (int i = 0; i < 3; i++) {
+			Assert.assertTrue(queue.awaitRoom());
+			Assert.assertTrue(queue.add(task(i), 10));
+		}
+		queue.finish();
+		for (int i = 0; i < 3; i++) {
+			Assert.assertSame(i, queue.take().invoke());
+		}
+		Assert.assertNull(queue.take());
+	}
+
+	@Test
+	public void testBytesLimit() throws Exception {
+
+		final BoundedTaskQueue<Integer> queue = new BoundedTaskQueue<>(4, 100);
+		// a single task may exceed the limit
+		Assert.assertTrue(queue.add(task(0), 150));
+		Assert.assertEquals(150, queue.getBytes());
+		final Thread producer = new Thread(() -> {
+			try {
+				queue.awaitRoom();
+				queue.add(task(1), 10);
+				queue.finish();
+			} catch (final InterruptedException exc) {
+				queue.fail(exc);
+			}
+		});
+		producer.start();
+		producer.join(200);
+		Assert.assertTrue("Producer should wait for room", producer.isAlive());
+
+		// once none is queued, there is room again,
+		// but the task taken last still counts
+		Assert.assertSame(0, queue.take().invoke());
+		producer.join();
+		Assert.assertEquals(160, queue.getBytes());
+		Assert.assertSame(1, queue.take().invoke());
+		Assert.assertEquals(10, queue.getBytes());
+		Assert.assertNull(queue.take());
+		Assert.assertEquals(0, queue.getBytes());
+	}
+
+	@Test
+	public void testTasksLimit() throws InterruptedException {
+
+		final BoundedTaskQueue<Integer> queue = new BoundedTaskQueue<>(2, 100);
+		Assert.assertTrue(queue.add(task(0), 1));
+		Assert.assertTrue(queue.add(task(1), 1));
+		final Thread producer = new Thread(() -> {
+			try {
+				queue.awaitRoom();
+			} catch (final InterruptedException exc) {
+				queue.fail(exc);
+			}
+		});
+		producer.start();
+		producer.join(200);
+		Assert.assertTrue("Producer should wait for room", producer.isAlive());
+		Assert.assertEquals(2, queue.abort().size());
+		producer.join();
+		Assert.assertFalse(queue.add(task(2), 1));
+	}
+
+	@Test
+	public void testFailure() {
+
+		final BoundedTaskQueue<Integer> queue = new BoundedTaskQueue<>(2, 100);
+		final IOException failure = new IOException("test");
+		queue.fail(failure);
+		try {
+			queue.take();
+			Assert.fail("The failure of the producer should be passed on");
+		} catch (final IOException exc) {
+			Assert.assertSame(failure, exc);
+		}
+	}
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * @see BufferPool
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testReuse() {
+
+		final BufferPool pool = new BufferPool(1024);
+		final byte[] buffer = pool.acquire(512);
+		Assert.assertEquals(512, buffer.length);
+		pool.release(buffer);
+		Assert.assertEquals(512, pool.getIdleBytes());
+		Assert.assertSame(buffer, pool.acquire(512));
+		Assert.assertEquals(0, pool.getIdleBytes());
+		Assert.assertNotSame(buffer, pool.acquire(512));
+	}
+
+	@Test
+	public void testSizeClasses() {
+
+		final BufferPool pool = new BufferPool(4096);
+		final byte[] small = pool.acquire(256);
+		pool.release(small);
+		Assert.assertEquals(1024, pool.acquire(1024).length);
+		Assert.assertSame(small, pool.acquire(256));
+	}
+
+	@Test
+	public void testNotPooled() {
+
+		final BufferPool pool = new BufferPool(4096);
+		// not a power of two
+		final byte[] odd = pool.acquire(1000);
+		Assert.assertEquals(1000, odd.length);
+		pool.release(odd);
+		// too small
+		pool.release(pool.acquire(16));
+		Assert.assertEquals(0, pool.getIdleBytes());
+	}
+
+	@Test
+	public void testMaxIdle() {
+
+		final BufferPool pool = new BufferPool(1024);
+		pool.release(new byte[512]);
+		pool.release(new byte[512]);
+		pool.release(new byte[512]);
+		Assert.assertEquals(1024, pool.getIdleBytes());
+		pool.clear();
+		Assert.assertEquals(0, pool.getIdleBytes());
+	}
+}
@@ -22,6 +22,7 @@ import org.junit.Test;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 /**
  * @see BufferedOutputStream
@@ -113,4 +114,15 @@ public class BufferedOutputStreamTest {
 			}
 		}
 	}
+
+	@Test
+	public void testToByteBuffer() throws IOException {
+
+		try (BufferedOutputStream outStream = new BufferedOutputStream(2)) {
+			outStream.write("hello".getBytes());
+			final ByteBuffer view = outStream.toByteBuffer();
+			Assert.assertEquals(ByteBuffer.wrap("hello".getBytes()), view);
+			Assert.assertTrue(view.isReadOnly());
+		}
+	}
 }
@@ -0,0 +1,54 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Random;
+
+/**
+ * @see ChannelInputStream
+ */
+public class ChannelInputStreamTest {
+
+	@Test
+	public void testRead() throws IOException {
+
+		final byte[] data = new byte[2 * ChannelInputStream.BUFFER_SIZE + 123];
+		new Random(42).nextBytes(data);
+		final ByteArrayOutputStream read = new ByteArrayOutputStream();
+		try (InputStream in = new ChannelInputStream(Channels.newChannel(new ByteArrayInputStream(data)))) {
+			for (int i = 0; i < 100; i++) {
+				read.write(in.read());
+			}
+			final byte[] buffer = new byte[ChannelInputStream.BUFFER_SIZE + 7];
+			for (int n = in.read(buffer, 0, 512); n >= 0; n = in.read(buffer)) {
+				read.write(buffer, 0, n);
+			}
+			Assert.assertEquals(-1, in.read());
+			Assert.assertEquals(0, in.available());
+		}
+		Assert.assertArrayEquals(data, read.toByteArray());
+	}
+}
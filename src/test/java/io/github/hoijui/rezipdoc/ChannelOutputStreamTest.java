@@ -0,0 +1,92 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+
+/**
+ * @see ChannelOutputStream
+ */
+public class ChannelOutputStreamTest {
+
+	private static byte[] createData() {
+
+		final byte[] data = new byte[3 * ChannelOutputStream.BUFFER_SIZE + 123];
+		new Random(42).nextBytes(data);
+		return data;
+	}
+
+	/**
+	 * Writes single bytes, small chunks,
+	 * and chunks larger then the buffer.
+	 */
+	private static void writeMixed(final OutputStream out, final byte[] data) throws IOException {
+
+		int pos = 0;
+		for (int i = 0; i < 100; i++) {
+			out.write(data[pos++]);
+		}
+		out.write(data, pos, 1000);
+		pos += 1000;
+		out.write(data, pos, ChannelOutputStream.BUFFER_SIZE + 7);
+		pos += ChannelOutputStream.BUFFER_SIZE + 7;
+		out.flush();
+		while (pos < data.length) {
+			final int len = Math.min(data.length - pos, 8192);
+			out.write(data, pos, len);
+			pos += len;
+		}
+	}
+
+	@Test
+	public void testGathering() throws IOException {
+
+		final byte[] data = createData();
+		final Path file = Files.createTempFile(getClass().getName(), ".bin");
+		try {
+			try (OutputStream out = new ChannelOutputStream(FileChannel.open(file, StandardOpenOption.WRITE))) {
+				writeMixed(out, data);
+			}
+			Assert.assertArrayEquals(data, Files.readAllBytes(file));
+		} finally {
+			Files.delete(file);
+		}
+	}
+
+	@Test
+	public void testNonGathering() throws IOException {
+
+		final byte[] data = createData();
+		final ByteArrayOutputStream target = new ByteArrayOutputStream();
+		try (OutputStream out = new ChannelOutputStream(Channels.newChannel(target))) {
+			writeMixed(out, data);
+		}
+		Assert.assertArrayEquals(data, target.toByteArray());
+	}
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * @see ChunkedOutputStream
+ */
+public class ChunkedOutputStreamTest {
+
+	private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+	private static ChunkedOutputStream createFilled() {
+
+		// chunks of 4, 8, 16, 16, ... bytes
+		final ChunkedOutputStream outStream = new ChunkedOutputStream(4, 16);
+		outStream.write(DATA, 0, 3);
+		outStream.write(DATA[3]);
+		outStream.write(DATA, 4, DATA.length - 4);
+		return outStream;
+	}
+
+	@Test
+	public void testGrowth() {
+
+		final ChunkedOutputStream outStream = createFilled();
+		Assert.assertEquals(DATA.length, outStream.size());
+		Assert.assertEquals(4 + 8 + 16 + 16, outStream.capacity());
+		Assert.assertEquals(4 + 8 + 16 + 16 + 16, outStream.capacityFor(outStream.capacity() + 1));
+
+		final List<ByteBuffer> chunks = outStream.toByteBuffers();
+		Assert.assertEquals(4, chunks.size());
+		Assert.assertEquals(ByteBuffer.wrap(DATA, 0, 4), chunks.get(0));
+		Assert.assertEquals(ByteBuffer.wrap(DATA, 28, DATA.length - 28), chunks.get(3));
+	}
+
+	@Test
+	public void testStartsWith() {
+
+		final ChunkedOutputStream outStream = createFilled();
+		Assert.assertTrue(outStream.startsWith(new byte[0]));
+		Assert.assertTrue(outStream.startsWith("The quick brown".getBytes()));
+		Assert.assertTrue(outStream.startsWith(DATA));
+		Assert.assertFalse(outStream.startsWith("The quick green".getBytes()));
+		Assert.assertFalse(outStream.startsWith((new String(DATA) + '!').getBytes()));
+	}
+
+	@Test
+	public void testCreateInputStream() throws IOException {
+
+		final ChunkedOutputStream outStream = createFilled();
+		final BufferedOutputStream content = new BufferedOutputStream();
+		try (InputStream inStream = outStream.createInputStream()) {
+			Assert.assertEquals('T', inStream.read());
+			Assert.assertEquals(9, inStream.skip(9));
+			Utils.transferTo(inStream, content, new byte[5]);
+			Assert.assertEquals(-1, inStream.read());
+		}
+		Assert.assertArrayEquals("brown fox jumps over the lazy dog".getBytes(), content.toByteArray());
+	}
+
+	@Test
+	public void testWriteTo() throws IOException {
+
+		final BufferedOutputStream content = new BufferedOutputStream();
+		createFilled().writeTo(content);
+		Assert.assertArrayEquals(DATA, content.toByteArray());
+	}
+
+	@Test
+	public void testToByteBuffer() {
+
+		final ChunkedOutputStream outStream = createFilled();
+		Assert.assertEquals(ByteBuffer.wrap(DATA), outStream.toByteBuffer());
+		// merged into a single chunk
+		Assert.assertEquals(1, outStream.toByteBuffers().size());
+		Assert.assertEquals(DATA.length, outStream.capacity());
+
+		outStream.write('!');
+		Assert.assertEquals(DATA.length + 1, outStream.size());
+		Assert.assertEquals(DATA.length + 16, outStream.capacity());
+		Assert.assertEquals((new String(DATA) + '!'), new String(outStream.toByteArray()));
+	}
+
+	@Test
+	public void testReset() {
+
+		final ChunkedOutputStream outStream = createFilled();
+		final long capacity = outStream.capacity();
+		outStream.reset();
+		Assert.assertEquals(0, outStream.size());
+		Assert.assertTrue(outStream.toByteBuffers().isEmpty());
+		outStream.write(DATA, 10, 5);
+		Assert.assertEquals(capacity, outStream.capacity());
+		Assert.assertArrayEquals("brown".getBytes(), outStream.toByteArray());
+	}
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+/**
+ * @see CompressionPreset
+ */
+public class CompressionPresetTest {
+
+	private static byte[] random(final int length) {
+
+		final byte[] content = new byte[length];
+		new Random(42).nextBytes(content);
+		return content;
+	}
+
+	private static byte[] text(final int length) {
+
+		final StringBuilder content = new StringBuilder();
+		for (int line = 0; content.length() < length; line++) {
+			content.append("Line number ").append(line).append(" of some text\n");
+		}
+		return content.substring(0, length).getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testParse() {
+
+		Assert.assertEquals(CompressionPreset.SPEED, CompressionPreset.parse("speed"));
+		Assert.assertEquals(CompressionPreset.SIZE, CompressionPreset.parse("Size"));
+		Assert.assertEquals(Deflater.BEST_SPEED, CompressionPreset.SPEED.getLevel());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testParseInvalid() {
+		CompressionPreset.parse("fastest");
+	}
+
+	@Test
+	public void testIsCompressible() {
+
+		for (final CompressionPreset preset : CompressionPreset.values()) {
+			Assert.assertTrue(preset.isCompressible(ByteBuffer.wrap(text(10000))));
+			Assert.assertFalse(preset.isCompressible(ByteBuffer.wrap(random(10000))));
+			// too small to tell
+			Assert.assertTrue(preset.isCompressible(ByteBuffer.wrap(random(CompressionPreset.MIN_SAMPLE_BYTES - 1))));
+		}
+	}
+
+	@Test
+	public void testSampleFromPosition() {
+
+		final ByteBuffer sample = ByteBuffer.allocate(2000);
+		sample.put(text(1000));
+		sample.put(random(1000));
+		sample.position(1000);
+		Assert.assertFalse(CompressionPreset.BALANCED.isCompressible(sample));
+		Assert.assertEquals(1000, sample.position());
+	}
+}
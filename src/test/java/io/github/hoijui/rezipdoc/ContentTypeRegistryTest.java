@@ -0,0 +1,101 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * @see ContentTypeRegistry
+ */
+public class ContentTypeRegistryTest {
+
+	private static EntryClassifier.Type bySignature(final byte[] content) {
+		return ContentTypeRegistry.getDefault().getTypeBySignature(ByteBuffer.wrap(content));
+	}
+
+	private static EntryClassifier.Type bySignature(final int... content) {
+
+		final byte[] bytes = new byte[content.length];
+		for (int bi = 0; bi < content.length; bi++) {
+			bytes[bi] = (byte) content[bi];
+		}
+		return bySignature(bytes);
+	}
+
+	private static EntryClassifier.Type bySignature(final String content) {
+		return bySignature(content.getBytes(StandardCharsets.UTF_8));
+	}
+
+	@Test
+	public void testSuffix() {
+
+		final ContentTypeRegistry registry = new ContentTypeRegistry(
+				new HashSet<>(Arrays.asList("xml", "both")),
+				new HashSet<>(Arrays.asList("txt", "both")),
+				Collections.singleton("FCStd"),
+				Collections.singleton("png"));
+		Assert.assertEquals(EntryClassifier.Type.XML, registry.getTypeBySuffix("dir/file.xml"));
+		Assert.assertEquals(EntryClassifier.Type.XML, registry.getTypeBySuffix("FILE.XML"));
+		// cached by now
+		Assert.assertEquals(EntryClassifier.Type.XML, registry.getTypeBySuffix("other.XML"));
+		Assert.assertEquals(EntryClassifier.Type.XML, registry.getTypeBySuffix("file.both"));
+		Assert.assertEquals(EntryClassifier.Type.TEXT, registry.getTypeBySuffix("notes.txt"));
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, registry.getTypeBySuffix("model.fcstd"));
+		Assert.assertEquals(EntryClassifier.Type.BINARY, registry.getTypeBySuffix("image.png"));
+		Assert.assertNull(registry.getTypeBySuffix("Code.class"));
+		Assert.assertNull(registry.getTypeBySuffix("Code.class"));
+		Assert.assertNull(registry.getTypeBySuffix("no-suffix"));
+		Assert.assertNull(registry.getTypeBySuffix("dir.xml/no-suffix"));
+	}
+
+	@Test
+	public void testSignature() {
+
+		Assert.assertEquals(EntryClassifier.Type.XML, bySignature("<?xml version=\"1.0\"?><a/>"));
+		Assert.assertEquals(EntryClassifier.Type.XML, bySignature("\uFEFF<?xml version=\"1.0\"?><a/>"));
+		Assert.assertEquals(EntryClassifier.Type.XML, bySignature(0xFF, 0xFE, '<', 0, '?', 0, 'x', 0));
+		Assert.assertEquals(EntryClassifier.Type.TEXT, bySignature("\uFEFFplain text"));
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, bySignature('P', 'K', 3, 4, 0));
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, bySignature('P', 'K', 5, 6));
+		Assert.assertEquals(EntryClassifier.Type.BINARY, bySignature(0x1F, 0x8B, 8));
+		Assert.assertEquals(EntryClassifier.Type.BINARY,
+				bySignature(0xCA, 0xFE, 0xBA, 0xBE, 0, 0, 0, 52));
+		Assert.assertEquals(EntryClassifier.Type.BINARY, bySignature("%PDF-1.4"));
+		// too short to be sure
+		Assert.assertNull(bySignature("<?xml"));
+		Assert.assertNull(bySignature('P', 'K', 3));
+		Assert.assertNull(bySignature("plain text"));
+		Assert.assertNull(bySignature(new byte[0]));
+	}
+
+	@Test
+	public void testSignatureFromPosition() {
+
+		final ByteBuffer content = ByteBuffer.wrap("..PK\3\4".getBytes(StandardCharsets.US_ASCII));
+		content.position(2);
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, ContentTypeRegistry.getDefault().getTypeBySignature(content));
+		Assert.assertEquals(2, content.position());
+	}
+}
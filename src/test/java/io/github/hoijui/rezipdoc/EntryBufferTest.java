@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.CRC32;
+
+/**
+ * @see EntryBuffer
+ */
+public class EntryBufferTest {
+
+	private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+	private static long crc(final byte[] data) {
+
+		final CRC32 crc = new CRC32();
+		crc.update(data);
+		return crc.getValue();
+	}
+
+	@Test
+	public void testChecksum() throws IOException {
+
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		entryBuffer.getChecked().write(DATA);
+		Assert.assertEquals(DATA.length, entryBuffer.getRaw().size());
+		Assert.assertEquals(crc(DATA), entryBuffer.getCrc());
+		entryBuffer.reset();
+		Assert.assertEquals(0, entryBuffer.getRaw().size());
+		Assert.assertEquals(0, entryBuffer.getCrc());
+		entryBuffer.discard();
+	}
+
+	@Test
+	public void testDetach() throws IOException {
+
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		entryBuffer.getChecked().write(DATA);
+		final BufferedOutputStream detached = new BufferedOutputStream();
+		try (InputStream source = entryBuffer.detach()) {
+			Assert.assertEquals(0, entryBuffer.getRaw().size());
+			Assert.assertEquals(0, entryBuffer.getCrc());
+			// transform the content back into the same buffer
+			final byte[] buffer = new byte[5];
+			for (int n = source.read(buffer); n >= 0; n = source.read(buffer)) {
+				detached.write(buffer, 0, n);
+				entryBuffer.getChecked().write(buffer, 0, n);
+			}
+		}
+		Assert.assertArrayEquals(DATA, detached.toByteArray());
+		Assert.assertEquals(crc(DATA), entryBuffer.getCrc());
+		entryBuffer.discard();
+	}
+
+	@Test
+	public void testNested() throws IOException {
+
+		final EntryBuffer entryBuffer = new EntryBuffer();
+		final EntryBuffer nested = entryBuffer.getNested();
+		Assert.assertNotSame(entryBuffer, nested);
+		Assert.assertSame(nested, entryBuffer.getNested());
+		nested.getChecked().write(DATA);
+		entryBuffer.discard();
+		Assert.assertEquals(0, nested.getRaw().size());
+	}
+}
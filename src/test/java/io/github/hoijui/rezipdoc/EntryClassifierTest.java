@@ -0,0 +1,86 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * @see EntryClassifier
+ */
+public class EntryClassifierTest {
+
+	private static EntryClassifier.Type classify(final String name, final byte[] content) throws IOException {
+
+		final BufferedOutputStream prefix = new BufferedOutputStream();
+		try (InputStream contentIn = new ByteArrayInputStream(content)) {
+			EntryClassifier.readPrefix(contentIn, prefix, new byte[BufferPool.TRANSFER_BUFFER_SIZE]);
+		}
+		return EntryClassifier.getDefault().classify(name, -1, prefix);
+	}
+
+	private static byte[] utf8(final String content) {
+		return content.getBytes(StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testClassify() throws IOException {
+
+		Assert.assertEquals(EntryClassifier.Type.XML, classify("dir/content.xml", utf8("<a/>")));
+		Assert.assertEquals(EntryClassifier.Type.XML, classify("no-suffix", utf8("<?xml version=\"1.0\"?><a/>")));
+		Assert.assertEquals(EntryClassifier.Type.TEXT, classify("notes.txt", new byte[] {0, 1, 2}));
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, classify("nested.zip", new byte[0]));
+		Assert.assertEquals(EntryClassifier.Type.ARCHIVE, classify("no-suffix", new byte[] {'P', 'K', 3, 4, 0, 0}));
+		Assert.assertEquals(EntryClassifier.Type.TEXT, classify("META-INF/MANIFEST.MF", utf8("Manifest-Version: 1.0\n")));
+		Assert.assertEquals(EntryClassifier.Type.BINARY, classify("mesh.bin", new byte[] {'a', 0, 'b'}));
+		Assert.assertEquals(EntryClassifier.Type.BINARY, classify("empty", new byte[0]));
+	}
+
+	@Test
+	public void testReadPrefix() throws IOException {
+
+		final byte[] content = new byte[3 * EntryClassifier.PREFIX_BYTES];
+		final BufferedOutputStream prefix = new BufferedOutputStream();
+		try (InputStream contentIn = new ByteArrayInputStream(content)) {
+			EntryClassifier.readPrefix(contentIn, prefix, new byte[100]);
+			Assert.assertEquals(EntryClassifier.PREFIX_BYTES, prefix.size());
+			Assert.assertEquals(2 * EntryClassifier.PREFIX_BYTES, contentIn.available());
+		}
+	}
+
+	@Test
+	public void testLooksLikeText() {
+
+		Assert.assertTrue(EntryClassifier.looksLikeText(ByteBuffer.wrap(utf8("plain\ttext\r\n"))));
+		Assert.assertTrue(EntryClassifier.looksLikeText(ByteBuffer.wrap(utf8("Grüße, 你好"))));
+		// a multi-byte character cut off by the end of the prefix
+		final byte[] cutOff = utf8("你好");
+		Assert.assertTrue(EntryClassifier.looksLikeText(ByteBuffer.wrap(cutOff, 0, cutOff.length - 1)));
+		Assert.assertFalse(EntryClassifier.looksLikeText(ByteBuffer.wrap(new byte[0])));
+		Assert.assertFalse(EntryClassifier.looksLikeText(ByteBuffer.wrap(new byte[] {'a', 0})));
+		Assert.assertFalse(EntryClassifier.looksLikeText(ByteBuffer.wrap(new byte[] {'a', (byte) 0xFF})));
+		// ISO-8859-1 is not recognized
+		Assert.assertFalse(EntryClassifier.looksLikeText(ByteBuffer.wrap(new byte[] {'a', (byte) 0xE4, 'b'})));
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.regex.Pattern;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+
+/**
+ * @see EntryRules
+ */
+public class EntryRulesTest {
+
+	private static boolean globMatches(final String glob, final String path) {
+		return Pattern.matches(EntryRules.globToRegex(glob), path);
+	}
+
+	@Test
+	public void testGlob() {
+
+		Assert.assertTrue(globMatches("*.png", "image.png"));
+		Assert.assertTrue(globMatches("*.png", "Thumbnails/image.png"));
+		Assert.assertFalse(globMatches("*.png", "image.png.txt"));
+		Assert.assertTrue(globMatches("Thumbnails/*.png", "Thumbnails/image.png"));
+		Assert.assertFalse(globMatches("Thumbnails/*.png", "Thumbnails/sub/image.png"));
+		Assert.assertFalse(globMatches("Thumbnails/*.png", "other/Thumbnails/image.png"));
+		Assert.assertTrue(globMatches("**/Thumbnails/*.png", "other/Thumbnails/image.png"));
+		Assert.assertTrue(globMatches("**/Thumbnails/*.png", "Thumbnails/image.png"));
+		Assert.assertTrue(globMatches("Thumbnails/", "Thumbnails/sub/image.png"));
+		Assert.assertTrue(globMatches("/content.xml", "content.xml"));
+		Assert.assertFalse(globMatches("/content.xml", "sub/content.xml"));
+		Assert.assertTrue(globMatches("image?.{png,jpg}", "image1.jpg"));
+		Assert.assertFalse(globMatches("image?.{png,jpg}", "image12.jpg"));
+		Assert.assertTrue(globMatches("[a-c]*.txt", "b.txt"));
+		Assert.assertFalse(globMatches("[!a-c]*.txt", "b.txt"));
+		Assert.assertTrue(globMatches("a+b(1).txt", "a+b(1).txt"));
+	}
+
+	@Test
+	public void testParse() {
+
+		final EntryRules.Rule rule = EntryRules.Rule.parse("  Thumbnails/  raw\tdeflate=1 format-xml=rough no-recurse ");
+		Assert.assertEquals("Thumbnails/ raw deflate=1 format-xml=rough no-recurse", rule.toString());
+		Assert.assertTrue(rule.isRaw());
+		Assert.assertEquals(ZipEntry.DEFLATED, rule.getCompressionMethod(ZipEntry.STORED));
+		Assert.assertEquals(1, rule.getCompressionLevel(Deflater.DEFAULT_COMPRESSION));
+		Assert.assertTrue(rule.isFormatXml(false));
+		Assert.assertFalse(rule.isCorrectXml(true));
+		Assert.assertFalse(rule.isRecursive(true));
+
+		final EntryRules.Rule none = EntryRules.Rule.NONE;
+		Assert.assertFalse(none.isRaw());
+		Assert.assertEquals(ZipEntry.STORED, none.getCompressionMethod(ZipEntry.STORED));
+		Assert.assertEquals(Deflater.DEFAULT_COMPRESSION, none.getCompressionLevel(Deflater.DEFAULT_COMPRESSION));
+		Assert.assertTrue(none.isFormatXml(true));
+		Assert.assertTrue(none.isCorrectXml(true));
+		Assert.assertTrue(none.isRecursive(true));
+	}
+
+	@Test
+	public void testInvalid() {
+
+		for (final String invalid : Arrays.asList("*.png", "*.png compress", "*.png deflate=10",
+				"[a.png store", "{a,b.png store", "regex:( store"))
+		{
+			try {
+				EntryRules.Rule.parse(invalid);
+				Assert.fail("Accepted invalid rule: " + invalid);
+			} catch (final IllegalArgumentException exc) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void testFirstMatchWins() throws IOException {
+
+		final Path rulesFile = Files.createTempFile(getClass().getName() + "_rules_", ".txt");
+		try {
+			Utils.writeLines(rulesFile, Arrays.asList(
+					"# comment",
+					"",
+					"regex:(huge)/(.*)\\.xml  no-format-xml",
+					"*.xml  format-xml=correct",
+					"**  store"));
+			final EntryRules rules = EntryRules.read(rulesFile);
+			Assert.assertEquals(3, rules.getRules().size());
+			Assert.assertSame(rules.getRules().get(0), rules.getRule("huge/part.xml"));
+			Assert.assertSame(rules.getRules().get(1), rules.getRule("small/part.xml"));
+			Assert.assertSame(rules.getRules().get(2), rules.getRule("huge/image.png"));
+			Assert.assertSame(EntryRules.Rule.NONE, EntryRules.getNone().getRule("any.xml"));
+		} finally {
+			Files.delete(rulesFile);
+		}
+	}
+
+	@Test
+	public void testInvalidFile() throws IOException {
+
+		final Path rulesFile = Files.createTempFile(getClass().getName() + "_rules_", ".txt");
+		try {
+			Utils.writeLines(rulesFile, Arrays.asList("*.xml format-xml", "*.png squash"));
+			EntryRules.read(rulesFile);
+			Assert.fail("Accepted invalid rules file");
+		} catch (final IllegalArgumentException exc) {
+			Assert.assertTrue(exc.getMessage(), exc.getMessage().contains("line 2"));
+		} finally {
+			Files.delete(rulesFile);
+		}
+	}
+}
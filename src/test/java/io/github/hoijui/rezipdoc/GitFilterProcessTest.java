@@ -0,0 +1,307 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+
+/**
+ * @see GitFilterProcess
+ */
+public class GitFilterProcessTest extends AbstractReZipDocTest {
+
+	private static void writeRequest(final BufferedOutputStream gitIn, final String command,
+			final String pathname, final byte[] content, final boolean canDelay)
+			throws IOException
+	{
+		PktLine.writeText(gitIn, "command=" + command);
+		PktLine.writeText(gitIn, "pathname=" + pathname);
+		if (canDelay) {
+			PktLine.writeText(gitIn, "can-delay=1");
+		}
+		PktLine.writeFlush(gitIn);
+		try (PktLine.ContentOutputStream contentOut = new PktLine.ContentOutputStream(gitIn)) {
+			contentOut.write(content);
+		}
+		PktLine.writeFlush(gitIn);
+	}
+
+	private static void writeRequest(final BufferedOutputStream gitIn, final String command,
+			final String pathname, final byte[] content)
+			throws IOException
+	{
+		writeRequest(gitIn, command, pathname, content, false);
+	}
+
+	private static void writeHandshake(final BufferedOutputStream gitIn) throws IOException {
+
+		PktLine.writeText(gitIn, "git-filter-client");
+		PktLine.writeText(gitIn, "version=2");
+		PktLine.writeFlush(gitIn);
+		PktLine.writeText(gitIn, "capability=clean");
+		PktLine.writeText(gitIn, "capability=smudge");
+		PktLine.writeText(gitIn, "capability=delay");
+		PktLine.writeFlush(gitIn);
+	}
+
+	private static List<String> readTexts(final InputStream gitOut, final byte[] buffer) throws IOException {
+
+		final List<String> texts = new ArrayList<>();
+		for (String text = PktLine.readText(gitOut, buffer); text != null; text = PktLine.readText(gitOut, buffer)) {
+			texts.add(text);
+		}
+		return texts;
+	}
+
+	private static BufferedOutputStream readResponse(final InputStream gitOut, final byte[] buffer) throws IOException {
+
+		Assert.assertEquals("status=success", PktLine.readText(gitOut, buffer));
+		Assert.assertNull(PktLine.readText(gitOut, buffer));
+		final BufferedOutputStream content = new BufferedOutputStream();
+		PktLine.readContent(gitOut, content, buffer);
+		Assert.assertTrue(readTexts(gitOut, buffer).isEmpty());
+		return content;
+	}
+
+	@Test
+	public void testCleanAndSmudge() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] original = Files.readAllBytes(zipFile);
+
+		final BufferedOutputStream gitIn = new BufferedOutputStream();
+		writeHandshake(gitIn);
+		writeRequest(gitIn, "clean", "first.zip", original);
+		writeRequest(gitIn, "smudge", "second.zip", original);
+
+		final BufferedOutputStream gitOut = new BufferedOutputStream();
+		new GitFilterProcess(new ReZip(false, false, true, false), new ReZip(true, false, true, false))
+				.run(gitIn.createInputStream(false), gitOut);
+
+		final InputStream response = gitOut.createInputStream(false);
+		final byte[] buffer = new byte[PktLine.MAX_DATA_LENGTH];
+		Assert.assertEquals("git-filter-server", PktLine.readText(response, buffer));
+		Assert.assertEquals("version=2", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		final List<String> capabilities = readTexts(response, buffer);
+		Assert.assertTrue(capabilities.contains("capability=clean"));
+		Assert.assertTrue(capabilities.contains("capability=smudge"));
+
+		checkContains(true, readResponse(response, buffer), archiveContents);
+		checkContains(false, readResponse(response, buffer), archiveContents);
+		Assert.assertEquals(PktLine.END_OF_STREAM, PktLine.readPacket(response, buffer));
+	}
+
+	@Test
+	public void testDelayedSmudge() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] original = Files.readAllBytes(zipFile);
+		final List<String> pathnames = Arrays.asList("a.zip", "b.zip", "c.zip");
+
+		// As we can not react to the responses, we pretend to know
+		// how many list requests it takes until all files are available
+		final BufferedOutputStream gitIn = new BufferedOutputStream();
+		writeHandshake(gitIn);
+		for (final String pathname : pathnames) {
+			writeRequest(gitIn, "smudge", pathname, original, true);
+		}
+		for (int i = 0; i < pathnames.size() + 1; i++) {
+			PktLine.writeText(gitIn, "command=list_available_blobs");
+			PktLine.writeFlush(gitIn);
+		}
+
+		final BufferedOutputStream gitOut = new BufferedOutputStream();
+		new GitFilterProcess(null, new ReZip(true, false, true, false), 2)
+				.run(gitIn.createInputStream(false), gitOut);
+
+		final InputStream response = gitOut.createInputStream(false);
+		final byte[] buffer = new byte[PktLine.MAX_DATA_LENGTH];
+		readTexts(response, buffer);
+		final List<String> capabilities = readTexts(response, buffer);
+		Assert.assertTrue(capabilities.contains("capability=delay"));
+		for (int i = 0; i < pathnames.size(); i++) {
+			Assert.assertEquals("status=delayed", PktLine.readText(response, buffer));
+			Assert.assertNull(PktLine.readText(response, buffer));
+		}
+		final Set<String> available = new HashSet<>();
+		for (int i = 0; i < pathnames.size() + 1; i++) {
+			for (final String line : readTexts(response, buffer)) {
+				available.add(line.substring("pathname=".length()));
+			}
+			Assert.assertEquals("status=success", PktLine.readText(response, buffer));
+			Assert.assertNull(PktLine.readText(response, buffer));
+		}
+		Assert.assertEquals(new HashSet<>(pathnames), available);
+	}
+
+	@Test
+	public void testFetchDelayed() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] original = Files.readAllBytes(zipFile);
+
+		final BufferedOutputStream gitIn = new BufferedOutputStream();
+		writeHandshake(gitIn);
+		writeRequest(gitIn, "smudge", "a.zip", original, true);
+		PktLine.writeText(gitIn, "command=list_available_blobs");
+		PktLine.writeFlush(gitIn);
+		writeRequest(gitIn, "smudge", "a.zip", new byte[0]);
+		PktLine.writeText(gitIn, "command=list_available_blobs");
+		PktLine.writeFlush(gitIn);
+
+		final BufferedOutputStream gitOut = new BufferedOutputStream();
+		new GitFilterProcess(null, new ReZip(true, false, true, false), 2)
+				.run(gitIn.createInputStream(false), gitOut);
+
+		final InputStream response = gitOut.createInputStream(false);
+		final byte[] buffer = new byte[PktLine.MAX_DATA_LENGTH];
+		readTexts(response, buffer);
+		readTexts(response, buffer);
+		Assert.assertEquals("status=delayed", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		Assert.assertEquals(Collections.singletonList("pathname=a.zip"), readTexts(response, buffer));
+		Assert.assertEquals("status=success", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		checkContains(false, readResponse(response, buffer), archiveContents);
+		// no more delayed files
+		Assert.assertTrue(readTexts(response, buffer).isEmpty());
+		Assert.assertEquals("status=success", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		Assert.assertEquals(PktLine.END_OF_STREAM, PktLine.readPacket(response, buffer));
+	}
+
+	/**
+	 * Fails with an unchecked exception on empty content.
+	 */
+	private static ReZip createFailingReZip(final boolean compression) {
+
+		return new ReZip(compression, false, true, false) {
+			@Override
+			public void reZip(final SpillingOutputStream source, final OutputStream target) throws IOException {
+
+				if (source.size() == 0) {
+					throw new IllegalStateException("Failing on purpose");
+				}
+				super.reZip(source, target);
+			}
+		};
+	}
+
+	@Test
+	public void testRuntimeFailure() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] original = Files.readAllBytes(zipFile);
+
+		final BufferedOutputStream gitIn = new BufferedOutputStream();
+		writeHandshake(gitIn);
+		writeRequest(gitIn, "clean", "bad.zip", new byte[0]);
+		writeRequest(gitIn, "smudge", "bad.zip", new byte[0], true);
+		writeRequest(gitIn, "smudge", "good.zip", original, true);
+		for (int i = 0; i < 3; i++) {
+			PktLine.writeText(gitIn, "command=list_available_blobs");
+			PktLine.writeFlush(gitIn);
+		}
+		writeRequest(gitIn, "smudge", "bad.zip", new byte[0]);
+		writeRequest(gitIn, "smudge", "good.zip", new byte[0]);
+
+		final BufferedOutputStream gitOut = new BufferedOutputStream();
+		new GitFilterProcess(createFailingReZip(false), createFailingReZip(true), 2)
+				.run(gitIn.createInputStream(false), gitOut);
+
+		final InputStream response = gitOut.createInputStream(false);
+		final byte[] buffer = new byte[PktLine.MAX_DATA_LENGTH];
+		readTexts(response, buffer);
+		readTexts(response, buffer);
+		// only the failing file gets an error, after its (empty) content
+		Assert.assertEquals("status=success", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		PktLine.readContent(response, new BufferedOutputStream(), buffer);
+		Assert.assertEquals(Collections.singletonList("status=error"), readTexts(response, buffer));
+		for (int i = 0; i < 2; i++) {
+			Assert.assertEquals("status=delayed", PktLine.readText(response, buffer));
+			Assert.assertNull(PktLine.readText(response, buffer));
+		}
+		final Set<String> available = new HashSet<>();
+		for (int i = 0; i < 3; i++) {
+			for (final String line : readTexts(response, buffer)) {
+				available.add(line.substring("pathname=".length()));
+			}
+			Assert.assertEquals("status=success", PktLine.readText(response, buffer));
+			Assert.assertNull(PktLine.readText(response, buffer));
+		}
+		Assert.assertEquals(new HashSet<>(Arrays.asList("bad.zip", "good.zip")), available);
+		Assert.assertEquals("status=error", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+		checkContains(false, readResponse(response, buffer), archiveContents);
+		Assert.assertEquals(PktLine.END_OF_STREAM, PktLine.readPacket(response, buffer));
+	}
+
+	@Test
+	public void testUnsupportedCapability() throws IOException {
+
+		final BufferedOutputStream gitIn = new BufferedOutputStream();
+		writeHandshake(gitIn);
+		writeRequest(gitIn, "smudge", "some.zip", new byte[0]);
+
+		final BufferedOutputStream gitOut = new BufferedOutputStream();
+		new GitFilterProcess(new ReZip(), null).run(gitIn.createInputStream(false), gitOut);
+
+		final InputStream response = gitOut.createInputStream(false);
+		final byte[] buffer = new byte[PktLine.MAX_DATA_LENGTH];
+		readTexts(response, buffer);
+		final List<String> capabilities = readTexts(response, buffer);
+		Assert.assertTrue(capabilities.contains("capability=clean"));
+		Assert.assertFalse(capabilities.contains("capability=smudge"));
+		Assert.assertEquals("status=error", PktLine.readText(response, buffer));
+		Assert.assertNull(PktLine.readText(response, buffer));
+	}
+
+	@Test
+	public void testLargePackets() throws IOException {
+
+		final byte[] data = new byte[3 * PktLine.MAX_DATA_LENGTH + 17];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) i;
+		}
+		final BufferedOutputStream packets = new BufferedOutputStream();
+		try (PktLine.ContentOutputStream contentOut = new PktLine.ContentOutputStream(packets)) {
+			contentOut.write(data);
+		}
+		PktLine.writeFlush(packets);
+
+		final BufferedOutputStream content = new BufferedOutputStream();
+		PktLine.readContent(new ByteArrayInputStream(packets.toByteArray()), content,
+				new byte[PktLine.MAX_DATA_LENGTH]);
+		Assert.assertArrayEquals(data, content.toByteArray());
+	}
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * @see OfflineEntityResolver
+ */
+public class OfflineEntityResolverTest {
+
+	private static final String DTD_SYSTEM_ID = "http://example.invalid/greeting.dtd";
+	private static final String DTD_PUBLIC_ID = "-//ReZipDoc//DTD Greeting//EN";
+	private static final String DOCUMENT = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+			+ "<!DOCTYPE a SYSTEM \"" + DTD_SYSTEM_ID + "\"><a><b>&greeting;</b></a>";
+
+	private Path catalogDir;
+	private Path catalog;
+
+	@Before
+	public void setUpCatalog() throws IOException {
+
+		catalogDir = Files.createTempDirectory(getClass().getName() + "_catalog_");
+		Files.write(catalogDir.resolve("greeting.dtd"),
+				"<!ENTITY greeting \"Hello\">".getBytes(StandardCharsets.UTF_8));
+		catalog = catalogDir.resolve("catalog.xml");
+		Files.write(catalog, ("<?xml version=\"1.0\"?>"
+				+ "<catalog xmlns=\"urn:oasis:names:tc:entity:xmlns:xml:catalog\">"
+				+ "<system systemId=\"" + DTD_SYSTEM_ID + "\" uri=\"greeting.dtd\"/>"
+				+ "<public publicId=\"" + DTD_PUBLIC_ID + "\" uri=\"greeting.dtd\"/>"
+				+ "</catalog>").getBytes(StandardCharsets.UTF_8));
+	}
+
+	@After
+	public void tearDownCatalog() throws IOException {
+
+		try (Stream<Path> files = Files.walk(catalogDir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	@Test
+	public void testResolveThroughCatalog() throws IOException {
+
+		final OfflineEntityResolver resolver = new OfflineEntityResolver(catalog, false);
+		final byte[] dtd = Files.readAllBytes(catalogDir.resolve("greeting.dtd"));
+		Assert.assertArrayEquals(dtd, resolver.resolve(null, DTD_SYSTEM_ID));
+		Assert.assertArrayEquals(dtd, resolver.resolve(DTD_PUBLIC_ID, "http://example.invalid/other.dtd"));
+		Assert.assertArrayEquals(dtd, resolver.resolve(null, catalogDir.resolve("greeting.dtd").toUri().toString()));
+	}
+
+	@Test
+	public void testUnknownResolvesEmpty() throws IOException {
+
+		final OfflineEntityResolver resolver = new OfflineEntityResolver(catalog, false);
+		Assert.assertEquals(0, resolver.resolve(null, "http://example.invalid/unknown.dtd").length);
+		// local files outside of the catalogs directory are not accessible
+		Assert.assertEquals(0, resolver.resolve(null, catalogDir.getParent().toUri().toString()).length);
+		Assert.assertEquals(0, OfflineEntityResolver.getDefault().resolve(DTD_PUBLIC_ID, DTD_SYSTEM_ID).length);
+	}
+
+	@Test
+	public void testIgnoreExternal() throws IOException {
+
+		final OfflineEntityResolver resolver = new OfflineEntityResolver(catalog, true);
+		Assert.assertTrue(resolver.isIgnoreExternal());
+		Assert.assertEquals(0, resolver.resolve(DTD_PUBLIC_ID, DTD_SYSTEM_ID).length);
+	}
+
+	@Test
+	public void testPrettifyWithCatalog() throws IOException {
+
+		final XmlFormatter domFormatter = new XmlFormatter();
+		domFormatter.setEntityResolver(new OfflineEntityResolver(catalog, false));
+		Assert.assertTrue(domFormatter.prettify(DOCUMENT).contains("<b>Hello</b>"));
+
+		final XmlFormatter streamingFormatter = new XmlFormatter(2, "  ", true, true);
+		streamingFormatter.setEntityResolver(new OfflineEntityResolver(catalog, false));
+		Assert.assertTrue(streamingFormatter.prettify(DOCUMENT).contains("<b>Hello</b>"));
+	}
+
+	@Test
+	public void testPrettifyIgnoringExternal() throws IOException {
+
+		final XmlFormatter xmlFormatter = new XmlFormatter();
+		xmlFormatter.setEntityResolver(new OfflineEntityResolver(true));
+		final String document = "<!DOCTYPE a SYSTEM \"" + DTD_SYSTEM_ID + "\"><a><b>text</b></a>";
+		Assert.assertTrue(xmlFormatter.prettify(document).contains("<b>text</b>"));
+	}
+}
@@ -20,18 +20,29 @@ package io.github.hoijui.rezipdoc;
 import org.hamcrest.CoreMatchers;
 import org.hamcrest.Matcher;
 import org.hamcrest.MatcherAssert;
+import org.junit.Assert;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Random;
 import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
 
 /**
  * @see ReZip
@@ -145,6 +156,356 @@ public class ReZipTest extends AbstractReZipDocTest {
 		testPlainText(true);
 	}
 
+	private void testParallel(final boolean compression, final boolean nullifyTimes) throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+
+		final ReZip sequential = new ReZip(compression, nullifyTimes, true, false);
+		sequential.reZip(zipFile, reZipFile);
+		final byte[] expected = Files.readAllBytes(reZipFile);
+
+		final ReZip parallel = new ReZip(compression, nullifyTimes, true, false);
+		parallel.setParallelism(3);
+		parallel.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+
+		// re-packing the already re-packed (STORED) archive
+		Files.copy(reZipFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
+		sequential.reZip(zipFile, reZipFile);
+		final byte[] expectedSecond = Files.readAllBytes(reZipFile);
+		parallel.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expectedSecond, Files.readAllBytes(reZipFile));
+	}
+
+	@Test
+	public void testParallelUncompressed() throws IOException {
+		testParallel(false, false);
+	}
+
+	@Test
+	public void testParallelCompressedNullifyTimes() throws IOException {
+		testParallel(true, true);
+	}
+
+	private byte[] reZipStream(final ReZip reZip, final boolean pipelined) throws IOException {
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream();
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zipFile));
+				ZipOutputStream zipOut = new ZipOutputStream(out))
+		{
+			if (pipelined) {
+				reZip.reZipPipelined(zipIn, zipOut);
+			} else {
+				reZip.reZip(zipIn, zipOut);
+			}
+		}
+		return out.toByteArray();
+	}
+
+	private void testPipelined(final boolean compression, final boolean formatXml) throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(compression, true, true, formatXml);
+		final byte[] expected = reZipStream(reZip, false);
+
+		reZip.setParallelism(3);
+		Assert.assertArrayEquals(expected, reZipStream(reZip, true));
+
+		// with no memory to spare, the reader stays just one entry ahead
+		final MemoryBudget budget = MemoryBudget.getDefault();
+		final long limit = budget.getLimit();
+		budget.setLimit(0);
+		try {
+			Assert.assertArrayEquals(expected, reZipStream(reZip, true));
+		} finally {
+			budget.setLimit(limit);
+		}
+	}
+
+	@Test
+	public void testPipelinedUncompressed() throws IOException {
+		testPipelined(false, false);
+	}
+
+	@Test
+	public void testPipelinedCompressedFormatXml() throws IOException {
+		testPipelined(true, true);
+	}
+
+	@Test
+	public void testPipelinedFailure() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] zip = Files.readAllBytes(zipFile);
+		final ReZip reZip = new ReZip(false, true, true, false);
+		reZip.setParallelism(3);
+		// cut off within the content of the last entry
+		try (ZipInputStream zipIn = new ZipInputStream(new ByteArrayInputStream(Arrays.copyOf(zip, zip.length / 2)));
+				ZipOutputStream zipOut = new ZipOutputStream(new ByteArrayOutputStream()))
+		{
+			reZip.reZipPipelined(zipIn, zipOut);
+			Assert.fail("Truncated input should fail");
+		} catch (final IOException exc) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testStreamedCompressed() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip uncompressed = new ReZip(false, true, true, true);
+		uncompressed.reZip(zipFile, reZipFile);
+		final byte[] expectedUncompressed = Files.readAllBytes(reZipFile);
+
+		// sequentially, nested archives and XML get transformed while being written
+		final ReZip compressed = new ReZip(true, true, true, true);
+		compressed.reZip(zipFile, reZipFile);
+		final byte[] streamed = Files.readAllBytes(reZipFile);
+		// in parallel, each entry gets buffered as a whole
+		compressed.setParallelism(3);
+		compressed.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(streamed, Files.readAllBytes(reZipFile));
+
+		// the streamed result holds the same content
+		Files.write(zipFile, streamed);
+		uncompressed.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expectedUncompressed, Files.readAllBytes(reZipFile));
+	}
+
+	@Test
+	public void testSeekBack() throws IOException {
+
+		// DEFLATED entries written by ZipOutputStream have no size in their local header
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(false, true, true, true);
+		final ByteArrayOutputStream buffered = new ByteArrayOutputStream();
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zipFile));
+				ZipOutputStream zipOut = new ZipOutputStream(buffered))
+		{
+			reZip.reZip(zipIn, zipOut);
+		}
+
+		// writing to a file, STORED entries get their sizes filled in afterwards
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(buffered.toByteArray(), Files.readAllBytes(reZipFile));
+		checkContains(true, reZipFile, archiveContents);
+	}
+
+	@Test
+	public void testStoredDataDescriptor() throws IOException {
+
+		createStoredDataDescriptorZip(zipFile, projectRoot, archiveContents);
+		new ReZip(false, true, true, false).reZip(zipFile, reZipFile);
+		checkContains(true, reZipFile, archiveContents);
+		try (ZipIndex zipIndex = new ZipIndex(reZipFile)) {
+			Assert.assertTrue(zipIndex.isSequentiallyReadable());
+		}
+	}
+
+	@Test
+	public void testSpilled() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(false, false, true, true);
+		reZip.reZip(zipFile, reZipFile);
+		final byte[] expected = Files.readAllBytes(reZipFile);
+
+		final MemoryBudget budget = MemoryBudget.getDefault();
+		final long limit = budget.getLimit();
+		budget.setLimit(0);
+		try {
+			reZip.reZip(zipFile, reZipFile);
+			Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+			reZip.setParallelism(3);
+			reZip.reZip(zipFile, reZipFile);
+			Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+		} finally {
+			budget.setLimit(limit);
+		}
+	}
+
+	@Test
+	public void testStoredPassThroughIdempotent() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(false, true, true, false);
+		reZip.reZip(zipFile, reZipFile);
+		final byte[] clean = Files.readAllBytes(reZipFile);
+
+		// all entries are STORED now, with size and CRC up front, but still with their times,
+		// so they are not canonical, and get passed through with only the headers changed
+		new ReZip(false, false, true, false).reZip(zipFile, reZipFile);
+		Files.copy(reZipFile, zipFile, StandardCopyOption.REPLACE_EXISTING);
+		Assert.assertFalse(reZip.isCanonical(ByteBuffer.wrap(Files.readAllBytes(zipFile))));
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(clean, Files.readAllBytes(reZipFile));
+		checkContains(true, reZipFile, archiveContents);
+	}
+
+	@Test
+	public void testCanonical() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(false, true, true, false);
+		Assert.assertFalse(reZip.isCanonical(ByteBuffer.wrap(Files.readAllBytes(zipFile))));
+
+		reZip.reZip(zipFile, reZipFile);
+		final ByteBuffer clean = ByteBuffer.wrap(Files.readAllBytes(reZipFile));
+		Assert.assertTrue(reZip.isCanonical(clean));
+		Assert.assertTrue(new ReZip(false, false, true, false).isCanonical(clean));
+		Assert.assertFalse(new ReZip(true, true, true, false).isCanonical(clean));
+
+		// entries with times are not canonical if times are to be nullified
+		new ReZip(false, false, true, false).reZip(zipFile, reZipFile);
+		final ByteBuffer withTimes = ByteBuffer.wrap(Files.readAllBytes(reZipFile));
+		Assert.assertTrue(new ReZip(false, false, true, false).isCanonical(withTimes));
+		Assert.assertFalse(reZip.isCanonical(withTimes));
+	}
+
+	@Test
+	public void testCanonicalNested() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		// only the outer archive gets re-packed
+		new ReZip(false, true, false, false).reZip(zipFile, reZipFile);
+		final ByteBuffer outerOnly = ByteBuffer.wrap(Files.readAllBytes(reZipFile));
+		Assert.assertTrue(new ReZip(false, true, false, false).isCanonical(outerOnly));
+		Assert.assertFalse(new ReZip(false, true, true, false).isCanonical(outerOnly));
+	}
+
+	@Test
+	public void testRules() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip(true, true, true, false);
+		reZip.setRules(new EntryRules(Collections.singletonList(EntryRules.Rule.parse("** store"))));
+		reZip.reZip(zipFile, reZipFile);
+		final byte[] expected = Files.readAllBytes(reZipFile);
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(reZipFile))) {
+			for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+				Assert.assertEquals(entry.getName(), ZipEntry.STORED, entry.getMethod());
+			}
+		}
+		checkContains(true, reZipFile, archiveContents);
+
+		reZip.setParallelism(3);
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+	}
+
+	@Test
+	public void testRulesRaw() throws IOException {
+
+		createRecursiveZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		// the nested archive is left as it is
+		final ReZip reZip = new ReZip(false, false, true, false);
+		reZip.setRules(new EntryRules(Collections.singletonList(EntryRules.Rule.parse("*.zip raw"))));
+		reZip.reZip(zipFile, reZipFile);
+		checkContains(false, reZipFile, archiveContents.subList(0, 2));
+		checkContains(true, reZipFile, archiveContents.subList(2, archiveContents.size()));
+		Assert.assertTrue(reZip.isCanonical(ByteBuffer.wrap(Files.readAllBytes(reZipFile))));
+	}
+
+	@Test
+	public void testRulesXmlFormatterSwapped() throws IOException {
+
+		try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+			zipOut.putNextEntry(new ZipEntry("content.xml"));
+			zipOut.write("<a><b>text</b><c/></a>".getBytes(StandardCharsets.UTF_8));
+		}
+		final EntryRules rules = new EntryRules(Collections.singletonList(EntryRules.Rule.parse("*.xml format-xml=rough")));
+		final XmlFormatter tabs = new XmlFormatter(1, "\t", true);
+
+		final ReZip fresh = new ReZip(false, true, true, true);
+		fresh.setRules(rules);
+		fresh.setXmlFormatter(tabs);
+		fresh.reZip(zipFile, reZipFile);
+		final byte[] expected = Files.readAllBytes(reZipFile);
+
+		// the formatter derived for the rule has to follow the swap
+		final ReZip reZip = new ReZip(false, true, true, true);
+		reZip.setRules(rules);
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertFalse(Arrays.equals(expected, Files.readAllBytes(reZipFile)));
+		reZip.setXmlFormatter(tabs);
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+	}
+
+	private byte[] readEntry(final Path zip, final String name) throws IOException {
+
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zip))) {
+			for (ZipEntry entry = zipIn.getNextEntry(); entry != null; entry = zipIn.getNextEntry()) {
+				if (entry.getName().equals(name)) {
+					final ByteArrayOutputStream content = new ByteArrayOutputStream();
+					Utils.transferTo(zipIn, content, new byte[4096]);
+					return content.toByteArray();
+				}
+			}
+		}
+		throw new IOException("Missing entry " + name);
+	}
+
+	@Test
+	public void testInvalidXmlCarbonCopy() throws IOException {
+
+		// valid for long enough to get some output written before failing
+		final StringBuilder xml = new StringBuilder("<a>");
+		for (int i = 0; i < 10000; i++) {
+			xml.append("<b>text</b>");
+		}
+		xml.append("<c></a>");
+		final byte[] content = xml.toString().getBytes(StandardCharsets.UTF_8);
+		try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+			zipOut.putNextEntry(new ZipEntry("broken.xml"));
+			zipOut.write(content);
+		}
+
+		final MemoryBudget budget = MemoryBudget.getDefault();
+		final long limit = budget.getLimit();
+		try {
+			for (final boolean streaming : new boolean[] {false, true}) {
+				for (final boolean compression : new boolean[] {false, true}) {
+					for (final long budgetLimit : new long[] {limit, 0}) {
+						budget.setLimit(budgetLimit);
+						final ReZip reZip = new ReZip(compression, true, true, true);
+						reZip.setXmlFormatter(new XmlFormatter(2, "  ", true, streaming));
+						reZip.reZip(zipFile, reZipFile);
+						Assert.assertArrayEquals(content, readEntry(reZipFile, "broken.xml"));
+					}
+				}
+			}
+		} finally {
+			budget.setLimit(limit);
+		}
+	}
+
+	@Test
+	public void testCompressionPreset() throws IOException {
+
+		final byte[] random = new byte[10000];
+		new Random(42).nextBytes(random);
+		try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+			zipOut.putNextEntry(new ZipEntry("random.bin"));
+			zipOut.write(random);
+			zipOut.putNextEntry(new ZipEntry("zeros.bin"));
+			zipOut.write(new byte[10000]);
+		}
+		final ReZip reZip = new ReZip(true, true, true, false);
+		reZip.setCompressionPreset(CompressionPreset.BALANCED);
+		reZip.reZip(zipFile, reZipFile);
+		final byte[] expected = Files.readAllBytes(reZipFile);
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(reZipFile))) {
+			Assert.assertEquals(ZipEntry.STORED, zipIn.getNextEntry().getMethod());
+			Assert.assertEquals(ZipEntry.DEFLATED, zipIn.getNextEntry().getMethod());
+		}
+
+		reZip.setParallelism(3);
+		reZip.reZip(zipFile, reZipFile);
+		Assert.assertArrayEquals(expected, Files.readAllBytes(reZipFile));
+	}
+
 	@Test
 	public void testHelp() throws IOException {
 
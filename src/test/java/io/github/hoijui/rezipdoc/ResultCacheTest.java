@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @see ResultCache
+ */
+public class ResultCacheTest extends AbstractReZipDocTest {
+
+	private Path cacheDir;
+
+	@Before
+	public void setUpCache() throws IOException {
+		cacheDir = Files.createTempDirectory(getClass().getName() + "_cache_");
+	}
+
+	@After
+	public void tearDownCache() throws IOException {
+
+		try (Stream<Path> files = Files.walk(cacheDir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(file -> file.toFile().delete());
+		}
+	}
+
+	private static byte[] apply(final ResultCache cache, final String key, final String result,
+			final AtomicInteger produced)
+			throws IOException
+	{
+		final BufferedOutputStream target = new BufferedOutputStream();
+		cache.apply(key, target, out -> {
+			produced.incrementAndGet();
+			out.write(result.getBytes(StandardCharsets.UTF_8));
+			out.close();
+		});
+		return target.toByteArray();
+	}
+
+	@Test
+	public void testHitAndMiss() throws IOException {
+
+		final ResultCache cache = new ResultCache(cacheDir);
+		final AtomicInteger produced = new AtomicInteger();
+		final String key = ResultCache.key("test", ByteBuffer.wrap(new byte[] {1, 2, 3}));
+		Assert.assertArrayEquals("result".getBytes(StandardCharsets.UTF_8), apply(cache, key, "result", produced));
+		Assert.assertArrayEquals("result".getBytes(StandardCharsets.UTF_8), apply(cache, key, "other", produced));
+		Assert.assertEquals(1, produced.get());
+
+		final ResultCache.Stats stats = cache.getStats();
+		Assert.assertEquals(1, stats.getHits());
+		Assert.assertEquals(1, stats.getMisses());
+		Assert.assertEquals(1, stats.getEntries());
+		Assert.assertEquals("result".length(), stats.getBytes());
+	}
+
+	@Test
+	public void testKey() throws IOException {
+
+		final byte[] input = {1, 2, 3};
+		Files.write(zipFile, input);
+		final String key = ResultCache.key("a", ByteBuffer.wrap(input));
+		Assert.assertEquals(key, ResultCache.key("a", zipFile));
+		Assert.assertNotEquals(key, ResultCache.key("b", ByteBuffer.wrap(input)));
+		Assert.assertNotEquals(key, ResultCache.key("a", ByteBuffer.wrap(new byte[] {1, 2})));
+	}
+
+	@Test
+	public void testEviction() throws IOException {
+
+		final ResultCache cache = new ResultCache(cacheDir, 10);
+		final AtomicInteger produced = new AtomicInteger();
+		apply(cache, "first", "12345", produced);
+		apply(cache, "second", "12345", produced);
+		// make sure "first" is the least recently used one
+		Files.setLastModifiedTime(cacheDir.resolve("first.result"), FileTime.fromMillis(0));
+		apply(cache, "third", "12345", produced);
+
+		Assert.assertEquals(2, cache.getStats().getEntries());
+		apply(cache, "first", "12345", produced);
+		Assert.assertEquals(4, produced.get());
+	}
+
+	@Test
+	public void testReZip() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final ReZip reZip = new ReZip();
+		reZip.setCache(new ResultCache(cacheDir));
+		final Path first = Files.createTempFile(getClass().getName() + "_first_", ".zip");
+		final Path second = Files.createTempFile(getClass().getName() + "_second_", ".zip");
+		try {
+			reZip.reZip(zipFile, first);
+			reZip.reZip(zipFile, second);
+			Assert.assertArrayEquals(Files.readAllBytes(first), Files.readAllBytes(second));
+			checkContains(true, second, archiveContents);
+			Assert.assertEquals(1, reZip.getCache().getStats().getHits());
+		} finally {
+			Files.deleteIfExists(first);
+			Files.deleteIfExists(second);
+		}
+	}
+
+	@Test
+	public void testReZipXmlFormatter() throws IOException {
+
+		try (ZipOutputStream zipOut = new ZipOutputStream(Files.newOutputStream(zipFile))) {
+			zipOut.putNextEntry(new ZipEntry("content.xml"));
+			zipOut.write("<a><b>text</b><c/></a>".getBytes(StandardCharsets.UTF_8));
+		}
+		final ResultCache cache = new ResultCache(cacheDir);
+		final ReZip spaces = new ReZip(false, true, true, true);
+		spaces.setCache(cache);
+		final ReZip tabs = new ReZip(false, true, true, true);
+		tabs.setXmlFormatter(new XmlFormatter(1, "\t", true));
+		final Path first = Files.createTempFile(getClass().getName() + "_first_", ".zip");
+		final Path second = Files.createTempFile(getClass().getName() + "_second_", ".zip");
+		try {
+			tabs.reZip(zipFile, second);
+			final byte[] expected = Files.readAllBytes(second);
+			spaces.reZip(zipFile, first);
+			// a differently configured formatter must not share results
+			tabs.setCache(cache);
+			tabs.reZip(zipFile, second);
+			Assert.assertArrayEquals(expected, Files.readAllBytes(second));
+			Assert.assertFalse(Arrays.equals(Files.readAllBytes(first), expected));
+			Assert.assertEquals(0, cache.getStats().getHits());
+		} finally {
+			Files.deleteIfExists(first);
+			Files.deleteIfExists(second);
+		}
+	}
+}
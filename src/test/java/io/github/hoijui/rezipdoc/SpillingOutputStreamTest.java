@@ -0,0 +1,155 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * @see SpillingOutputStream
+ */
+public class SpillingOutputStreamTest {
+
+	private static byte[] createData(final int length) {
+
+		final byte[] data = new byte[length];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) (i * 31);
+		}
+		return data;
+	}
+
+	private static byte[] read(final InputStream in) throws IOException {
+
+		final BufferedOutputStream content = new BufferedOutputStream();
+		try (InputStream source = in) {
+			Utils.transferTo(source, content, new byte[100]);
+		}
+		return content.toByteArray();
+	}
+
+	private static void checkContent(final byte[] expected, final SpillingOutputStream buffer) throws IOException {
+
+		Assert.assertEquals(expected.length, buffer.size());
+		Assert.assertArrayEquals(expected, read(buffer.createInputStream()));
+		final BufferedOutputStream copy = new BufferedOutputStream();
+		buffer.writeTo(copy);
+		Assert.assertArrayEquals(expected, copy.toByteArray());
+		Assert.assertEquals(ByteBuffer.wrap(expected), buffer.toByteBuffer());
+		final byte[] head = new byte[Utils.TYPE_DETECTION_BYTES];
+		System.arraycopy(expected, 0, head, 0, head.length);
+		Assert.assertTrue(buffer.getHead().startsWith(head));
+	}
+
+	@Test
+	public void testInMemory() throws IOException {
+
+		final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		final SpillingOutputStream buffer = new SpillingOutputStream(budget);
+		final byte[] data = createData(5000);
+		buffer.write(data, 0, 3000);
+		buffer.write(data, 3000, 2000);
+		Assert.assertFalse(buffer.isSpilled());
+		checkContent(data, buffer);
+		Assert.assertTrue(budget.getUsed() >= data.length);
+
+		buffer.discard();
+		Assert.assertEquals(0, buffer.size());
+		Assert.assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testSpilled() throws IOException {
+
+		final MemoryBudget budget = new MemoryBudget(1000);
+		final SpillingOutputStream buffer = new SpillingOutputStream(budget);
+		final byte[] data = createData(50000);
+		buffer.write(data, 0, 500);
+		Assert.assertFalse(buffer.isSpilled());
+		for (int i = 500; i < 600; i++) {
+			buffer.write(data[i]);
+		}
+		buffer.write(data, 600, data.length - 600);
+		Assert.assertTrue(buffer.isSpilled());
+		Assert.assertEquals(0, budget.getUsed());
+		checkContent(data, buffer);
+
+		buffer.reset();
+		Assert.assertFalse(buffer.isSpilled());
+		Assert.assertEquals(0, buffer.size());
+		buffer.write(data, 0, 100);
+		checkContent(createPrefix(data, 100), buffer);
+		buffer.discard();
+		Assert.assertEquals(0, budget.getUsed());
+	}
+
+	@Test
+	public void testMergeOverBudget() throws IOException {
+
+		final MemoryBudget budget = new MemoryBudget(1024 * 1024);
+		final SpillingOutputStream buffer = new SpillingOutputStream(budget);
+		final byte[] data = createData(5000);
+		buffer.write(data);
+		Assert.assertFalse(buffer.isSpilled());
+		// merging the chunks would need the content twice
+		budget.setLimit(budget.getUsed());
+		Assert.assertEquals(ByteBuffer.wrap(data), buffer.toByteBuffer());
+		Assert.assertTrue(buffer.isSpilled());
+		Assert.assertEquals(0, budget.getUsed());
+		checkContent(data, buffer);
+		buffer.discard();
+	}
+
+	private static byte[] createPrefix(final byte[] data, final int length) {
+
+		final byte[] prefix = new byte[length];
+		System.arraycopy(data, 0, prefix, 0, length);
+		return prefix;
+	}
+
+	@Test
+	public void testDetach() throws IOException {
+
+		final MemoryBudget budget = new MemoryBudget(1000);
+		final SpillingOutputStream buffer = new SpillingOutputStream(budget);
+		final byte[] small = createData(300);
+		buffer.write(small);
+		final InputStream detachedSmall = buffer.detachInputStream();
+		Assert.assertEquals(0, buffer.size());
+		// the detached content still counts
+		Assert.assertTrue(budget.getUsed() >= small.length);
+		Assert.assertArrayEquals(small, read(detachedSmall));
+		Assert.assertEquals(0, budget.getUsed());
+
+		final byte[] large = createData(20000);
+		buffer.write(large);
+		Assert.assertTrue(buffer.isSpilled());
+		final InputStream detachedLarge = buffer.detachInputStream();
+		Assert.assertFalse(buffer.isSpilled());
+		// writing while the detached content is read, like when transforming it
+		buffer.write(small);
+		Assert.assertArrayEquals(large, read(detachedLarge));
+		checkContent(small, buffer);
+		buffer.discard();
+		Assert.assertEquals(0, budget.getUsed());
+	}
+}
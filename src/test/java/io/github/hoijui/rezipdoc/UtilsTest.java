@@ -61,9 +61,12 @@ public class UtilsTest extends AbstractReZipDocTest {
 				Utils.RESOURCE_FILE_SUFFIXES_TEXT, Utils.DEFAULT_SUFFIXES_TEXT);
 		Set<String> loadedSuffixesArchive = Utils.collectFileOrDefaults(
 				Utils.RESOURCE_FILE_SUFFIXES_ARCHIVE, Utils.DEFAULT_SUFFIXES_ARCHIVE);
+		Set<String> loadedSuffixesBinary = Utils.collectFileOrDefaults(
+				Utils.RESOURCE_FILE_SUFFIXES_BINARY, Utils.DEFAULT_SUFFIXES_BINARY);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_XML, loadedSuffixesXml);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_TEXT, loadedSuffixesText);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_ARCHIVE, loadedSuffixesArchive);
+		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_BINARY, loadedSuffixesBinary);
 
 		Utils.deleteSuffixesFiles();
 		loadedSuffixesXml = Utils.collectFileOrDefaults(
@@ -72,8 +75,11 @@ public class UtilsTest extends AbstractReZipDocTest {
 				Utils.RESOURCE_FILE_SUFFIXES_TEXT, Utils.DEFAULT_SUFFIXES_TEXT);
 		loadedSuffixesArchive = Utils.collectFileOrDefaults(
 				Utils.RESOURCE_FILE_SUFFIXES_ARCHIVE, Utils.DEFAULT_SUFFIXES_ARCHIVE);
+		loadedSuffixesBinary = Utils.collectFileOrDefaults(
+				Utils.RESOURCE_FILE_SUFFIXES_BINARY, Utils.DEFAULT_SUFFIXES_BINARY);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_XML, loadedSuffixesXml);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_TEXT, loadedSuffixesText);
 		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_ARCHIVE, loadedSuffixesArchive);
+		Assert.assertEquals(Utils.DEFAULT_SUFFIXES_BINARY, loadedSuffixesBinary);
 	}
 }
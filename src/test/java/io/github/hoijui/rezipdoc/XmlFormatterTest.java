@@ -27,13 +27,20 @@ import org.junit.contrib.java.lang.system.ExpectedSystemExit;
 import org.junit.contrib.java.lang.system.SystemOutRule;
 import org.junit.contrib.java.lang.system.TextFromStandardInputStream;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * @see XmlFormatter
@@ -64,6 +71,12 @@ public class XmlFormatterTest {
 		Assert.assertEquals(expected, actual);
 	}
 
+	private void testStreamingStringPrettyPrint(final String input, final String expected) throws IOException {
+
+		final String actual = new XmlFormatter(2, "  ", true, true).prettify(input);
+		Assert.assertEquals(expected, actual);
+	}
+
 	private File createTempFile(final String nameBase, final String content) throws IOException {
 
 		final File file = File.createTempFile(nameBase, ".xml");
@@ -217,4 +230,256 @@ public class XmlFormatterTest {
 		testRoughStringPrettyPrint("<my-tag><middle/></my-tag>",
 				"<my-tag>\n  <middle/>\n</my-tag>\n");
 	}
+
+	@Test
+	public void testRoughText() throws IOException {
+
+		testRoughStringPrettyPrint("<a>  first  line \n\t second line<b>x > y</b></a>",
+				"<a>\n  first  line\n  second line\n  <b>\n    x > y\n  </b>\n</a>\n");
+	}
+
+	@Test
+	public void testRoughMarkup() throws IOException {
+
+		testRoughStringPrettyPrint(
+				"<?xml version=\"1.0\"?><!DOCTYPE a [<!ENTITY e \"<e>\">]><a x=\"1>2\" y='/'>"
+						+ "<!-- <not/> a tag --><![CDATA[<not>a tag]]></a>",
+				"<?xml version=\"1.0\"?>\n<!DOCTYPE a [<!ENTITY e \"<e>\">]>\n<a x=\"1>2\" y='/'>\n"
+						+ "  <!-- <not/> a tag -->\n  <![CDATA[<not>a tag]]>\n</a>\n");
+	}
+
+	@Test
+	public void testRoughSmallBuffer() throws IOException {
+
+		final String input = "<a><!-- x --><b c=\"d\">text</b><e/></a>";
+		final BufferedOutputStream output = new BufferedOutputStream();
+		try (InputStream xmlIn = new ByteArrayInputStream(input.getBytes(StandardCharsets.UTF_8))) {
+			new XmlFormatter(2, "  ", false).prettifyRoughAndFast(xmlIn, output, new byte[1]);
+		}
+		Assert.assertEquals(new XmlFormatter(2, "  ", false).prettify(input),
+				new String(output.toByteArray(), StandardCharsets.UTF_8));
+	}
+
+	private static String prettifyParallel(final XmlFormatter xmlFormatter, final ByteBuffer input,
+			final int chunkSize)
+			throws IOException
+	{
+		final BufferedOutputStream output = new BufferedOutputStream();
+		xmlFormatter.prettifyRoughAndFast(input, output, chunkSize);
+		return new String(output.toByteArray(), StandardCharsets.UTF_8);
+	}
+
+	@Test
+	public void testRoughParallel() throws IOException {
+
+		// '>' within comments, CDATA, attribute values and text, to split in wrong places,
+		// and more end then start tags, for negative indents
+		final String input = "</x></y><?xml version=\"1.0\"?>\n<a>  some\n text <!-- <b> -> --> more "
+				+ "<b c=\"d > e\" f='>'><![CDATA[ <c> ]] > ]]><d/>x > y  \n  </b>"
+				+ "<!DOCTYPE [<!ENTITY g \">\">]><e>text</e></a></z> trailing";
+		final byte[] inputBytes = input.getBytes(StandardCharsets.UTF_8);
+		final ByteBuffer direct = ByteBuffer.allocateDirect(inputBytes.length);
+		direct.put(inputBytes);
+		direct.flip();
+		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", false);
+		final String expected = xmlFormatter.prettify(input);
+		xmlFormatter.setParallelism(4);
+		for (int chunkSize = 1; chunkSize <= inputBytes.length; chunkSize++) {
+			Assert.assertEquals("chunk size " + chunkSize, expected,
+					prettifyParallel(xmlFormatter, ByteBuffer.wrap(inputBytes), chunkSize));
+			Assert.assertEquals("chunk size " + chunkSize, expected,
+					prettifyParallel(xmlFormatter, direct, chunkSize));
+		}
+	}
+
+	@Test
+	public void testRoughParallelUnfinished() throws IOException {
+
+		final String input = "<a><b>text</b><!-- unfinished <c> comment";
+		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", false);
+		final String expected = xmlFormatter.prettify(input);
+		xmlFormatter.setParallelism(2);
+		Assert.assertEquals(expected, prettifyParallel(xmlFormatter,
+				ByteBuffer.wrap(input.getBytes(StandardCharsets.UTF_8)), 4));
+	}
+
+	private static String canonicalize(final String input) throws IOException {
+
+		final XmlFormatter xmlFormatter = new XmlFormatter();
+		xmlFormatter.setCanonical(true);
+		return xmlFormatter.prettify(input);
+	}
+
+	@Test
+	public void testCanonicalOrder() throws IOException {
+
+		Assert.assertEquals(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+						+ "<a xmlns=\"urn:d\" xmlns:x=\"urn:x\" xmlns:y=\"urn:y\" b=\"2\" c=\"1\" x:b=\"3\" y:a=\"4\"/>\n",
+				canonicalize("<a c='1' x:b='3' b = \"2\" y:a='4' xmlns:y='urn:y' xmlns:x='urn:x' xmlns='urn:d'/>"));
+	}
+
+	@Test
+	public void testCanonicalSameDocument() throws IOException {
+
+		Assert.assertEquals(
+				canonicalize("<a xmlns:x='urn:x'><x:b x:c='1' d='2'><x:e xmlns:x='urn:x'/></x:b></a>"),
+				canonicalize("<a xmlns:x=\"urn:x\"><x:b d=\"2\"   x:c=\"1\"><x:e/></x:b></a>"));
+	}
+
+	@Test
+	public void testCanonicalNamespaceScope() throws IOException {
+
+		// re-declarations within the scope are dropped, but not after it
+		Assert.assertEquals(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n"
+						+ "<a>\n"
+						+ "  <x:b xmlns:x=\"urn:x\">\n"
+						+ "    <x:c/>\n"
+						+ "    <x:d xmlns:x=\"urn:other\"/>\n"
+						+ "  </x:b>\n"
+						+ "  <x:e xmlns:x=\"urn:x\"/>\n"
+						+ "</a>\n",
+				canonicalize("<a xmlns=''><x:b xmlns:x='urn:x'><x:c xmlns:x='urn:x'/>"
+						+ "<x:d xmlns:x='urn:other'/></x:b><x:e xmlns:x='urn:x'/></a>"));
+	}
+
+	@Test
+	public void testReuse() throws IOException {
+
+		final String input = "<a><b c=\"d\">text</b><e/></a>";
+		final String invalid = "<a><b></a>";
+		for (final XmlFormatter xmlFormatter : new XmlFormatter[] {
+				new XmlFormatter(), new XmlFormatter(2, "  ", true, true)})
+		{
+			final String expected = xmlFormatter.prettify(input);
+			// a failure must not leave anything behind for the next document
+			xmlFormatter.prettify(invalid);
+			Assert.assertEquals(expected, xmlFormatter.prettify(input));
+			Assert.assertEquals(expected, xmlFormatter.prettify(input));
+		}
+	}
+
+	@Test
+	public void testConcurrentUse() throws Exception {
+
+		final XmlFormatter xmlFormatter = new XmlFormatter();
+		final String input = "<a><b c=\"d\">text</b><e/></a>";
+		final String expected = xmlFormatter.prettify(input);
+		final ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			final List<Future<String>> results = new ArrayList<>();
+			for (int ti = 0; ti < 32; ti++) {
+				results.add(executor.submit(() -> xmlFormatter.prettify(input)));
+			}
+			for (final Future<String> result : results) {
+				Assert.assertEquals(expected, result.get());
+			}
+		} finally {
+			executor.shutdownNow();
+		}
+	}
+
+	@Test
+	public void testIsParallel() {
+
+		final XmlFormatter xmlFormatter = new XmlFormatter(2, "  ", false);
+		Assert.assertFalse(xmlFormatter.isParallel(100L * XmlFormatter.MIN_PARALLEL_CHUNK_SIZE));
+		xmlFormatter.setParallelism(2);
+		Assert.assertFalse(xmlFormatter.isParallel(XmlFormatter.MIN_PARALLEL_CHUNK_SIZE));
+		Assert.assertTrue(xmlFormatter.isParallel(100L * XmlFormatter.MIN_PARALLEL_CHUNK_SIZE));
+		final XmlFormatter correctFormatter = new XmlFormatter();
+		correctFormatter.setParallelism(2);
+		Assert.assertFalse(correctFormatter.isParallel(100L * XmlFormatter.MIN_PARALLEL_CHUNK_SIZE));
+	}
+
+	@Test
+	public void testStreamingSingleTag() throws IOException {
+
+		testStreamingStringPrettyPrint("<my-tag/>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<my-tag/>\n");
+	}
+
+	@Test
+	public void testStreamingBeginAndEndTag() throws IOException {
+
+		testStreamingStringPrettyPrint("<my-tag>  \n </my-tag>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<my-tag/>\n");
+	}
+
+	@Test
+	public void testStreamingBeginMiddleAndEndTag() throws IOException {
+
+		testStreamingStringPrettyPrint("<my-tag>\n\t<middle/> </my-tag>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<my-tag>\n  <middle/>\n</my-tag>\n");
+	}
+
+	@Test
+	public void testStreamingMixedContent() throws IOException {
+
+		testStreamingStringPrettyPrint(
+				"<?xml version=\"1.0\" standalone=\"yes\"?><a xmlns:x=\"urn:x\"><!-- c --><p x:s=\"1\">Hi <b>you</b> &amp; <![CDATA[<me>]]></p></a>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n<a xmlns:x=\"urn:x\">\n  <!-- c -->\n"
+						+ "  <p x:s=\"1\">Hi <b>you</b> &amp; <![CDATA[<me>]]></p>\n</a>\n");
+	}
+
+	@Test
+	public void testStreamingMixedContentSiblings() throws IOException {
+
+		// neither adjacent inline elements, nor the end tag after them, get indented
+		testStreamingStringPrettyPrint(
+				"<doc><p>Hello <b>x</b><i>y</i></p><q>a<b/></q><r>a <b>x</b> <i>y</i> </r></doc>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<doc>\n"
+						+ "  <p>Hello <b>x</b><i>y</i></p>\n"
+						+ "  <q>a<b/></q>\n"
+						+ "  <r>a <b>x</b> <i>y</i> </r>\n"
+						+ "</doc>\n");
+	}
+
+	@Test
+	public void testStreamingUnicodeSpaces() throws IOException {
+
+		// only XML white-space counts as such, wide spaces are content
+		testStreamingStringPrettyPrint(
+				"<a><b>\u3000</b><c>\u2003</c><d> \u2028\t</d></a>",
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<a>\n"
+						+ "  <b>\u3000</b>\n"
+						+ "  <c>\u2003</c>\n"
+						+ "  <d> \u2028\t</d>\n"
+						+ "</a>\n");
+		Assert.assertEquals(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<a>\n"
+						+ "  <b>\u3000</b>\n"
+						+ "</a>\n",
+				canonicalize("<a><b>\u3000</b></a>"));
+	}
+
+	@Test
+	public void testCanonicalMixedContent() throws IOException {
+
+		Assert.assertEquals(
+				"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<doc>\n"
+						+ "  <p b=\"2\" c=\"1\">Hello <b>x</b><i>y</i></p>\n"
+						+ "  <q>a<b/></q>\n"
+						+ "</doc>\n",
+				canonicalize("<doc><p c='1' b='2'>Hello <b>x</b><i>y</i></p><q>a<b/></q></doc>"));
+	}
+
+	@Test
+	public void testStreamingFiles() throws IOException {
+
+		final File xmlInFile = createTempFile("rezipdoc-unformatted-in", "<my-tag><middle/></my-tag>");
+		final File xmlOutFile = createTempFile("rezipdoc-unformatted-out", "");
+
+		XmlFormatter.main(new String[] {
+				"--streaming",
+				"--input", xmlInFile.getAbsolutePath(),
+				"--output", xmlOutFile.getAbsolutePath() });
+
+		try (InputStream resultIn = Files.newInputStream(xmlOutFile.toPath())) {
+			Assert.assertEquals(
+					"<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"no\"?>\n<my-tag>\n  <middle/>\n</my-tag>\n",
+					Utils.readStreamToString(resultIn));
+		}
+	}
 }
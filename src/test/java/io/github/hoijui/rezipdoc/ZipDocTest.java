@@ -73,6 +73,21 @@ public class ZipDocTest extends AbstractReZipDocTest {
 		testRecursive(true);
 	}
 
+	@Test
+	public void testStoredDataDescriptor() throws IOException {
+
+		createStoredDataDescriptorZip(zipFile, projectRoot, archiveContents);
+		final BufferedOutputStream bufferedOutputStream = new BufferedOutputStream();
+		final PrintStream outBefore = System.out;
+		try (PrintStream tempOut = new PrintStream(bufferedOutputStream)) {
+			System.setOut(tempOut);
+			ZipDoc.main(new String[] {zipFile.toFile().getAbsolutePath()});
+		} finally {
+			System.setOut(outBefore);
+		}
+		checkContains(true, bufferedOutputStream, archiveContents);
+	}
+
 	@Test
 	public void testHelp() throws IOException {
 
@@ -0,0 +1,141 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+/**
+ * @see ZipIndex
+ */
+public class ZipIndexTest extends AbstractReZipDocTest {
+
+	private void testSameAsSequential() throws IOException {
+
+		final byte[] buffer = new byte[1024];
+		try (ZipIndex zipIndex = new ZipIndex(zipFile);
+				ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zipFile)))
+		{
+			final List<ZipIndex.Entry> entries = zipIndex.getEntries();
+			Assert.assertEquals(archiveContents.size(), entries.size());
+			for (final ZipIndex.Entry indexEntry : entries) {
+				final ZipEntry expected = zipIn.getNextEntry();
+				final ZipEntry actual = zipIndex.readLocalEntry(indexEntry);
+				Assert.assertEquals(expected.getName(), actual.getName());
+				Assert.assertEquals(expected.getTime(), actual.getTime());
+				Assert.assertArrayEquals(expected.getExtra(), actual.getExtra());
+
+				final BufferedOutputStream expectedContent = new BufferedOutputStream();
+				Utils.transferTo(zipIn, expectedContent, buffer);
+				Assert.assertEquals(expected.getSize(), indexEntry.getSize());
+				Assert.assertEquals(expected.getCrc(), indexEntry.getCrc());
+				final BufferedOutputStream actualContent = new BufferedOutputStream();
+				try (InputStream entryIn = zipIndex.getInputStream(indexEntry)) {
+					Utils.transferTo(entryIn, actualContent, buffer);
+				}
+				Assert.assertArrayEquals(expectedContent.toByteArray(), actualContent.toByteArray());
+			}
+			Assert.assertNull(zipIn.getNextEntry());
+		}
+	}
+
+	@Test
+	public void testDeflated() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		testSameAsSequential();
+	}
+
+	@Test
+	public void testStored() throws IOException {
+
+		// ReZip creates STORED entries by default
+		final Path deflatedZipFile = Files.createTempFile(getClass().getName() + "_deflated_", ".zip");
+		try {
+			createZip(deflatedZipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+			new ReZip().reZip(deflatedZipFile, zipFile);
+		} finally {
+			Files.deleteIfExists(deflatedZipFile);
+		}
+		testSameAsSequential();
+	}
+
+	@Test
+	public void testStoredDataDescriptor() throws IOException {
+
+		createStoredDataDescriptorZip(zipFile, projectRoot, archiveContents);
+		try (ZipInputStream zipIn = new ZipInputStream(Files.newInputStream(zipFile))) {
+			zipIn.getNextEntry();
+			Assert.fail("ZipInputStream is expected to not support STORED entries with data descriptor");
+		} catch (final ZipException exc) {
+			// expected
+		}
+
+		final byte[] buffer = new byte[1024];
+		try (ZipIndex zipIndex = new ZipIndex(zipFile)) {
+			Assert.assertTrue(zipIndex.isMapped());
+			Assert.assertFalse(zipIndex.isSequentiallyReadable());
+			final List<ZipIndex.Entry> entries = zipIndex.getEntries();
+			Assert.assertEquals(archiveContents.size(), entries.size());
+			for (int ei = 0; ei < entries.size(); ei++) {
+				final ZipIndex.Entry indexEntry = entries.get(ei);
+				final byte[] expected = Files.readAllBytes(archiveContents.get(ei).toPath());
+				Assert.assertTrue(indexEntry.hasDataDescriptor());
+				final ZipEntry localEntry = zipIndex.readLocalEntry(indexEntry);
+				Assert.assertEquals(expected.length, localEntry.getSize());
+				Assert.assertEquals(indexEntry.getCrc(), localEntry.getCrc());
+
+				final BufferedOutputStream content = new BufferedOutputStream();
+				try (InputStream entryIn = zipIndex.getInputStream(indexEntry)) {
+					Utils.transferTo(entryIn, content, buffer);
+				}
+				Assert.assertArrayEquals(expected, content.toByteArray());
+				final ByteBuffer rawData = zipIndex.getRawData(indexEntry);
+				Assert.assertEquals(ByteBuffer.wrap(expected), rawData);
+			}
+		}
+	}
+
+	@Test(expected = ZipException.class)
+	public void testPrefixedRejected() throws IOException {
+
+		createZip(zipFile, projectRoot, archiveContents, ZipEntry.DEFLATED);
+		final byte[] original = Files.readAllBytes(zipFile);
+		Files.write(zipFile, "some prefix".getBytes(), StandardOpenOption.TRUNCATE_EXISTING);
+		Files.write(zipFile, original, StandardOpenOption.APPEND);
+		new ZipIndex(zipFile).close();
+	}
+
+	@Test(expected = ZipException.class)
+	public void testNoZipRejected() throws IOException {
+
+		Files.write(zipFile, "no ZIP at all".getBytes());
+		new ZipIndex(zipFile).close();
+	}
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019, The authors of the ReZipDoc project.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package io.github.hoijui.rezipdoc;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * @see ZlibPool
+ */
+public class ZlibPoolTest {
+
+	private static final byte[] DATA = "The quick brown fox jumps over the lazy dog".getBytes();
+
+	private static byte[] createZip(final ZlibPool pool) throws IOException {
+
+		final BufferedOutputStream zip = new BufferedOutputStream();
+		try (ZipOutputStream zipOut = pool.createZipOutputStream(zip)) {
+			final ZipEntry entry = new ZipEntry("fox.txt");
+			// a fixed time, so archives created at different times are the same
+			entry.setTime(0);
+			zipOut.putNextEntry(entry);
+			zipOut.write(DATA);
+			zipOut.closeEntry();
+		}
+		return zip.toByteArray();
+	}
+
+	private static byte[] readZip(final ZlibPool pool, final byte[] zip) throws IOException {
+
+		final BufferedOutputStream content = new BufferedOutputStream();
+		try (ZipInputStream zipIn = pool.createZipInputStream(new ByteArrayInputStream(zip))) {
+			Assert.assertEquals("fox.txt", zipIn.getNextEntry().getName());
+			Utils.transferTo(zipIn, content, new byte[16]);
+			Assert.assertNull(zipIn.getNextEntry());
+		}
+		return content.toByteArray();
+	}
+
+	@Test
+	public void testInflaterReuse() {
+
+		final ZlibPool pool = new ZlibPool(1);
+		final Inflater inflater = pool.acquireInflater();
+		pool.release(inflater);
+		Assert.assertEquals(1, pool.getIdleInflaters());
+		Assert.assertSame(inflater, pool.acquireInflater());
+		Assert.assertEquals(0, pool.getIdleInflaters());
+		pool.release(inflater);
+		// exceeds the maximum, so it gets ended
+		pool.release(new Inflater(true));
+		Assert.assertEquals(1, pool.getIdleInflaters());
+		pool.clear();
+		Assert.assertEquals(0, pool.getIdleInflaters());
+	}
+
+	@Test
+	public void testDeflaterLevels() {
+
+		final ZlibPool pool = new ZlibPool(4);
+		final Deflater deflater = pool.acquireDeflater(Deflater.BEST_SPEED);
+		pool.release(deflater, Deflater.BEST_SPEED);
+		Assert.assertNotSame(deflater, pool.acquireDeflater(Deflater.BEST_COMPRESSION));
+		Assert.assertSame(deflater, pool.acquireDeflater(Deflater.BEST_SPEED));
+		pool.clear();
+	}
+
+	@Test
+	public void testStreams() throws IOException {
+
+		final ZlibPool pool = new ZlibPool(4);
+		final byte[] zip = createZip(pool);
+		Assert.assertEquals(1, pool.getIdleDeflaters());
+		Assert.assertArrayEquals(DATA, readZip(pool, zip));
+		Assert.assertEquals(1, pool.getIdleInflaters());
+
+		// pooled objects produce the same output as fresh ones
+		Assert.assertArrayEquals(zip, createZip(pool));
+		Assert.assertArrayEquals(DATA, readZip(pool, zip));
+		Assert.assertEquals(1, pool.getIdleDeflaters());
+		Assert.assertEquals(1, pool.getIdleInflaters());
+		pool.clear();
+	}
+}